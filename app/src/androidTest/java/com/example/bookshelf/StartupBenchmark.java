@@ -0,0 +1,87 @@
+package com.example.bookshelf;
+
+import android.content.Intent;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.core.app.ActivityScenario;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Starts MainActivity over and over, doing all of the setup in onCreate
+ * (eager, the way it used to be) and with the service and network set
+ * up after the first frame (deferred), and reports the median time to
+ * the first frame and until the activity responds to input.
+ *
+ * Every launch after the first is in a process that is already running,
+ * so this compares the activity's own startup work, not process start.
+ * Run it on a device with: gradlew connectedAndroidTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class StartupBenchmark {
+
+    private static final String TAG = "StartupBenchmark";
+    private static final int WARMUP = 3;
+    private static final int RUNS = 15;
+
+    @Test
+    public void benchmark_startup() {
+        long[] eager = measure(true);
+        long[] deferred = measure(false);
+
+        String report = "Startup, median of " + RUNS + ": eager first frame " + eager[0] + "ms, responsive "
+                + eager[1] + "ms; deferred first frame " + deferred[0] + "ms, responsive " + deferred[1] + "ms";
+        Log.i(TAG, report);
+        System.out.println(report);
+
+        assertTrue(eager[0] >= 0 && deferred[0] >= 0);
+        assertTrue(eager[0] <= eager[1] && deferred[0] <= deferred[1]);
+    }
+
+    /*
+    Median time to the first frame and to responding, in that order
+     */
+    private long[] measure(boolean eagerStartup) {
+        long[] firstFrame = new long[RUNS];
+        long[] responsive = new long[RUNS];
+        for (int i = -WARMUP; i < RUNS; i++) {
+            StartupTimer timer = launch(eagerStartup);
+            if (i >= 0) {
+                firstFrame[i] = timer.getFirstFrame();
+                responsive[i] = timer.getResponsive();
+            }
+        }
+        Arrays.sort(firstFrame);
+        Arrays.sort(responsive);
+        return new long[]{firstFrame[RUNS / 2], responsive[RUNS / 2]};
+    }
+
+    private StartupTimer launch(boolean eagerStartup) {
+        Intent intent = new Intent(InstrumentationRegistry.getInstrumentation().getTargetContext(), MainActivity.class)
+                .putExtra(MainActivity.EXTRA_EAGER_STARTUP, eagerStartup);
+        final StartupTimer[] timer = new StartupTimer[1];
+        try (ActivityScenario<MainActivity> scenario = ActivityScenario.launch(intent)) {
+            long deadline = SystemClock.uptimeMillis() + 10000;
+            while (timer[0] == null || timer[0].getResponsive() < 0) {
+                assertTrue("Startup never finished", SystemClock.uptimeMillis() < deadline);
+                SystemClock.sleep(10);
+                scenario.onActivity(new ActivityScenario.ActivityAction<MainActivity>() {
+                    @Override
+                    public void perform(MainActivity activity) {
+                        timer[0] = activity.startupTimer;
+                    }
+                });
+            }
+        }
+        assertEquals(eagerStartup ? "eager" : "deferred", timer[0].getMode());
+        return timer[0];
+    }
+}
@@ -0,0 +1,532 @@
+package com.example.bookshelf;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.temple.audiobookplayer.AudioStorage;
+import edu.temple.audiobookplayer.SeekIndex;
+
+/*
+Downloads audiobooks to local files so they can be played with
+AudiobookService.play(File) instead of being streamed every time.
+
+A book is split into a few byte ranges that are fetched at the same time
+and written straight into their place in a ".part" file. How far each
+range has got is kept in a small ".state" file next to it, so a download
+that was interrupted (even by the process being killed) carries on from
+where it stopped instead of starting over.
+ */
+public class AudiobookDownloader {
+
+    private static final String PART_SUFFIX = ".part";
+    private static final String STATE_SUFFIX = ".state";
+
+    private static final int STATE_VERSION = 1;
+    private static final int STATE_HEADER_SIZE = 16;
+    private static final int STATE_CHUNK_SIZE = 24;
+
+    private static final long MIN_CHUNK_LENGTH = 512 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long PROGRESS_INTERVAL = 250;
+
+    private final File directory;
+    private final int connections;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ConcurrentHashMap<Integer, Download> downloads = new ConcurrentHashMap<>();
+    private volatile Listener listener;
+    private volatile AudioStorage storage;
+
+    public AudiobookDownloader(File directory, int connections) {
+        this.directory = directory;
+        this.connections = connections;
+    }
+
+    /*
+    The finished file for a book, or null if it hasn't been downloaded.
+    This is asked from the main thread, so once there is an AudioStorage
+    the answer comes from what it has recorded instead of the disk. A book
+    it doesn't know about yet is found by download() without fetching it.
+     */
+    public File getDownloadedFile(int bookId) {
+        AudioStorage storage = this.storage;
+        if (storage != null)
+            return storage.isDownloaded(bookId) ? bookFile(bookId) : null;
+        File file = bookFile(bookId);
+        return file.exists() ? file : null;
+    }
+
+    public boolean isDownloading(int bookId) {
+        return downloads.containsKey(bookId);
+    }
+
+    /*
+    Downloads keep going when an activity is recreated, so whoever
+    wants to hear about them registers here instead of per download
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /*
+    Finished downloads are recorded here, which may remove older books
+    (never one the player has open) to stay within the storage budget
+     */
+    public void setStorage(AudioStorage storage) {
+        this.storage = storage;
+    }
+
+    public void download(int bookId, String url) {
+        Download download = new Download(bookId, url);
+        if (downloads.putIfAbsent(bookId, download) == null)
+            executor.execute(download);
+    }
+
+    /*
+    Stops a download but keeps what was fetched so far for next time
+     */
+    public void cancel(int bookId) {
+        Download download = downloads.get(bookId);
+        if (download != null)
+            download.cancelled = true;
+    }
+
+    public void shutdown() {
+        for (Download download : downloads.values())
+            download.cancelled = true;
+        executor.shutdown();
+    }
+
+    private File bookFile(int bookId) {
+        return new File(directory, bookId + AudioStorage.DOWNLOAD_SUFFIX);
+    }
+
+    /*
+    Callbacks happen on download threads, not the main thread
+     */
+    public interface Listener {
+        void onProgress(int bookId, long downloaded, long total);
+        void onComplete(int bookId, File file);
+        void onError(int bookId, Exception e);
+    }
+
+    private class Download implements Runnable {
+
+        final int bookId;
+        final String url;
+        volatile boolean cancelled;
+
+        final AtomicLong downloaded = new AtomicLong();
+        long total, lastReport;
+
+        Download(int bookId, String url) {
+            this.bookId = bookId;
+            this.url = url;
+        }
+
+        @Override
+        public void run() {
+            try {
+                File file = fetch();
+                if (file != null) {
+                    index(file);
+                    record(file);
+                }
+                downloads.remove(bookId);
+                Listener listener = AudiobookDownloader.this.listener;
+                if (file != null && listener != null)
+                    listener.onComplete(bookId, file);
+            } catch (Exception e) {
+                downloads.remove(bookId);
+                Listener listener = AudiobookDownloader.this.listener;
+                if (listener != null)
+                    listener.onError(bookId, e);
+            }
+        }
+
+        /*
+        Every frame's place in the book is found now, while we're on a
+        download thread anyway, so the player can seek straight to it
+         */
+        private void index(File file) {
+            try {
+                SeekIndex.ensure(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void record(File file) {
+            AudioStorage storage = AudiobookDownloader.this.storage;
+            if (storage == null)
+                return;
+            storage.recordDownload(bookId, file.length());
+            storage.trim();
+            try {
+                storage.save();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private File fetch() throws Exception {
+            if (!directory.exists() && !directory.mkdirs())
+                throw new IOException("Could not create " + directory);
+
+            File book = bookFile(bookId);
+            if (book.exists())
+                return book;
+
+            File part = new File(directory, bookId + PART_SUFFIX);
+            File stateFile = new File(directory, bookId + STATE_SUFFIX);
+
+            RemoteFile remote = RemoteFile.head(url);
+            total = remote.length;
+
+            try (RandomAccessFile data = new RandomAccessFile(part, "rw");
+                 RandomAccessFile state = new RandomAccessFile(stateFile, "rw")) {
+                Chunk[] chunks = readState(state, remote);
+                // A state file that outlived its part file (which opening it just
+                // made again, empty) would resume into a file full of holes
+                if (chunks != null && data.length() < furthest(chunks))
+                    chunks = null;
+                if (chunks == null) {
+                    // Nothing we can resume from, start over
+                    data.setLength(0);
+                    chunks = plan(remote);
+                    data.setLength(remote.length);
+                    writeState(state, remote, chunks);
+                }
+
+                for (Chunk chunk : chunks)
+                    downloaded.addAndGet(chunk.done);
+                report(true);
+
+                FileChannel dataChannel = data.getChannel();
+                FileChannel stateChannel = state.getChannel();
+                ArrayList<Future<?>> running = new ArrayList<>();
+                for (Chunk chunk : chunks) {
+                    if (chunk.start + chunk.done < chunk.end)
+                        running.add(executor.submit(new ChunkFetcher(this, remote, chunk, dataChannel, stateChannel)));
+                }
+                // If one range fails, stop the others before the files are closed
+                Throwable failure = null;
+                for (Future<?> future : running) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        cancelled = true;
+                        if (failure == null)
+                            failure = e.getCause() instanceof RuntimeException && e.getCause().getCause() != null
+                                    ? e.getCause().getCause() : e.getCause();
+                    }
+                }
+                if (failure instanceof Exception)
+                    throw (Exception) failure;
+                if (failure != null)
+                    throw new IOException(failure);
+
+                if (cancelled)
+                    return null;
+                dataChannel.force(false);
+                report(true);
+            }
+
+            verify(part, remote);
+            if (!part.renameTo(book))
+                throw new IOException("Could not rename " + part);
+            stateFile.delete();
+            return book;
+        }
+
+        /*
+        Progress is reported at most every PROGRESS_INTERVAL milliseconds
+         */
+        void report(boolean force) {
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                if (!force && now - lastReport < PROGRESS_INTERVAL)
+                    return;
+                lastReport = now;
+            }
+            Listener listener = AudiobookDownloader.this.listener;
+            if (listener != null)
+                listener.onProgress(bookId, downloaded.get(), total);
+        }
+
+        private Chunk[] plan(RemoteFile remote) {
+            int count = remote.acceptsRanges
+                    ? (int) Math.max(1, Math.min(connections, remote.length / MIN_CHUNK_LENGTH))
+                    : 1;
+            Chunk[] chunks = new Chunk[count];
+            long chunkLength = remote.length / count;
+            for (int i = 0; i < count; i++) {
+                long start = i * chunkLength;
+                long end = i == count - 1 ? remote.length : start + chunkLength;
+                chunks[i] = new Chunk(i, start, end, 0);
+            }
+            return chunks;
+        }
+    }
+
+    /*
+    Fetches one byte range and writes it at its own position in the file.
+    Positional writes on a FileChannel don't move a shared file pointer,
+    so all ranges can write to the same channel at once.
+     */
+    private static class ChunkFetcher implements Runnable {
+
+        private final Download download;
+        private final RemoteFile remote;
+        private final Chunk chunk;
+        private final FileChannel data, state;
+
+        ChunkFetcher(Download download, RemoteFile remote, Chunk chunk, FileChannel data, FileChannel state) {
+            this.download = download;
+            this.remote = remote;
+            this.chunk = chunk;
+            this.data = data;
+            this.state = state;
+        }
+
+        @Override
+        public void run() {
+            try {
+                fetch();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void fetch() throws IOException {
+            long from = chunk.start + chunk.done;
+            HttpURLConnection connection = (HttpURLConnection) new URL(remote.url).openConnection();
+            if (remote.acceptsRanges) {
+                connection.setRequestProperty("Range", "bytes=" + from + "-" + (chunk.end - 1));
+                // If the file changed on the server we get the whole new file back instead of a range
+                if (remote.validator != null)
+                    connection.setRequestProperty("If-Range", remote.validator);
+            }
+
+            try {
+                int code = connection.getResponseCode();
+                if (remote.acceptsRanges && code != HttpURLConnection.HTTP_PARTIAL)
+                    throw new IOException("Expected a partial response but got " + code);
+                if (code / 100 != 2)
+                    throw new IOException("Download failed with " + code);
+
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                ByteBuffer doneBuffer = ByteBuffer.allocate(8);
+                long position = from;
+                try (InputStream in = connection.getInputStream()) {
+                    while (position < chunk.end && !download.cancelled) {
+                        int read = in.read(buffer.array(), buffer.position(), buffer.remaining());
+                        if (read < 0)
+                            break;
+                        buffer.position(buffer.position() + read);
+
+                        // Write whenever the buffer fills up so state never gets ahead of the data
+                        if (!buffer.hasRemaining()) {
+                            position += flush(buffer, position, doneBuffer);
+                            download.report(false);
+                        }
+                    }
+                    position += flush(buffer, position, doneBuffer);
+                    download.report(false);
+                }
+
+                if (!download.cancelled && position < chunk.end)
+                    throw new IOException("Connection closed early for range " + chunk.index);
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        private int flush(ByteBuffer buffer, long position, ByteBuffer doneBuffer) throws IOException {
+            buffer.flip();
+            int length = (int) Math.min(buffer.remaining(), chunk.end - position);
+            buffer.limit(length);
+            while (buffer.hasRemaining())
+                data.write(buffer, position + buffer.position());
+            buffer.clear();
+
+            chunk.done = position + length - chunk.start;
+            doneBuffer.clear();
+            doneBuffer.putLong(chunk.done).flip();
+            state.write(doneBuffer, STATE_HEADER_SIZE + chunk.index * STATE_CHUNK_SIZE + 16);
+
+            download.downloaded.addAndGet(length);
+            return length;
+        }
+    }
+
+    /*
+    How far into the file the furthest range has written
+     */
+    private static long furthest(Chunk[] chunks) {
+        long furthest = 0;
+        for (Chunk chunk : chunks)
+            furthest = Math.max(furthest, chunk.start + chunk.done);
+        return furthest;
+    }
+
+    private static void writeState(RandomAccessFile state, RemoteFile remote, Chunk[] chunks) throws IOException {
+        state.setLength(0);
+        state.writeInt(STATE_VERSION);
+        state.writeLong(remote.length);
+        state.writeInt(chunks.length);
+        for (Chunk chunk : chunks) {
+            state.writeLong(chunk.start);
+            state.writeLong(chunk.end);
+            state.writeLong(chunk.done);
+        }
+        state.writeBoolean(remote.acceptsRanges);
+        state.writeUTF(remote.validator == null ? "" : remote.validator);
+        state.getFD().sync();
+    }
+
+    /*
+    Returns the chunks of an earlier attempt if it can be resumed,
+    which means the server still has the same file and supports ranges
+     */
+    private static Chunk[] readState(RandomAccessFile state, RemoteFile remote) throws IOException {
+        if (state.length() < STATE_HEADER_SIZE || !remote.acceptsRanges)
+            return null;
+        state.seek(0);
+        if (state.readInt() != STATE_VERSION || state.readLong() != remote.length)
+            return null;
+
+        Chunk[] chunks = new Chunk[state.readInt()];
+        for (int i = 0; i < chunks.length; i++) {
+            long start = state.readLong(), end = state.readLong(), done = state.readLong();
+            chunks[i] = new Chunk(i, start, end, Math.max(0, Math.min(done, end - start)));
+        }
+        boolean acceptedRanges = state.readBoolean();
+        String validator = state.readUTF();
+        if (!acceptedRanges || remote.validator == null || !remote.validator.equals(validator))
+            return null;
+        return chunks;
+    }
+
+    /*
+    The file has to be the size the server said, and match the
+    server's checksum when it gives us one
+     */
+    private static void verify(File part, RemoteFile remote) throws IOException {
+        if (part.length() != remote.length)
+            throw new IOException("Downloaded " + part.length() + " bytes, expected " + remote.length);
+        if (remote.md5 == null)
+            return;
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (FileChannel channel = new FileInputStream(part).getChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (channel.read(buffer) > 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        if (!MessageDigest.isEqual(digest.digest(), remote.md5)) {
+            part.delete();
+            throw new IOException("Checksum mismatch for " + part.getName());
+        }
+    }
+
+    private static class Chunk {
+        final int index;
+        final long start, end;
+        volatile long done;
+
+        Chunk(int index, long start, long end, long done) {
+            this.index = index;
+            this.start = start;
+            this.end = end;
+            this.done = done;
+        }
+    }
+
+    /*
+    What the server tells us about the file before we download it
+     */
+    private static class RemoteFile {
+        String url;
+        long length;
+        boolean acceptsRanges;
+        String validator;
+        byte[] md5;
+
+        static RemoteFile head(String url) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestMethod("HEAD");
+            try {
+                int code = connection.getResponseCode();
+                if (code / 100 != 2)
+                    throw new IOException("Server returned " + code);
+
+                RemoteFile remote = new RemoteFile();
+                // Redirects (download.php does this) are followed, so ask the final URL for ranges
+                remote.url = connection.getURL().toString();
+                String length = connection.getHeaderField("Content-Length");
+                if (length == null)
+                    throw new IOException("Server did not report a length");
+                remote.length = Long.parseLong(length);
+                remote.acceptsRanges = "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"));
+                remote.validator = connection.getHeaderField("ETag");
+                if (remote.validator == null)
+                    remote.validator = connection.getHeaderField("Last-Modified");
+                String md5 = connection.getHeaderField("Content-MD5");
+                if (md5 != null)
+                    remote.md5 = decodeBase64(md5.trim());
+                return remote;
+            } finally {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /*
+    android.util.Base64 isn't available to local unit tests, and
+    java.util.Base64 needs API 26, so decode the header by hand
+     */
+    static byte[] decodeBase64(String text) {
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        int length = text.length();
+        while (length > 0 && text.charAt(length - 1) == '=')
+            length--;
+        byte[] out = new byte[length * 3 / 4];
+        int buffer = 0, bits = 0, index = 0;
+        for (int i = 0; i < length; i++) {
+            int value = alphabet.indexOf(text.charAt(i));
+            if (value < 0)
+                return null;
+            buffer = (buffer << 6) | value;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                out[index++] = (byte) (buffer >> bits);
+            }
+        }
+        return out;
+    }
+}
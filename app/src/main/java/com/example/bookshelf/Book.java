@@ -93,10 +93,11 @@ public class Book implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        dest.writeInt(id);
-        dest.writeString(title);
-        dest.writeString(author);
-        dest.writeString(coverUrl);
-        dest.writeInt(duration);
+        // Getters rather than fields, so books backed by a BookCatalog parcel the same way
+        dest.writeInt(getId());
+        dest.writeString(getTitle());
+        dest.writeString(getAuthor());
+        dest.writeString(getCoverUrl());
+        dest.writeInt(getDuration());
     }
 }
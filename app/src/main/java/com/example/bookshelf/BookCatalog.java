@@ -0,0 +1,311 @@
+package com.example.bookshelf;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+Stores a large number of books in a handful of arrays instead of one
+object (and three strings) per book.
+
+Ids and durations are plain int arrays. Every distinct author is stored
+once and books refer to it by number. Titles are copied into one shared
+pool of UTF-8 bytes, and so are cover urls, minus their directory, which
+is stored once like an author. Books are only ever added, so a row never
+changes once written.
+
+Adding is synchronized, but reading a row isn't. The arrays are volatile
+so a reader always sees a complete copy when one is swapped for a bigger one.
+
+get() hands out a Book that reads its fields from the catalog, so it can
+go anywhere a Book can (an adapter, a Parcel) without copying the data.
+ */
+public class BookCatalog {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private volatile int size;
+    private volatile int[] ids, durations, authors, coverPrefixes;
+
+    // Offset and length of each row's title and cover file name in the pool
+    private volatile int[] titleOffsets, titleLengths, coverOffsets, coverLengths;
+    private volatile byte[] pool = new byte[1024];
+    private int poolSize;
+
+    private final StringTable authorTable = new StringTable();
+    private final StringTable prefixTable = new StringTable();
+
+    // Open addressing table from book id to the newest row with that id
+    private int[] idTable = new int[64];
+    private int idTableCount;
+
+    public BookCatalog() {
+        this(64);
+    }
+
+    public BookCatalog(int initialCapacity) {
+        int capacity = Math.max(1, initialCapacity);
+        ids = new int[capacity];
+        durations = new int[capacity];
+        authors = new int[capacity];
+        coverPrefixes = new int[capacity];
+        titleOffsets = new int[capacity];
+        titleLengths = new int[capacity];
+        coverOffsets = new int[capacity];
+        coverLengths = new int[capacity];
+        Arrays.fill(idTable, -1);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /*
+    Appends a book and returns its row
+     */
+    public synchronized int add(Book book) {
+        if (size == ids.length)
+            grow();
+        int row = size;
+
+        ids[row] = book.getId();
+        durations[row] = book.getDuration();
+        authors[row] = authorTable.intern(book.getAuthor());
+
+        String title = book.getTitle();
+        if (title == null) {
+            titleOffsets[row] = 0;
+            titleLengths[row] = -1;
+        } else {
+            byte[] bytes = title.getBytes(UTF_8);
+            titleOffsets[row] = append(bytes);
+            titleLengths[row] = bytes.length;
+        }
+
+        String coverUrl = book.getCoverUrl();
+        if (coverUrl == null) {
+            coverPrefixes[row] = -1;
+            coverOffsets[row] = 0;
+            coverLengths[row] = -1;
+        } else {
+            int split = coverUrl.lastIndexOf('/') + 1;
+            coverPrefixes[row] = prefixTable.intern(coverUrl.substring(0, split));
+            byte[] bytes = coverUrl.substring(split).getBytes(UTF_8);
+            coverOffsets[row] = append(bytes);
+            coverLengths[row] = bytes.length;
+        }
+
+        putId(ids[row], row);
+        // Publishing the new size makes the whole row visible to readers
+        size = row + 1;
+        return row;
+    }
+
+    public void addAll(Iterable<Book> books) {
+        for (Book book : books)
+            add(book);
+    }
+
+    /*
+    A lightweight Book that reads from this row
+     */
+    public Book get(int row) {
+        if (row < 0 || row >= size)
+            throw new IndexOutOfBoundsException("Row " + row + " of " + size());
+        return new View(this, row);
+    }
+
+    /*
+    The newest row holding a book with this id, or -1
+     */
+    public synchronized int indexOf(int id) {
+        int mask = idTable.length - 1;
+        for (int slot = mix(id) & mask; idTable[slot] != -1; slot = (slot + 1) & mask)
+            if (ids[idTable[slot]] == id)
+                return idTable[slot];
+        return -1;
+    }
+
+    public int getId(int row) {
+        return ids[row];
+    }
+
+    public int getDuration(int row) {
+        return durations[row];
+    }
+
+    public String getTitle(int row) {
+        int length = titleLengths[row];
+        return length < 0 ? null : new String(pool, titleOffsets[row], length, UTF_8);
+    }
+
+    public String getAuthor(int row) {
+        return authorTable.get(authors[row]);
+    }
+
+    public String getCoverUrl(int row) {
+        int length = coverLengths[row];
+        if (length < 0)
+            return null;
+        return prefixTable.get(coverPrefixes[row]) + new String(pool, coverOffsets[row], length, UTF_8);
+    }
+
+    /*
+    True if both books are views of the same row, in which case
+    nothing about them can differ
+     */
+    static boolean sameEntry(Book a, Book b) {
+        return a instanceof View && b instanceof View
+                && ((View) a).catalog == ((View) b).catalog && ((View) a).row == ((View) b).row;
+    }
+
+    private int append(byte[] bytes) {
+        byte[] pool = this.pool;
+        if (poolSize + bytes.length > pool.length) {
+            pool = Arrays.copyOf(pool, Math.max(pool.length + pool.length / 2, poolSize + bytes.length));
+            this.pool = pool;
+        }
+        System.arraycopy(bytes, 0, pool, poolSize, bytes.length);
+        int offset = poolSize;
+        poolSize += bytes.length;
+        return offset;
+    }
+
+    private void grow() {
+        int capacity = ids.length * 2;
+        ids = Arrays.copyOf(ids, capacity);
+        durations = Arrays.copyOf(durations, capacity);
+        authors = Arrays.copyOf(authors, capacity);
+        coverPrefixes = Arrays.copyOf(coverPrefixes, capacity);
+        titleOffsets = Arrays.copyOf(titleOffsets, capacity);
+        titleLengths = Arrays.copyOf(titleLengths, capacity);
+        coverOffsets = Arrays.copyOf(coverOffsets, capacity);
+        coverLengths = Arrays.copyOf(coverLengths, capacity);
+    }
+
+    private void putId(int id, int row) {
+        int mask = idTable.length - 1;
+        int slot = mix(id) & mask;
+        while (idTable[slot] != -1) {
+            if (ids[idTable[slot]] == id) {
+                idTable[slot] = row;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        idTable[slot] = row;
+
+        // Kept at most half full so probes stay short
+        if (++idTableCount * 2 > idTable.length) {
+            int[] old = idTable;
+            idTable = new int[old.length * 2];
+            Arrays.fill(idTable, -1);
+            mask = idTable.length - 1;
+            for (int entry : old) {
+                if (entry == -1)
+                    continue;
+                slot = mix(ids[entry]) & mask;
+                while (idTable[slot] != -1)
+                    slot = (slot + 1) & mask;
+                idTable[slot] = entry;
+            }
+        }
+    }
+
+    private static int mix(int id) {
+        int hash = id * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /*
+    Each distinct string once, numbered in the order first seen
+     */
+    private static class StringTable {
+        private final HashMap<String, Integer> numbers = new HashMap<>();
+        private volatile String[] strings = new String[16];
+        private int count;
+
+        int intern(String string) {
+            if (string == null)
+                return -1;
+            Integer number = numbers.get(string);
+            if (number == null) {
+                if (count == strings.length)
+                    strings = Arrays.copyOf(strings, count * 2);
+                number = count;
+                strings[count++] = string;
+                numbers.put(string, number);
+            }
+            return number;
+        }
+
+        String get(int number) {
+            return number < 0 ? null : strings[number];
+        }
+    }
+
+    /*
+    A Book backed by one row of a catalog. Rows never change, so neither
+    does the view. It is read only.
+     */
+    private static class View extends Book {
+        final BookCatalog catalog;
+        final int row;
+
+        View(BookCatalog catalog, int row) {
+            super(0, null, null, null, 0);
+            this.catalog = catalog;
+            this.row = row;
+        }
+
+        @Override
+        public int getId() {
+            return catalog.getId(row);
+        }
+
+        @Override
+        public String getTitle() {
+            return catalog.getTitle(row);
+        }
+
+        @Override
+        public String getAuthor() {
+            return catalog.getAuthor(row);
+        }
+
+        @Override
+        public String getCoverUrl() {
+            return catalog.getCoverUrl(row);
+        }
+
+        @Override
+        public int getDuration() {
+            return catalog.getDuration(row);
+        }
+
+        @Override
+        public void setId(int id) {
+            throw new UnsupportedOperationException("Catalog books are read only");
+        }
+
+        @Override
+        public void setTitle(String title) {
+            throw new UnsupportedOperationException("Catalog books are read only");
+        }
+
+        @Override
+        public void setAuthor(String author) {
+            throw new UnsupportedOperationException("Catalog books are read only");
+        }
+
+        @Override
+        public void setCoverUrl(String coverUrl) {
+            throw new UnsupportedOperationException("Catalog books are read only");
+        }
+
+        @Override
+        public void setDuration(int duration) {
+            throw new UnsupportedOperationException("Catalog books are read only");
+        }
+    }
+}
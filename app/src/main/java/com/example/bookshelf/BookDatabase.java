@@ -0,0 +1,218 @@
+package com.example.bookshelf;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/*
+The full catalog in SQLite, kept up to date by CatalogSync.
+
+Books are keyed by book_id as an INTEGER PRIMARY KEY, which makes the id
+the table's own B-tree key, so looking a book up by id is one index
+walk. Titles and authors are also in an FTS4 table, so a search is a
+full text index lookup rather than a scan, and every word of the query
+matches as a prefix, the same as BookIndex does in memory.
+
+The FTS table stores no text of its own (content="books") and triggers
+keep it in step with the books table.
+
+Everything here touches the disk, so none of it runs on the main thread.
+ */
+public class BookDatabase extends SQLiteOpenHelper implements CatalogSync.Store {
+
+    private static final String NAME = "books.db";
+    private static final int VERSION = 1;
+
+    private static BookDatabase instance;
+
+    public static synchronized BookDatabase get(Context context) {
+        if (instance == null)
+            instance = new BookDatabase(context.getApplicationContext());
+        return instance;
+    }
+
+    private BookDatabase(Context context) {
+        super(context, NAME, null, VERSION);
+        // Searches can read while a sync batch is being written
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE books (book_id INTEGER PRIMARY KEY, title TEXT, author TEXT,"
+                + " cover_url TEXT, duration INTEGER, hash INTEGER)");
+        db.execSQL("CREATE VIRTUAL TABLE books_fts USING fts4(content=\"books\", title, author)");
+
+        db.execSQL("CREATE TRIGGER books_before_update BEFORE UPDATE ON books BEGIN"
+                + " DELETE FROM books_fts WHERE docid = old.book_id; END");
+        db.execSQL("CREATE TRIGGER books_before_delete BEFORE DELETE ON books BEGIN"
+                + " DELETE FROM books_fts WHERE docid = old.book_id; END");
+        db.execSQL("CREATE TRIGGER books_after_update AFTER UPDATE ON books BEGIN"
+                + " INSERT INTO books_fts (docid, title, author) VALUES (new.book_id, new.title, new.author); END");
+        db.execSQL("CREATE TRIGGER books_after_insert AFTER INSERT ON books BEGIN"
+                + " INSERT INTO books_fts (docid, title, author) VALUES (new.book_id, new.title, new.author); END");
+
+        db.execSQL("CREATE TABLE sync_state (name TEXT PRIMARY KEY, value INTEGER)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Everything here can be synced again, so start over
+        db.execSQL("DROP TABLE IF EXISTS books_fts");
+        db.execSQL("DROP TABLE IF EXISTS books");
+        db.execSQL("DROP TABLE IF EXISTS sync_state");
+        onCreate(db);
+    }
+
+    /*
+    Books whose title or author has words starting with every word of the query
+     */
+    public ArrayList<Book> search(String query, int maxResults) {
+        ArrayList<Book> books = new ArrayList<>();
+        String match = matchExpression(query);
+        if (match.isEmpty())
+            return books;
+
+        Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT b.book_id, b.title, b.author, b.cover_url, b.duration"
+                        + " FROM books_fts JOIN books b ON b.book_id = books_fts.docid"
+                        + " WHERE books_fts MATCH ? ORDER BY b.title LIMIT " + maxResults,
+                new String[]{match});
+        try {
+            while (cursor.moveToNext())
+                books.add(new Book(cursor.getInt(0), cursor.getString(1), cursor.getString(2),
+                        cursor.getString(3), cursor.getInt(4)));
+        } finally {
+            cursor.close();
+        }
+        return books;
+    }
+
+    public Book get(int id) {
+        Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT book_id, title, author, cover_url, duration FROM books WHERE book_id = ?",
+                new String[]{Integer.toString(id)});
+        try {
+            if (!cursor.moveToNext())
+                return null;
+            return new Book(cursor.getInt(0), cursor.getString(1), cursor.getString(2),
+                    cursor.getString(3), cursor.getInt(4));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+    Each word of the query as a prefix term. Anything that isn't a letter
+    or digit is left out, so user input can't form FTS operators.
+     */
+    static String matchExpression(String query) {
+        StringBuilder match = new StringBuilder();
+        for (String word : SearchCache.normalize(query).split(" ")) {
+            StringBuilder term = new StringBuilder();
+            for (int i = 0; i < word.length(); i++) {
+                char c = word.charAt(i);
+                if (Character.isLetterOrDigit(c))
+                    term.append(c);
+            }
+            if (term.length() == 0)
+                continue;
+            if (match.length() > 0)
+                match.append(' ');
+            match.append(term.toString().toLowerCase(Locale.US)).append('*');
+        }
+        return match.toString();
+    }
+
+    @Override
+    public HashMap<Integer, Long> getHashes() {
+        HashMap<Integer, Long> hashes = new HashMap<>();
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT book_id, hash FROM books", null);
+        try {
+            while (cursor.moveToNext())
+                hashes.put(cursor.getInt(0), cursor.getLong(1));
+        } finally {
+            cursor.close();
+        }
+        return hashes;
+    }
+
+    /*
+    One transaction per batch. An update is tried before an insert rather
+    than INSERT OR REPLACE, because REPLACE deletes the old row without
+    running the delete trigger and would leave a stale FTS entry behind.
+     */
+    @Override
+    public void apply(List<Book> changed, List<Integer> removed) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            SQLiteStatement update = db.compileStatement(
+                    "UPDATE books SET title = ?, author = ?, cover_url = ?, duration = ?, hash = ? WHERE book_id = ?");
+            SQLiteStatement insert = db.compileStatement(
+                    "INSERT INTO books (title, author, cover_url, duration, hash, book_id) VALUES (?, ?, ?, ?, ?, ?)");
+            SQLiteStatement delete = db.compileStatement("DELETE FROM books WHERE book_id = ?");
+
+            for (Book book : changed) {
+                bind(update, book);
+                if (update.executeUpdateDelete() == 0) {
+                    bind(insert, book);
+                    insert.executeInsert();
+                }
+            }
+            for (int id : removed) {
+                delete.bindLong(1, id);
+                delete.executeUpdateDelete();
+            }
+            update.close();
+            insert.close();
+            delete.close();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static void bind(SQLiteStatement statement, Book book) {
+        statement.clearBindings();
+        bindString(statement, 1, book.getTitle());
+        bindString(statement, 2, book.getAuthor());
+        bindString(statement, 3, book.getCoverUrl());
+        statement.bindLong(4, book.getDuration());
+        statement.bindLong(5, CatalogSync.hash(book));
+        statement.bindLong(6, book.getId());
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value == null)
+            statement.bindNull(index);
+        else
+            statement.bindString(index, value);
+    }
+
+    @Override
+    public long getLastSync() {
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT value FROM sync_state WHERE name = 'last_sync'", null);
+        try {
+            return cursor.moveToNext() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public void setLastSync(long time) {
+        SQLiteStatement statement = getWritableDatabase().compileStatement(
+                "INSERT OR REPLACE INTO sync_state (name, value) VALUES ('last_sync', ?)");
+        statement.bindLong(1, time);
+        statement.executeInsert();
+        statement.close();
+    }
+}
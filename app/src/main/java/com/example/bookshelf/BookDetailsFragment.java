@@ -12,8 +12,6 @@ import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.TextView;
 
-import com.squareup.picasso.Picasso;
-
 import java.util.HashMap;
 
 
@@ -24,9 +22,10 @@ public class BookDetailsFragment extends Fragment {
 
     TextView titleTextView, authorTextView;
     ImageView coverImageView;
-    Button playButton;
+    Button playButton, downloadButton;
 
     private PlayButtonPressedInterface parentActivity;
+    private DownloadButtonPressedInterface downloadListener;
 
     public BookDetailsFragment() {}
 
@@ -52,8 +51,9 @@ public class BookDetailsFragment extends Fragment {
          This fragment needs to communicate with its parent activity
          so we verify that the activity implemented our known interface
          */
-        if (context instanceof PlayButtonPressedInterface) {
+        if (context instanceof PlayButtonPressedInterface && context instanceof DownloadButtonPressedInterface) {
             parentActivity = (PlayButtonPressedInterface) context;
+            downloadListener = (DownloadButtonPressedInterface) context;
         } else {
             throw new RuntimeException("Please implement the required interface(s)");
         }
@@ -76,6 +76,7 @@ public class BookDetailsFragment extends Fragment {
         authorTextView = v.findViewById(R.id.authorTextView);
         coverImageView = v.findViewById(R.id.coverImageView);
         playButton = v.findViewById(R.id.playButton);
+        downloadButton = v.findViewById(R.id.downloadButton);
 
         /*
         Because this fragment can be created with or without
@@ -91,6 +92,14 @@ public class BookDetailsFragment extends Fragment {
                 parentActivity.playButtonPressed(book);
             }
         });
+
+        downloadButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if (book != null)
+                    downloadListener.downloadButtonPressed(book);
+            }
+        });
         return v;
     }
 
@@ -104,12 +113,31 @@ public class BookDetailsFragment extends Fragment {
         titleTextView.setText(book.getTitle());
         authorTextView.setText(book.getAuthor());
         // Picasso simplifies image loading from the web.
-        // No need to download separately.
-        Picasso.get().load(book.getCoverUrl()).into(coverImageView);
+        // No need to download separately, and it is decoded at the size of the view.
+        CoverLoader.loadCover(getContext(), book, coverImageView);
         this.book = book;
+        downloadButton.setText(R.string.download_button);
+    }
+
+    /*
+    The activity keeps us up to date on downloads, but we only
+    show progress for the book that is currently displayed
+     */
+    public void showDownloadProgress(int bookId, int percent) {
+        if (book != null && book.getId() == bookId && downloadButton != null)
+            downloadButton.setText(getString(R.string.download_progress, percent));
+    }
+
+    public void showDownloadComplete(int bookId) {
+        if (book != null && book.getId() == bookId && downloadButton != null)
+            downloadButton.setText(R.string.download_complete);
     }
 
     interface PlayButtonPressedInterface {
         void playButtonPressed(Book book);
     }
+
+    interface DownloadButtonPressedInterface {
+        void downloadButtonPressed(Book book);
+    }
 }
@@ -0,0 +1,518 @@
+package com.example.bookshelf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/*
+Local catalog of every book the app has seen, searchable without the network.
+
+Each book gets a document number in the order it was added. Words from the
+title and author point to the documents that contain them (an inverted index),
+and because the words are kept sorted, every word starting with a prefix can
+be found as one contiguous range (a prefix index).
+
+The books themselves live in a BookCatalog, so a large catalog costs a few
+arrays rather than an object per book, and searches return views into it.
+
+The catalog holds at most `capacity` books. When it is full the oldest books
+are dropped. Dropped and replaced books are only marked as removed, and the
+index is rebuilt once enough of them pile up.
+
+For misspelled searches, every distinct word is also broken into trigrams
+(three letter pieces), and each trigram points to the words containing it
+and where in the word it is. A misspelled word still shares most of its
+trigrams with the right one, in about the same places, so counting shared
+trigrams narrows tens of thousands of words down to a few candidates, and
+only those are compared letter by letter (edit distance).
+ */
+public class BookIndex {
+
+    private static final int TITLE = 0, AUTHOR = 1;
+
+    // How much a match counts for in fuzzySearch(), by where the word is
+    private static final float TITLE_WEIGHT = 1f, AUTHOR_WEIGHT = 0.8f;
+    // Matching the start of a longer word counts for a bit less than the whole word
+    private static final float PREFIX_WEIGHT = 0.9f;
+
+    // Marks the ends of a word in its trigrams, so the first and last letters count too
+    private static final char WORD_END = 0;
+
+    private final int capacity;
+
+    // Document numbers are rows in the catalog
+    private BookCatalog documents = new BookCatalog();
+    private BitSet removed = new BitSet();
+    private int oldestDocument, liveCount, removedCount;
+
+    private final TreeMap<String, Postings> postingsByWord = new TreeMap<>();
+
+    /*
+    Every distinct word by number, and for each trigram the words containing
+    it, as the word number shifted left 8 with the trigram's place in the word
+     */
+    private final ArrayList<Postings> vocabulary = new ArrayList<>();
+    private final HashMap<Long, IntList> wordsByTrigram = new HashMap<>();
+
+    /*
+    Scratch space for fuzzySearch(), one slot per word or document. Every
+    slot is back to zero when a search ends, so searches allocate very little.
+     */
+    private int[] sharedTrigrams = new int[0], lastCounted = new int[0];
+    private int[] termsMatched = new int[0];
+    private float[] scores = new float[0], termScores = new float[0];
+    private final int[][] distanceRows = new int[3][];
+
+    public BookIndex(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public synchronized int size() {
+        return liveCount;
+    }
+
+    public synchronized void addAll(Iterable<Book> books) {
+        for (Book book : books)
+            add(book);
+    }
+
+    /*
+    Adding a book that is already in the catalog replaces the old copy
+    and counts as seeing it again, so it won't be the next one dropped
+     */
+    public synchronized void add(Book book) {
+        int existing = documents.indexOf(book.getId());
+        if (existing >= 0)
+            remove(existing);
+
+        while (liveCount >= capacity)
+            removeOldest();
+
+        if (removedCount > liveCount / 4 && removedCount > 64)
+            compact();
+
+        int document = documents.add(book);
+        liveCount++;
+        index(document, book);
+    }
+
+    /*
+    Every word in the query has to match the start of a word in the
+    title or author. The most recently seen books come first.
+     */
+    public synchronized ArrayList<Book> search(String query, int maxResults) {
+        ArrayList<Book> results = new ArrayList<>();
+        String[] terms = tokenize(query);
+        if (terms.length == 0)
+            return results;
+
+        BitSet matches = null;
+        for (String term : terms) {
+            BitSet termMatches = new BitSet(documents.size());
+            SortedMap<String, Postings> range = postingsByWord.subMap(term, term + Character.MAX_VALUE);
+            for (Postings postings : range.values())
+                postings.addTo(termMatches);
+
+            if (matches == null)
+                matches = termMatches;
+            else
+                matches.and(termMatches);
+            if (matches.isEmpty())
+                return results;
+        }
+
+        for (int document = matches.length() - 1; document >= 0 && results.size() < maxResults;
+             document = matches.previousSetBit(document - 1)) {
+            if (!removed.get(document))
+                results.add(documents.get(document));
+        }
+        return results;
+    }
+
+    /*
+    Like search(), but forgiving of typos. Every word in the query has to
+    be close to a word in the title or author: the same but for one edit
+    (a letter added, dropped, changed or two swapped) in words of three to
+    five letters, and two edits in longer words, unless there are words
+    only one edit away. The last word may also be the start of a word,
+    since it may not be finished being typed.
+
+    Results are ranked by how close each word is and whether it was found
+    in the title or the author, best first.
+     */
+    public synchronized ArrayList<Book> fuzzySearch(String query, int maxResults) {
+        ArrayList<Book> results = new ArrayList<>();
+        String[] terms = tokenize(query);
+        if (terms.length == 0)
+            return results;
+
+        int documentCount = documents.size();
+        if (scores.length < documentCount) {
+            int length = Math.max(64, documentCount + documentCount / 2);
+            scores = new float[length];
+            termScores = new float[length];
+            termsMatched = new int[length];
+        }
+
+        // Documents matching the first term. Every other document is left alone.
+        IntList candidates = new IntList();
+        IntList termDocuments = new IntList();
+        for (int t = 0; t < terms.length; t++) {
+            boolean prefix = t == terms.length - 1;
+            IntList documentsForTerm = t == 0 ? candidates : termDocuments;
+            documentsForTerm.clear();
+
+            for (WordMatch match : matchWords(terms[t], prefix)) {
+                Postings postings = match.postings;
+                for (int i = 0; i < postings.size; i++) {
+                    int document = postings.documents[i] >>> 1;
+                    if (removed.get(document) || termsMatched[document] != t)
+                        continue;
+                    float score = match.similarity
+                            * ((postings.documents[i] & 1) == TITLE ? TITLE_WEIGHT : AUTHOR_WEIGHT);
+                    if (termScores[document] == 0)
+                        documentsForTerm.add(document);
+                    if (score > termScores[document])
+                        termScores[document] = score;
+                }
+            }
+
+            for (int i = 0; i < documentsForTerm.size; i++) {
+                int document = documentsForTerm.values[i];
+                scores[document] += termScores[document];
+                termScores[document] = 0;
+                termsMatched[document] = t + 1;
+            }
+        }
+
+        // Best score first, and the most recently seen book first among equals
+        long[] ranked = new long[candidates.size];
+        int count = 0;
+        for (int i = 0; i < candidates.size; i++) {
+            int document = candidates.values[i];
+            if (termsMatched[document] == terms.length)
+                ranked[count++] = (long) Float.floatToIntBits(scores[document]) << 32 | document;
+            scores[document] = 0;
+            termsMatched[document] = 0;
+        }
+        Arrays.sort(ranked, 0, count);
+        for (int i = count - 1; i >= 0 && results.size() < maxResults; i--)
+            results.add(documents.get((int) ranked[i]));
+        return results;
+    }
+
+    /*
+    Words within reach of a query term, and how close each one is (1 for
+    the same word). Candidates are the words sharing enough trigrams with
+    the term: each edit changes at most three trigrams (four for two
+    letters swapped) and moves the rest by at most one place, so a word
+    within maxEdits shares all but 4 * maxEdits of them, each no more than
+    maxEdits places from where it is in the term.
+     */
+    private ArrayList<WordMatch> matchWords(String term, boolean prefix) {
+        ArrayList<WordMatch> matches = new ArrayList<>();
+        int maxEdits = maxEdits(term.length(), prefix);
+
+        if (sharedTrigrams.length < vocabulary.size()) {
+            sharedTrigrams = new int[Math.max(64, vocabulary.size() + vocabulary.size() / 2)];
+            lastCounted = new int[sharedTrigrams.length];
+        }
+
+        /*
+        The trigrams that run past the end of the term are left out for a
+        prefix, since a longer word carries on there instead
+         */
+        long[] trigrams = trigrams(term);
+        int trigramCount = prefix ? term.length() : trigrams.length;
+        IntList touched = new IntList();
+        for (int g = 0; g < trigramCount; g++) {
+            IntList words = wordsByTrigram.get(trigrams[g]);
+            if (words == null)
+                continue;
+            for (int i = 0; i < words.size; i++) {
+                int entry = words.values[i];
+                int word = entry >>> 8;
+                // Each trigram of the term counts once per word, and only near the same place
+                if (lastCounted[word] == g + 1 || Math.abs((entry & 0xFF) - g) > maxEdits)
+                    continue;
+                lastCounted[word] = g + 1;
+                if (sharedTrigrams[word]++ == 0)
+                    touched.add(word);
+            }
+        }
+
+        /*
+        Words one edit away are looked for first. Words two edits away can
+        share far fewer trigrams with the term, so there are many more of
+        them to check, and that is only done if nothing closer turned up.
+         */
+        int closeEdits = Math.min(maxEdits, 1);
+        int neededClose = Math.max(1, trigramCount - 4 * closeEdits);
+        int needed = Math.max(1, trigramCount - 4 * maxEdits);
+        IntList further = new IntList();
+        for (int i = 0; i < touched.size; i++) {
+            int number = touched.values[i];
+            int shared = sharedTrigrams[number];
+            sharedTrigrams[number] = 0;
+            lastCounted[number] = 0;
+            if (shared < needed)
+                continue;
+            if ((shared < neededClose || !addMatch(matches, term, number, closeEdits, prefix)) && maxEdits > closeEdits)
+                further.add(number);
+        }
+        if (matches.isEmpty())
+            for (int i = 0; i < further.size; i++)
+                addMatch(matches, term, further.values[i], maxEdits, prefix);
+        return matches;
+    }
+
+    private boolean addMatch(ArrayList<WordMatch> matches, String term, int number, int maxEdits, boolean prefix) {
+        Postings postings = vocabulary.get(number);
+        String word = postings.word;
+        int distance = editDistance(term, word, maxEdits, prefix, distanceRows);
+        if (distance > maxEdits)
+            return false;
+        float similarity = 1f - (float) distance / (term.length() + 1);
+        // Only the start of the word matched
+        if (prefix && editDistance(term, word, maxEdits, false, distanceRows) > distance)
+            similarity *= PREFIX_WEIGHT;
+        matches.add(new WordMatch(postings, similarity));
+        return true;
+    }
+
+    /*
+    Short words are easy to mistake for other words, so they get fewer
+    edits, and a prefix fewer still, since it matches so many words
+     */
+    static int maxEdits(int length, boolean prefix) {
+        if (prefix)
+            return length < 5 ? 0 : length < 8 ? 1 : 2;
+        return length < 3 ? 0 : length < 6 ? 1 : 2;
+    }
+
+    /*
+    Optimal string alignment distance (Levenshtein plus swapping two
+    neighbouring letters) from term to word, or to the closest start of
+    word for a prefix. Gives up as soon as it must be more than maxEdits,
+    and returns maxEdits + 1 in that case.
+
+    Only the cells within maxEdits of the diagonal are worked out, since
+    any path through the others already costs too much.
+     */
+    static int editDistance(String term, String word, int maxEdits, boolean prefix) {
+        return editDistance(term, word, maxEdits, prefix, new int[3][]);
+    }
+
+    /*
+    rows holds the three rows being worked on, kept between calls so
+    checking thousands of candidates doesn't make thousands of arrays
+     */
+    private static int editDistance(String term, String word, int maxEdits, boolean prefix, int[][] rows) {
+        int n = term.length(), m = word.length();
+        int tooFar = maxEdits + 1;
+        if (!prefix && Math.abs(n - m) > maxEdits || m < n - maxEdits)
+            return tooFar;
+
+        if (rows[0] == null || rows[0].length < m + 2)
+            for (int r = 0; r < rows.length; r++)
+                rows[r] = new int[Math.max(32, m + 2)];
+        int[] beforePrevious = rows[0], previous = rows[1], current = rows[2];
+        for (int j = 0; j <= m; j++)
+            previous[j] = j <= maxEdits ? j : tooFar;
+
+        for (int i = 1; i <= n; i++) {
+            int first = Math.max(1, i - maxEdits), last = Math.min(m, i + maxEdits);
+            current[first - 1] = first == 1 ? i : tooFar;
+            current[last + 1] = tooFar;
+            int rowMin = current[first - 1];
+            char c = term.charAt(i - 1);
+            for (int j = first; j <= last; j++) {
+                int distance = Math.min(previous[j - 1] + (c == word.charAt(j - 1) ? 0 : 1),
+                        Math.min(previous[j], current[j - 1]) + 1);
+                if (i > 1 && j > 1 && c == word.charAt(j - 2) && term.charAt(i - 2) == word.charAt(j - 1))
+                    distance = Math.min(distance, beforePrevious[j - 2] + 1);
+                current[j] = Math.min(distance, tooFar);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (rowMin > maxEdits)
+                return tooFar;
+            int[] recycled = beforePrevious;
+            beforePrevious = previous;
+            previous = current;
+            current = recycled;
+        }
+
+        int distance = Math.abs(n - m) <= maxEdits ? previous[m] : tooFar;
+        if (prefix)
+            for (int j = Math.max(0, n - maxEdits); j <= Math.min(m, n + maxEdits); j++)
+                distance = Math.min(distance, previous[j]);
+        return distance;
+    }
+
+    /*
+    The word's trigrams in order, with two WORD_END marks at each end,
+    so a word of n letters has n + 2 of them. Each one is packed into a long.
+     */
+    static long[] trigrams(String word) {
+        long[] trigrams = new long[word.length() + 2];
+        char a = WORD_END, b = WORD_END;
+        for (int i = 0; i < trigrams.length; i++) {
+            char c = i < word.length() ? word.charAt(i) : WORD_END;
+            trigrams[i] = (long) a << 32 | (long) b << 16 | c;
+            a = b;
+            b = c;
+        }
+        return trigrams;
+    }
+
+    public synchronized Book get(int id) {
+        int document = documents.indexOf(id);
+        return document < 0 || removed.get(document) ? null : documents.get(document);
+    }
+
+    static String[] tokenize(String text) {
+        if (text == null)
+            return new String[0];
+        ArrayList<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                words.add(text.substring(start, i).toLowerCase(Locale.US));
+                start = -1;
+            }
+        }
+        return words.toArray(new String[0]);
+    }
+
+    private void index(int document, Book book) {
+        String[] titleWords = tokenize(book.getTitle());
+        for (String word : words(book))
+            postingsFor(word).add(document, Arrays.asList(titleWords).contains(word) ? TITLE : AUTHOR);
+    }
+
+    private static ArrayList<String> words(Book book) {
+        ArrayList<String> words = new ArrayList<>();
+        for (String word : tokenize(book.getTitle()))
+            if (!words.contains(word))
+                words.add(word);
+        for (String word : tokenize(book.getAuthor()))
+            if (!words.contains(word))
+                words.add(word);
+        return words;
+    }
+
+    private Postings postingsFor(String word) {
+        Postings postings = postingsByWord.get(word);
+        if (postings == null) {
+            postings = new Postings(word, vocabulary.size());
+            postingsByWord.put(word, postings);
+            vocabulary.add(postings);
+
+            long[] trigrams = trigrams(word);
+            for (int g = 0; g < trigrams.length; g++) {
+                IntList words = wordsByTrigram.get(trigrams[g]);
+                if (words == null) {
+                    words = new IntList();
+                    wordsByTrigram.put(trigrams[g], words);
+                }
+                words.add(postings.number << 8 | Math.min(g, 0xFF));
+            }
+        }
+        return postings;
+    }
+
+    private void remove(int document) {
+        if (removed.get(document))
+            return;
+        removed.set(document);
+        liveCount--;
+        removedCount++;
+    }
+
+    private void removeOldest() {
+        oldestDocument = removed.nextClearBit(oldestDocument);
+        remove(oldestDocument);
+    }
+
+    /*
+    Renumber the remaining books from 0 and rebuild the word lists
+    so removed books no longer take up any space
+     */
+    private void compact() {
+        BookCatalog live = new BookCatalog(Math.max(64, Integer.highestOneBit(Math.max(1, liveCount)) * 2));
+        for (int document = oldestDocument; document < documents.size(); document++)
+            if (!removed.get(document))
+                live.add(documents.get(document));
+
+        // Books handed out earlier still read from the old catalog, which never changes
+        documents = live;
+        removed = new BitSet();
+        oldestDocument = 0;
+        removedCount = 0;
+        postingsByWord.clear();
+        vocabulary.clear();
+        wordsByTrigram.clear();
+        for (int document = 0; document < live.size(); document++)
+            index(document, live.get(document));
+    }
+
+    /*
+    Growable, always sorted list of document numbers for one word. Each
+    entry is the document number shifted left one, with the low bit
+    saying whether the word is in the title or only the author.
+     */
+    private static class Postings {
+        final String word;
+        final int number;
+        private int[] documents = new int[2];
+        private int size;
+
+        Postings(String word, int number) {
+            this.word = word;
+            this.number = number;
+        }
+
+        void add(int document, int field) {
+            if (size == documents.length)
+                documents = Arrays.copyOf(documents, size * 2);
+            documents[size++] = document << 1 | field;
+        }
+
+        void addTo(BitSet set) {
+            for (int i = 0; i < size; i++)
+                set.set(documents[i] >>> 1);
+        }
+    }
+
+    private static class WordMatch {
+        final Postings postings;
+        final float similarity;
+
+        WordMatch(Postings postings, float similarity) {
+            this.postings = postings;
+            this.similarity = similarity;
+        }
+    }
+
+    private static class IntList {
+        int[] values = new int[8];
+        int size;
+
+        void add(int value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+}
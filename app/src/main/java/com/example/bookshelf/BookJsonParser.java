@@ -0,0 +1,281 @@
+package com.example.bookshelf;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/*
+Streaming parser for search responses. Instead of building a JSONArray
+full of JSONObjects and then copying them into books, this reads the
+response one character at a time and fills in Book objects as it goes.
+Fields it doesn't know about are skipped without being stored.
+ */
+public class BookJsonParser {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Reader reader;
+    private final char[] buffer = new char[8192];
+    private int position, limit;
+    private long consumed;
+
+    // Reused for every string in the response so we only allocate the final String
+    private final StringBuilder stringBuilder = new StringBuilder();
+
+    private BookJsonParser(Reader reader) {
+        this.reader = reader;
+    }
+
+    public static ArrayList<Book> parse(byte[] data) throws IOException {
+        return parse(new ByteArrayInputStream(data));
+    }
+
+    public static ArrayList<Book> parse(InputStream in) throws IOException {
+        return new BookJsonParser(new InputStreamReader(in, UTF_8)).readBookArray();
+    }
+
+    private ArrayList<Book> readBookArray() throws IOException {
+        ArrayList<Book> books = new ArrayList<>();
+        expect('[');
+        if (peek() == ']') {
+            read();
+            return books;
+        }
+        while (true) {
+            Book book = readBook();
+            if (book != null)
+                books.add(book);
+            char c = read();
+            if (c == ']')
+                break;
+            if (c != ',')
+                throw syntaxError("Expected ',' or ']'");
+        }
+        return books;
+    }
+
+    /*
+    Returns null for an entry without an id or a title, which can't be
+    shown or played. A missing author is left empty rather than null.
+     */
+    private Book readBook() throws IOException {
+        int id = 0, duration = 0;
+        boolean hasId = false;
+        String title = null, author = null, coverUrl = null;
+
+        expect('{');
+        if (peek() == '}') {
+            read();
+            return null;
+        }
+        while (true) {
+            String name = readString();
+            expect(':');
+            switch (name) {
+                case Book.JSON_ID:
+                    String value = readScalarAsString();
+                    hasId = value != null;
+                    id = toInt(value);
+                    break;
+                case Book.JSON_TITLE:
+                    title = readScalarAsString();
+                    break;
+                case Book.JSON_AUTHOR:
+                    author = readScalarAsString();
+                    break;
+                case Book.JSON_COVER_URL:
+                    coverUrl = readScalarAsString();
+                    break;
+                case Book.JSON_DURATION:
+                    duration = readInt();
+                    break;
+                default:
+                    skipValue();
+            }
+            char c = read();
+            if (c == '}')
+                break;
+            if (c != ',')
+                throw syntaxError("Expected ',' or '}'");
+        }
+        if (!hasId || title == null)
+            return null;
+        return new Book(id, title, author == null ? "" : author, coverUrl, duration);
+    }
+
+    /*
+    The search API isn't consistent about quoting numbers, so accept both
+     */
+    private int readInt() throws IOException {
+        return toInt(readScalarAsString());
+    }
+
+    private int toInt(String value) throws IOException {
+        if (value == null)
+            return 0;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            try {
+                return (int) Double.parseDouble(value);
+            } catch (NumberFormatException e2) {
+                throw syntaxError("Expected a number but was " + value);
+            }
+        }
+    }
+
+    private String readScalarAsString() throws IOException {
+        if (peek() == '"')
+            return readString();
+        String literal = readLiteral();
+        return literal.equals("null") ? null : literal;
+    }
+
+    private String readString() throws IOException {
+        expect('"');
+        stringBuilder.setLength(0);
+        while (true) {
+            if (position == limit && !fill())
+                throw syntaxError("Unterminated string");
+
+            // Copy runs of plain characters in one go
+            int start = position;
+            while (position < limit) {
+                char c = buffer[position];
+                if (c == '"' || c == '\\')
+                    break;
+                position++;
+            }
+            stringBuilder.append(buffer, start, position - start);
+            if (position == limit)
+                continue;
+
+            char c = buffer[position++];
+            if (c == '"')
+                return stringBuilder.toString();
+            readEscape();
+        }
+    }
+
+    private void readEscape() throws IOException {
+        char c = nextChar();
+        switch (c) {
+            case 'n': stringBuilder.append('\n'); break;
+            case 't': stringBuilder.append('\t'); break;
+            case 'r': stringBuilder.append('\r'); break;
+            case 'b': stringBuilder.append('\b'); break;
+            case 'f': stringBuilder.append('\f'); break;
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(nextChar(), 16);
+                    if (digit < 0)
+                        throw syntaxError("Invalid unicode escape");
+                    value = (value << 4) | digit;
+                }
+                stringBuilder.append((char) value);
+                break;
+            default:
+                stringBuilder.append(c);
+        }
+    }
+
+    private String readLiteral() throws IOException {
+        skipWhitespace();
+        stringBuilder.setLength(0);
+        while (true) {
+            if (position == limit && !fill())
+                break;
+            char c = buffer[position];
+            if (c == ',' || c == '}' || c == ']' || c == ':' || Character.isWhitespace(c))
+                break;
+            stringBuilder.append(c);
+            position++;
+        }
+        if (stringBuilder.length() == 0)
+            throw syntaxError("Expected a value");
+        return stringBuilder.toString();
+    }
+
+    private void skipValue() throws IOException {
+        char c = peek();
+        if (c == '"') {
+            readString();
+        } else if (c == '{' || c == '[') {
+            // Track nesting until the matching close, stepping over strings
+            int depth = 0;
+            do {
+                c = peek();
+                if (c == '"') {
+                    readString();
+                    continue;
+                }
+                read();
+                if (c == '{' || c == '[')
+                    depth++;
+                else if (c == '}' || c == ']')
+                    depth--;
+            } while (depth > 0);
+        } else {
+            readLiteral();
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        if (read() != expected)
+            throw syntaxError("Expected '" + expected + "'");
+    }
+
+    /*
+    Next non-whitespace character, consumed
+     */
+    private char read() throws IOException {
+        skipWhitespace();
+        return nextChar();
+    }
+
+    /*
+    Next non-whitespace character, left in the buffer
+     */
+    private char peek() throws IOException {
+        skipWhitespace();
+        if (position == limit && !fill())
+            throw syntaxError("Unexpected end of input");
+        return buffer[position];
+    }
+
+    private char nextChar() throws IOException {
+        if (position == limit && !fill())
+            throw syntaxError("Unexpected end of input");
+        return buffer[position++];
+    }
+
+    private void skipWhitespace() throws IOException {
+        while (true) {
+            if (position == limit && !fill())
+                return;
+            if (!Character.isWhitespace(buffer[position]))
+                return;
+            position++;
+        }
+    }
+
+    private boolean fill() throws IOException {
+        consumed += limit;
+        position = 0;
+        limit = reader.read(buffer, 0, buffer.length);
+        if (limit <= 0) {
+            limit = 0;
+            return false;
+        }
+        return true;
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException(message + " at offset " + (consumed + position));
+    }
+}
@@ -4,23 +4,24 @@ import android.content.Context;
 import android.os.Bundle;
 
 import androidx.fragment.app.Fragment;
+import androidx.recyclerview.widget.RecyclerView;
 
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.AdapterView;
-import android.widget.BaseAdapter;
-import android.widget.ListView;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 
 public class BookListFragment extends Fragment {
 
-    private static final String BOOK_LIST_KEY = "booklist";
     private ArrayList<Book> books;
-    private ListView listView;
+    private RecyclerView recyclerView;
+    private BooksAdapter adapter;
+    private PagedBooksAdapter pagedAdapter;
+    private PagedBookSource pagedSource;
+    private CoverPrefetcher coverPrefetcher;
 
     private BookSelectedInterface parentActivity;
 
@@ -28,15 +29,14 @@ public class BookListFragment extends Fragment {
 
     public static BookListFragment newInstance(ArrayList<Book> books) {
         BookListFragment fragment = new BookListFragment();
-        Bundle args = new Bundle();
 
         /*
-         A Book implements the Parcelable interface
-         therefore we can place an arraylist of books
-         inside a bundle by using that put() method.
+         The books are handed straight to the fragment instead of going
+         into its arguments, so a long list isn't parcelled on every
+         configuration change. The activity always creates a new list
+         fragment when it starts, so nothing is lost.
          */
-        args.putParcelableArrayList(BOOK_LIST_KEY, books);
-        fragment.setArguments(args);
+        fragment.books = new ArrayList<>(books);
         return fragment;
     }
 
@@ -58,39 +58,88 @@ public class BookListFragment extends Fragment {
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        books = new ArrayList<Book>();
-        if (getArguments() != null) {
-            books.addAll((ArrayList) getArguments().getParcelableArrayList(BOOK_LIST_KEY));
-        }
+        if (books == null)
+            books = new ArrayList<Book>();
     }
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
-        listView = (ListView) inflater.inflate(R.layout.fragment_book_list, container, false);
+        recyclerView = (RecyclerView) inflater.inflate(R.layout.fragment_book_list, container, false);
+
+        // Covers for the rows just below the screen are loaded ahead of time
+        coverPrefetcher = new CoverPrefetcher(getContext());
+        recyclerView.addOnScrollListener(coverPrefetcher);
+
+        adapter = new BooksAdapter(getContext(), clickListener);
+        adapter.submitList(new ArrayList<>(books));
+        if (pagedSource != null)
+            showPagedBooks(pagedSource);
+        else
+            recyclerView.setAdapter(adapter);
+
+        return recyclerView;
+    }
 
-        listView.setAdapter(new BooksAdapter(getContext(), books));
+    private final BooksAdapter.OnBookClickListener clickListener = new BooksAdapter.OnBookClickListener() {
+        @Override
+        public void onBookClicked(Book book) {
+            parentActivity.bookSelected(book);
+        }
+    };
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        coverPrefetcher.cancelAll();
+        if (pagedAdapter != null) {
+            pagedAdapter.close();
+            pagedAdapter = null;
+        }
+        adapter = null;
+    }
 
-        listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+    /*
+    The adapter works out what changed on a background thread,
+    so the list we are given is copied rather than shared
+     */
+    public void updateBooksDisplay(ArrayList<Book> books) {
+        this.books = new ArrayList<>(books);
+        pagedSource = null;
+        if (adapter == null)
+            return;
+        if (pagedAdapter != null) {
+            pagedAdapter.close();
+            pagedAdapter = null;
+            recyclerView.setAdapter(adapter);
+        }
+        adapter.submitList(this.books, new Runnable() {
             @Override
-            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-                parentActivity.bookSelected(position);
+            public void run() {
+                coverPrefetcher.reset(recyclerView);
             }
         });
-
-        return listView;
     }
 
-    public void updateBooksDisplay(ArrayList<Book> books) {
-        this.books.clear();
-        this.books.addAll(books);
-        ((BaseAdapter) listView.getAdapter()).notifyDataSetChanged();
+    /*
+    Results too big to load at once are shown from a paged source instead,
+    which loads pages as they scroll into view
+     */
+    public void showPagedBooks(PagedBookSource source) {
+        pagedSource = source;
+        if (adapter == null)
+            return;
+        if (pagedAdapter != null)
+            pagedAdapter.close();
+        pagedAdapter = new PagedBooksAdapter(getContext(), source, clickListener);
+        recyclerView.setAdapter(pagedAdapter);
+        coverPrefetcher.reset(recyclerView);
     }
 
     /*
     Interface for communicating with attached activity
      */
     interface BookSelectedInterface {
-        void bookSelected(int index);
+        void bookSelected(Book book);
     }
 }
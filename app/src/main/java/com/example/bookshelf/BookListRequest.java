@@ -0,0 +1,40 @@
+package com.example.bookshelf;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.toolbox.HttpHeaderParser;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/*
+Volley request that turns a search response straight into a list of books.
+parseNetworkResponse() runs on one of Volley's network threads, so the
+main thread only ever sees the finished list.
+ */
+public class BookListRequest extends Request<ArrayList<Book>> {
+
+    private final Response.Listener<ArrayList<Book>> listener;
+
+    public BookListRequest(String url, Response.Listener<ArrayList<Book>> listener, Response.ErrorListener errorListener) {
+        super(Method.GET, url, errorListener);
+        this.listener = listener;
+    }
+
+    @Override
+    protected Response<ArrayList<Book>> parseNetworkResponse(NetworkResponse response) {
+        try {
+            ArrayList<Book> books = BookJsonParser.parse(response.data);
+            return Response.success(books, HttpHeaderParser.parseCacheHeaders(response));
+        } catch (IOException e) {
+            return Response.error(new ParseError(e));
+        }
+    }
+
+    @Override
+    protected void deliverResponse(ArrayList<Book> response) {
+        listener.onResponse(response);
+    }
+}
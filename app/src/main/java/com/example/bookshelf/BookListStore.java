@@ -0,0 +1,248 @@
+package com.example.bookshelf;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+
+/*
+Keeps lists of books out of saved instance state.
+
+Putting thousands of books in a Bundle makes every configuration change
+slow and can fail outright once the Bundle gets too big. Instead a list
+is saved here and only a short handle goes in the Bundle. The list stays
+in memory for as long as the process lives, which covers rotation, and
+is also written to a small binary file in the background so it can be
+read back after the process has been killed.
+
+The file stores every distinct string once (authors in particular repeat
+a lot) and then each book as a few ints.
+ */
+public class BookListStore {
+
+    private static final int FILE_VERSION = 1;
+    private static final String FILE_SUFFIX = ".snapshot";
+
+    private final File directory;
+    private final Executor writer;
+
+    private final HashMap<String, Saved> saved = new HashMap<>();
+    private long lastGeneration;
+
+    public BookListStore(File directory, Executor writer) {
+        this.directory = directory;
+        this.writer = writer;
+    }
+
+    /*
+    Saves the list under a key and returns the handle to restore it with.
+    Saving the same books again returns the same handle without rewriting
+    anything. A book counts as the same only if none of what the snapshot
+    stores has changed, so a title or cover updated by CatalogSync is
+    saved again.
+     */
+    public synchronized String save(String key, ArrayList<Book> books) {
+        Saved previous = saved.get(key);
+        if (previous != null && sameBooks(previous.hashes, books))
+            return previous.handle;
+
+        long generation = Math.max(System.currentTimeMillis(), lastGeneration + 1);
+        lastGeneration = generation;
+        final Saved current = new Saved(key + "@" + generation, generation, new ArrayList<>(books));
+        saved.put(key, current);
+
+        final File file = file(key);
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // A newer save for this key will write its own snapshot
+                    if (isCurrent(current))
+                        writeSnapshot(file, current.generation, current.books);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        return current.handle;
+    }
+
+    /*
+    The list saved with this handle, from memory if this process saved it
+    and from the snapshot file otherwise. Returns null if it can't be found,
+    including when the snapshot on disk is from a different save.
+     */
+    public ArrayList<Book> restore(String handle) {
+        ArrayList<Book> inMemory = restoreFromMemory(handle);
+        if (inMemory != null || handle == null)
+            return inMemory;
+        int at = handle.lastIndexOf('@');
+        if (at < 0)
+            return null;
+        String key = handle.substring(0, at);
+
+        long generation;
+        try {
+            generation = Long.parseLong(handle.substring(at + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        File file = file(key);
+        if (!file.exists())
+            return null;
+        try {
+            return readSnapshot(file, generation);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /*
+    The list saved with this handle if this process saved it, or null.
+    Never reads the disk, so it's quick enough for the main thread.
+     */
+    public synchronized ArrayList<Book> restoreFromMemory(String handle) {
+        if (handle == null || handle.lastIndexOf('@') < 0)
+            return null;
+        Saved current = saved.get(keyOf(handle));
+        if (current != null && current.handle.equals(handle))
+            return new ArrayList<>(current.books);
+        return null;
+    }
+
+    private synchronized boolean isCurrent(Saved entry) {
+        return saved.get(keyOf(entry.handle)) == entry;
+    }
+
+    private File file(String key) {
+        return new File(directory, key + FILE_SUFFIX);
+    }
+
+    private static String keyOf(String handle) {
+        return handle.substring(0, handle.lastIndexOf('@'));
+    }
+
+    /*
+    Compared by hash rather than with the saved books themselves, as those
+    can be the same objects, changed since they were saved
+     */
+    private static boolean sameBooks(long[] hashes, ArrayList<Book> books) {
+        if (hashes.length != books.size())
+            return false;
+        for (int i = 0; i < hashes.length; i++)
+            if (hashes[i] != CatalogSync.hash(books.get(i)))
+                return false;
+        return true;
+    }
+
+    /*
+    Written next to the old snapshot and then renamed over it,
+    so a crash part way through never leaves half a file behind
+     */
+    static void writeSnapshot(File file, long generation, ArrayList<Book> books) throws IOException {
+        File directory = file.getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs())
+            throw new IOException("Could not create " + directory);
+
+        // Every distinct string is written once and books refer to it by index
+        HashMap<String, Integer> indexes = new HashMap<>();
+        ArrayList<String> strings = new ArrayList<>();
+        int[] references = new int[books.size() * 3];
+        for (int i = 0; i < books.size(); i++) {
+            Book book = books.get(i);
+            references[3 * i] = intern(book.getTitle(), indexes, strings);
+            references[3 * i + 1] = intern(book.getAuthor(), indexes, strings);
+            references[3 * i + 2] = intern(book.getCoverUrl(), indexes, strings);
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(FILE_VERSION);
+            out.writeLong(generation);
+            out.writeInt(strings.size());
+            for (String string : strings)
+                out.writeUTF(string);
+            out.writeInt(books.size());
+            for (int i = 0; i < books.size(); i++) {
+                Book book = books.get(i);
+                out.writeInt(book.getId());
+                out.writeInt(book.getDuration());
+                out.writeInt(references[3 * i]);
+                out.writeInt(references[3 * i + 1]);
+                out.writeInt(references[3 * i + 2]);
+            }
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    static ArrayList<Book> readSnapshot(File file, long generation) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_VERSION || in.readLong() != generation)
+                return null;
+
+            String[] strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; i++)
+                strings[i] = in.readUTF();
+
+            int count = in.readInt();
+            ArrayList<Book> books = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int id = in.readInt();
+                int duration = in.readInt();
+                String title = string(strings, in.readInt());
+                String author = string(strings, in.readInt());
+                String coverUrl = string(strings, in.readInt());
+                books.add(new Book(id, title, author, coverUrl, duration));
+            }
+            return books;
+        }
+    }
+
+    private static int intern(String string, HashMap<String, Integer> indexes, ArrayList<String> strings) {
+        if (string == null)
+            return -1;
+        Integer index = indexes.get(string);
+        if (index == null) {
+            index = strings.size();
+            indexes.put(string, index);
+            strings.add(string);
+        }
+        return index;
+    }
+
+    private static String string(String[] strings, int index) throws IOException {
+        if (index == -1)
+            return null;
+        if (index < 0 || index >= strings.length)
+            throw new IOException("Snapshot is damaged");
+        return strings[index];
+    }
+
+    private static class Saved {
+        final String handle;
+        final long generation;
+        final ArrayList<Book> books;
+        final long[] hashes;
+
+        Saved(String handle, long generation, ArrayList<Book> books) {
+            this.handle = handle;
+            this.generation = generation;
+            this.books = books;
+            hashes = new long[books.size()];
+            for (int i = 0; i < hashes.length; i++)
+                hashes[i] = CatalogSync.hash(books.get(i));
+        }
+    }
+}
@@ -1,59 +1,134 @@
 package com.example.bookshelf;
 
 import android.content.Context;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.BaseAdapter;
-import android.widget.LinearLayout;
+import android.widget.ImageView;
 import android.widget.TextView;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
+import androidx.recyclerview.widget.RecyclerView;
 
-public class BooksAdapter extends BaseAdapter {
+/*
+Shows the books in a RecyclerView.
+
+New results are handed over with submitList(). The difference between
+the old and new list is worked out on a background thread, and only the
+rows that were added, removed, moved or changed are rebound, so the
+list keeps its scroll position across refreshes.
+ */
+public class BooksAdapter extends ListAdapter<Book, BooksAdapter.BookViewHolder> implements CoverPrefetcher.BookRows {
 
     Context context;
-    ArrayList<Book> books;
+    private final OnBookClickListener clickListener;
 
-    public BooksAdapter (Context context, ArrayList books) {
+    public BooksAdapter (Context context, OnBookClickListener clickListener) {
+        super(DIFF_CALLBACK);
         this.context = context;
-        this.books = books;
+        this.clickListener = clickListener;
+        // A row belongs to a book, wherever the book ends up in the list
+        setHasStableIds(true);
     }
 
     @Override
-    public int getCount() {
-        return books.size();
+    public long getItemId(int position) {
+        return getItem(position).getId();
     }
 
+    @NonNull
     @Override
-    public Object getItem(int position) {
-        return books.get(position);
+    public BookViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        /*
+        Inflate a predefined layout file that includes 2 text views and a cover.
+        We could do this in code, but this seems a little easier
+         */
+        View view = LayoutInflater.from(context).inflate(R.layout.books_adapter_layout, parent, false);
+        return new BookViewHolder(view, clickListener);
     }
 
     @Override
-    public long getItemId(int position) {
-        return 0;
+    public void onBindViewHolder(@NonNull BookViewHolder holder, int position) {
+        holder.bind(getItem(position));
     }
 
     @Override
-    public View getView(int position, View convertView, ViewGroup parent) {
-        TextView titleTextView, authorTextView;
-
-        if (!(convertView instanceof LinearLayout)) {
-            /*
-            Inflate a predefined layout file that includes 2 text views.
-            We could do this in code, but this seems a little easier
-             */
-            convertView = LayoutInflater.from(context).inflate(R.layout.books_adapter_layout, parent, false);
-        }
+    public Book peekBook(int position) {
+        return getItem(position);
+    }
 
-        titleTextView = convertView.findViewById(R.id.titleTextView);
-        authorTextView = convertView.findViewById(R.id.authorTextView);
+    @Override
+    public void onViewRecycled(@NonNull BookViewHolder holder) {
+        // A row that scrolled away doesn't need its cover any more
+        CoverLoader.get(context).cancelRequest(holder.coverImageView);
+    }
 
-        titleTextView.setText(((Book) getItem(position)).getTitle());
-        authorTextView.setText(((Book) getItem(position)).getAuthor());
+    /*
+    The views of one row, looked up once when the row is created.
+    Rows without a book yet (a page that is still loading) show a placeholder.
+     */
+    static class BookViewHolder extends RecyclerView.ViewHolder {
+        final TextView titleTextView, authorTextView;
+        final ImageView coverImageView;
+        Book book;
 
-        return convertView;
+        BookViewHolder(View itemView, final OnBookClickListener clickListener) {
+            super(itemView);
+            titleTextView = itemView.findViewById(R.id.titleTextView);
+            authorTextView = itemView.findViewById(R.id.authorTextView);
+            coverImageView = itemView.findViewById(R.id.coverImageView);
+
+            itemView.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    if (book != null)
+                        clickListener.onBookClicked(book);
+                }
+            });
+        }
+
+        void bind(Book book) {
+            this.book = book;
+            Context context = itemView.getContext();
+            if (book != null) {
+                titleTextView.setText(book.getTitle());
+                authorTextView.setText(book.getAuthor());
+                CoverLoader.loadThumbnail(context, book, coverImageView);
+            } else {
+                titleTextView.setText(R.string.loading_placeholder);
+                authorTextView.setText("");
+                CoverLoader.get(context).cancelRequest(coverImageView);
+                coverImageView.setImageDrawable(null);
+            }
+        }
+    }
+
+    interface OnBookClickListener {
+        void onBookClicked(Book book);
     }
+
+    /*
+    Two books are the same row if they have the same id, and the row only
+    needs rebinding if something it shows has changed
+     */
+    static final DiffUtil.ItemCallback<Book> DIFF_CALLBACK = new DiffUtil.ItemCallback<Book>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull Book oldBook, @NonNull Book newBook) {
+            return oldBook.getId() == newBook.getId();
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull Book oldBook, @NonNull Book newBook) {
+            // Catalog books for the same row can be compared without building any strings
+            if (oldBook == newBook || BookCatalog.sameEntry(oldBook, newBook))
+                return true;
+            return TextUtils.equals(oldBook.getTitle(), newBook.getTitle())
+                    && TextUtils.equals(oldBook.getAuthor(), newBook.getAuthor())
+                    && TextUtils.equals(oldBook.getCoverUrl(), newBook.getCoverUrl())
+                    && oldBook.getDuration() == newBook.getDuration();
+        }
+    };
 }
@@ -0,0 +1,217 @@
+package com.example.bookshelf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/*
+Copies the whole catalog from the server into a local store.
+
+The catalog is read a page at a time and each book is compared with
+what the store already has by a hash of its fields, so only books that
+are new or have changed are written, in batches. Books the store has
+but the server no longer sends are removed, but only once every page
+has been read, so a sync that fails part way never deletes anything.
+
+The search api doesn't say what changed since a given time, so this is
+the cheapest delta there is: the download is the same, but an unchanged
+catalog costs no writes at all.
+ */
+public class CatalogSync {
+
+    /*
+    Where the catalog comes from, one page at a time
+     */
+    public interface Source {
+        ArrayList<Book> fetch(int offset, int limit) throws IOException;
+    }
+
+    /*
+    Where the catalog goes
+     */
+    public interface Store {
+        // Book id to hash() of the stored copy, for every stored book
+        HashMap<Integer, Long> getHashes();
+
+        // Writes a batch of new or changed books and removes books by id, all at once
+        void apply(List<Book> changed, List<Integer> removed);
+
+        long getLastSync();
+
+        void setLastSync(long time);
+    }
+
+    public static class Result {
+        int added, updated, removed, unchanged, pages, batches;
+
+        public int getAdded() {
+            return added;
+        }
+
+        public int getUpdated() {
+            return updated;
+        }
+
+        public int getRemoved() {
+            return removed;
+        }
+
+        public int getUnchanged() {
+            return unchanged;
+        }
+
+        @Override
+        public String toString() {
+            return added + " added, " + updated + " updated, " + removed + " removed, " + unchanged
+                    + " unchanged (" + pages + " pages, " + batches + " batches)";
+        }
+    }
+
+    private final Source source;
+    private final Store store;
+    private final int pageSize, batchSize;
+
+    public CatalogSync(Source source, Store store, int pageSize, int batchSize) {
+        this.source = source;
+        this.store = store;
+        this.pageSize = pageSize;
+        this.batchSize = batchSize;
+    }
+
+    public boolean isDue(long now, long interval) {
+        return now - store.getLastSync() >= interval;
+    }
+
+    /*
+    Runs on a background thread. Throws if the catalog couldn't be read
+    in full, in which case whatever batches were written stay written.
+     */
+    public Result run() throws IOException {
+        Result result = new Result();
+        HashMap<Integer, Long> stored = store.getHashes();
+        HashSet<Integer> seen = new HashSet<>();
+        ArrayList<Book> batch = new ArrayList<>(batchSize);
+
+        int offset = 0;
+        int firstId = 0;
+        while (true) {
+            ArrayList<Book> page = source.fetch(offset, pageSize);
+            result.pages++;
+            // A server that ignores paging sends everything at once, or the first page again
+            boolean ignoresPaging = page.size() > pageSize
+                    || (offset > 0 && page.size() > 0 && page.get(0).getId() == firstId);
+            if (offset == 0 && page.size() > 0)
+                firstId = page.get(0).getId();
+            if (offset > 0 && ignoresPaging)
+                break;
+
+            for (Book book : page) {
+                if (!seen.add(book.getId()))
+                    continue;
+                Long storedHash = stored.get(book.getId());
+                if (storedHash == null)
+                    result.added++;
+                else if (storedHash != hash(book))
+                    result.updated++;
+                else {
+                    result.unchanged++;
+                    continue;
+                }
+                batch.add(book);
+                if (batch.size() >= batchSize) {
+                    store.apply(batch, new ArrayList<Integer>());
+                    result.batches++;
+                    batch.clear();
+                }
+            }
+
+            if (page.size() < pageSize || ignoresPaging)
+                break;
+            offset += page.size();
+        }
+
+        ArrayList<Integer> removed = new ArrayList<>();
+        for (Map.Entry<Integer, Long> entry : stored.entrySet())
+            if (!seen.contains(entry.getKey()))
+                removed.add(entry.getKey());
+        result.removed = removed.size();
+        if (batch.size() > 0 || removed.size() > 0) {
+            store.apply(batch, removed);
+            result.batches++;
+        }
+        store.setLastSync(System.currentTimeMillis());
+        return result;
+    }
+
+    /*
+    64-bit FNV-1a over every field, so a change to any of them changes the hash
+     */
+    public static long hash(Book book) {
+        long hash = 0xcbf29ce484222325L;
+        hash = mix(hash, book.getId());
+        hash = mix(hash, book.getDuration());
+        hash = mix(hash, book.getTitle());
+        hash = mix(hash, book.getAuthor());
+        hash = mix(hash, book.getCoverUrl());
+        return hash;
+    }
+
+    private static long mix(long hash, int value) {
+        for (int shift = 0; shift < 32; shift += 8) {
+            hash ^= (value >>> shift) & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, String value) {
+        if (value == null)
+            return mix(hash, -1);
+        hash = mix(hash, value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash ^= c & 0xFF;
+            hash *= 0x100000001b3L;
+            hash ^= c >>> 8;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /*
+    Reads pages from the search api. An empty search is the whole catalog.
+     */
+    public static class HttpSource implements Source {
+        private final OkHttpClient client;
+        private final String url;
+
+        public HttpSource(OkHttpClient client, String url) {
+            this.client = client;
+            this.url = url;
+        }
+
+        @Override
+        public ArrayList<Book> fetch(int offset, int limit) throws IOException {
+            Request request = new Request.Builder()
+                    .url(url + "&offset=" + offset + "&limit=" + limit)
+                    .build();
+            try (Response response = client.newCall(request).execute()) {
+                ResponseBody body = response.body();
+                if (!response.isSuccessful() || body == null)
+                    throw new IOException("Server returned " + response.code());
+                try (InputStream in = body.byteStream()) {
+                    return BookJsonParser.parse(in);
+                }
+            }
+        }
+    }
+}
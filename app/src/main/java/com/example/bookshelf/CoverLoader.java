@@ -0,0 +1,90 @@
+package com.example.bookshelf;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.widget.ImageView;
+
+import com.squareup.picasso.LruCache;
+import com.squareup.picasso.OkHttp3Downloader;
+import com.squareup.picasso.Picasso;
+import com.squareup.picasso.RequestCreator;
+
+import java.io.File;
+
+import okhttp3.Cache;
+
+/*
+Loads book covers for the list and for the details screen.
+
+Covers are decoded at the size of the view they are shown in rather than
+at full size, which keeps both decoding and the memory cache cheap. The
+memory cache is limited to a share of the app's heap, and downloaded
+covers are kept in a disk cache so scrolling back never refetches them.
+Downloads share OkHttpStack's connection pool with the search requests.
+ */
+public class CoverLoader {
+
+    /*
+    Requests for rows on screen carry this tag so they can be held back
+    while the list is flinging
+     */
+    public static final Object LIST_TAG = new Object();
+
+    private static final int MEMORY_CACHE_FRACTION = 8;
+    private static final long DISK_CACHE_SIZE = 50 * 1024 * 1024;
+
+    private static Picasso picasso;
+
+    public static synchronized Picasso get(Context context) {
+        if (picasso == null) {
+            context = context.getApplicationContext();
+            ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            int memoryCacheSize = activityManager.getMemoryClass() * 1024 * 1024 / MEMORY_CACHE_FRACTION;
+
+            picasso = new Picasso.Builder(context)
+                    .memoryCache(new LruCache(memoryCacheSize))
+                    .downloader(new OkHttp3Downloader(OkHttpStack.sharedClient().newBuilder()
+                            .cache(new Cache(new File(context.getCacheDir(), "covers"), DISK_CACHE_SIZE))
+                            .build()))
+                    .build();
+        }
+        return picasso;
+    }
+
+    /*
+    Small cover for a row in the book list. Prefetching builds the
+    exact same request, so a prefetched cover is a memory cache hit here.
+     */
+    public static void loadThumbnail(Context context, Book book, ImageView imageView) {
+        RequestCreator request = thumbnail(context, book.getCoverUrl());
+        if (request == null) {
+            get(context).cancelRequest(imageView);
+            imageView.setImageDrawable(null);
+            return;
+        }
+        request.tag(LIST_TAG).into(imageView);
+    }
+
+    /*
+    Full cover for the details screen, decoded to the size the view ends up with
+     */
+    public static void loadCover(Context context, Book book, ImageView imageView) {
+        if (isEmpty(book.getCoverUrl())) {
+            get(context).cancelRequest(imageView);
+            imageView.setImageDrawable(null);
+            return;
+        }
+        get(context).load(book.getCoverUrl()).fit().centerInside().into(imageView);
+    }
+
+    static RequestCreator thumbnail(Context context, String url) {
+        if (isEmpty(url))
+            return null;
+        int size = context.getResources().getDimensionPixelSize(R.dimen.cover_thumbnail_size);
+        return get(context).load(url).resize(size, size).centerInside().onlyScaleDown();
+    }
+
+    private static boolean isEmpty(String url) {
+        return url == null || url.trim().length() == 0;
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.bookshelf;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.squareup.picasso.Picasso;
+import com.squareup.picasso.RequestCreator;
+
+import java.util.HashSet;
+import java.util.Iterator;
+
+/*
+Watches the book list scroll and keeps covers loading for the rows on
+screen and a few rows past them, so they are ready before they appear.
+
+Each prefetch is tagged with its cover's url, so once a row is well out
+of view its prefetch can be cancelled on its own. While the list is
+flinging nothing new is started and on-screen loads are paused, then
+everything catches up when the list settles.
+ */
+public class CoverPrefetcher extends RecyclerView.OnScrollListener {
+
+    /*
+    An adapter whose rows are books, some of which may not be loaded yet
+     */
+    interface BookRows {
+        int getItemCount();
+        Book peekBook(int position);
+    }
+
+    private static final int LOOKAHEAD = 10;
+
+    private final Context context;
+    private final HashSet<String> prefetching = new HashSet<>();
+    private final HashSet<String> window = new HashSet<>();
+
+    private int scrollState = RecyclerView.SCROLL_STATE_IDLE;
+
+    public CoverPrefetcher(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    @Override
+    public void onScrollStateChanged(@NonNull RecyclerView recyclerView, int scrollState) {
+        Picasso picasso = CoverLoader.get(context);
+        if (scrollState == RecyclerView.SCROLL_STATE_SETTLING)
+            picasso.pauseTag(CoverLoader.LIST_TAG);
+        else if (this.scrollState == RecyclerView.SCROLL_STATE_SETTLING)
+            picasso.resumeTag(CoverLoader.LIST_TAG);
+        this.scrollState = scrollState;
+
+        if (scrollState != RecyclerView.SCROLL_STATE_SETTLING)
+            update(recyclerView);
+    }
+
+    @Override
+    public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+        if (scrollState != RecyclerView.SCROLL_STATE_SETTLING)
+            update(recyclerView);
+    }
+
+    /*
+    Called when the list gets new books
+     */
+    public void reset(RecyclerView recyclerView) {
+        cancelAll();
+        update(recyclerView);
+    }
+
+    public void cancelAll() {
+        Picasso picasso = CoverLoader.get(context);
+        for (String url : prefetching)
+            picasso.cancelTag(url);
+        prefetching.clear();
+    }
+
+    private void update(RecyclerView recyclerView) {
+        if (!(recyclerView.getLayoutManager() instanceof LinearLayoutManager)
+                || !(recyclerView.getAdapter() instanceof BookRows))
+            return;
+        LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+        int first = layoutManager.findFirstVisibleItemPosition();
+        int last = layoutManager.findLastVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION)
+            return;
+
+        BookRows books = (BookRows) recyclerView.getAdapter();
+        window.clear();
+        int end = Math.min(books.getItemCount(), last + 1 + LOOKAHEAD);
+        for (int i = first; i < end; i++) {
+            Book book = books.peekBook(i);
+            if (book != null && book.getCoverUrl() != null)
+                window.add(book.getCoverUrl());
+        }
+
+        Picasso picasso = CoverLoader.get(context);
+        Iterator<String> iterator = prefetching.iterator();
+        while (iterator.hasNext()) {
+            String url = iterator.next();
+            if (!window.contains(url)) {
+                picasso.cancelTag(url);
+                iterator.remove();
+            }
+        }
+
+        for (String url : window) {
+            if (prefetching.contains(url))
+                continue;
+            RequestCreator request = CoverLoader.thumbnail(context, url);
+            if (request != null) {
+                request.tag(url).priority(Picasso.Priority.LOW).fetch();
+                prefetching.add(url);
+            }
+        }
+    }
+}
@@ -3,15 +3,22 @@ package com.example.bookshelf;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.fragment.app.FragmentManager;
+import androidx.fragment.app.FragmentTransaction;
 
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
@@ -19,27 +26,71 @@ import android.widget.SeekBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.android.volley.Request;
 import com.android.volley.RequestQueue;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
-import com.android.volley.toolbox.JsonArrayRequest;
-import com.android.volley.toolbox.Volley;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.NoCache;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import edu.temple.audiobookplayer.AudioStorage;
 import edu.temple.audiobookplayer.AudiobookService;
 
-public class MainActivity extends AppCompatActivity implements BookListFragment.BookSelectedInterface, BookDetailsFragment.PlayButtonPressedInterface {
+public class MainActivity extends AppCompatActivity implements BookListFragment.BookSelectedInterface, BookDetailsFragment.PlayButtonPressedInterface,
+        BookDetailsFragment.DownloadButtonPressedInterface {
 
-    private static final String BOOKS_KEY = "books";
+    private static final String TAG = "MainActivity";
+
+    /*
+    Launch with this set to true to do all of the setup in onCreate,
+    the way it used to be done, for comparing startup times
+     */
+    static final String EXTRA_EAGER_STARTUP = "eagerStartup";
+
+    private static final String BOOKS_HANDLE_KEY = "booksHandle";
     private static final String SELECTED_BOOK_KEY = "selectedBook";
     private static final String CURRENT_BOOK_KEY = "currentBook";
     private static final String SAVED_PROGRESS_KEY = "savedProgress";
     private static final String NOW_PLAYING_KEY = "nowPlaying";
+    private static final String LAST_QUERY_KEY = "lastQuery";
+    private static final String MORE_PAGES_KEY = "morePages";
+
+    private static final int SEARCH_CACHE_MEMORY_ENTRIES = 20;
+    private static final int SEARCH_CACHE_DISK_ENTRIES = 200;
+    private static final long SEARCH_CACHE_TTL = 10 * 60 * 1000;
+    private static final long SEARCH_CACHE_STALE = 24 * 60 * 60 * 1000;
+
+    private static final long SEARCH_DEBOUNCE_DELAY = 300;
+
+    private static final int CATALOG_CAPACITY = 100000;
+    private static final int MAX_LOCAL_RESULTS = 200;
+
+    private static final int DOWNLOAD_CONNECTIONS = 4;
+
+    private static final long CATALOG_SYNC_INTERVAL = 12 * 60 * 60 * 1000;
+    private static final int CATALOG_SYNC_PAGE_SIZE = 500;
+    private static final int CATALOG_SYNC_BATCH_SIZE = 200;
+
+    /*
+    Searches ask for one page of results at a time. At most
+    SEARCH_PAGE_WINDOW pages of a large result are kept in memory.
+     */
+    private static final int SEARCH_PAGE_SIZE = 50;
+    private static final int SEARCH_PAGE_WINDOW = 8;
 
     FragmentManager fm;
 
@@ -48,13 +99,147 @@ public class MainActivity extends AppCompatActivity implements BookListFragment.
     BookDetailsFragment bookDetailsFragment;
 
     ArrayList<Book> books;
-    RequestQueue requestQueue;
+    /*
+    Made the first time they're needed, which is normally on cacheExecutor
+    just after onCreate, so opening caches never holds up the first frame.
+    The request queue and its threads are shared by every activity the
+    process makes, so each cancels only the requests it tagged.
+     */
+    private static volatile RequestQueue requestQueue;
+    private final Object searchRequestTag = new Object();
+    private final Object pageRequestTag = new Object();
+    private volatile SearchCache searchCache;
+    ExecutorService cacheExecutor;
+    Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /*
+    Every search gets a sequence number. Results (cached or from the network)
+    are only shown if nothing newer has been shown already, and at most one
+    request per distinct query is in flight at a time.
+     */
+    final SearchSequence searchSequence = new SearchSequence();
+    String lastQuery = "";
+    HashMap<String, SearchResponseListener> inFlightSearches = new HashMap<>();
+
+    /*
+    Results of the current search when they span more than one page
+     */
+    PagedBookSource pagedBooks;
+    // Whether the search we were showing before being recreated had pages left to load
+    boolean morePages;
+    // The saved books while they are read back on cacheExecutor
+    String pendingBooksHandle;
+
+    /*
+    Set once the server sends back the first page again when asked for a
+    later one, the way CatalogSync spots it. From then on a full first
+    page is shown as the whole result instead of being paged.
+     */
+    static boolean serverIgnoresPaging;
+    PagedBookSource.PageLoader pageLoader = new PagedBookSource.PageLoader() {
+        @Override
+        public void loadPage(String query, int offset, int limit, final Callback callback) {
+            BookListRequest request = new BookListRequest(pageUrl(query, offset, limit),
+                    new Response.Listener<ArrayList<Book>>() {
+                        @Override
+                        public void onResponse(final ArrayList<Book> response) {
+                            callback.onPageLoaded(response);
+                            if (pagedBooks != null && pagedBooks.isPagingIgnored())
+                                serverIgnoresPaging = true;
+                            cacheExecutor.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    bookIndex.addAll(response);
+                                }
+                            });
+                        }
+                    }, new Response.ErrorListener() {
+                        @Override
+                        public void onErrorResponse(VolleyError error) {
+                            callback.onError(error);
+                        }
+                    });
+            request.setTag(pageRequestTag);
+            addRequest(request);
+        }
+    };
+
+    /*
+    Every book we've been sent so far. It lives as long as the process
+    so it isn't thrown away on rotation, and lets us answer searches
+    without waiting for (or having) a network connection.
+     */
+    static final BookIndex bookIndex = new BookIndex(CATALOG_CAPACITY);
+
+    /*
+    Downloads carry on across rotation, so there is one downloader for
+    the whole process and each new activity just listens to it
+     */
+    static AudiobookDownloader downloader;
+
+    /*
+    The search results are kept here across rotation and process death,
+    and only a handle to them goes in the saved instance state
+     */
+    static BookListStore bookListStore;
+
+    /*
+    The catalog is copied into catalogDatabase in the background, once
+    per process and only when the last copy is old. One thread, so two
+    activities can never sync at once.
+     */
+    static final ExecutorService catalogSyncExecutor = Executors.newSingleThreadExecutor();
+    static final AtomicBoolean catalogSyncStarted = new AtomicBoolean();
+    BookDatabase catalogDatabase;
+    AudiobookDownloader.Listener downloadListener = new AudiobookDownloader.Listener() {
+        @Override
+        public void onProgress(final int bookId, final long downloaded, final long total) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    BookDetailsFragment fragment = displayedDetailsFragment();
+                    if (fragment != null && total > 0)
+                        fragment.showDownloadProgress(bookId, (int) (100 * downloaded / total));
+                }
+            });
+        }
+
+        @Override
+        public void onComplete(final int bookId, File file) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    BookDetailsFragment fragment = displayedDetailsFragment();
+                    if (fragment != null)
+                        fragment.showDownloadComplete(bookId);
+                }
+            });
+        }
+
+        @Override
+        public void onError(int bookId, Exception e) {
+            e.printStackTrace();
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Toast.makeText(MainActivity.this, getString(R.string.download_failed_message), Toast.LENGTH_SHORT).show();
+                }
+            });
+        }
+    };
+    Runnable pendingSearch = new Runnable() {
+        @Override
+        public void run() {
+            fetchBooks(searchEditText.getText().toString());
+        }
+    };
     Book selectedBook;
 
     EditText searchEditText;
 
     Button pauseButton, stopButton;
     SeekBar seekBar;
+    boolean seekBarTracking;
 
     //Handler messageHandler = new ProgressHandler(this);
     String currentBookName;
@@ -68,20 +253,23 @@ public class MainActivity extends AppCompatActivity implements BookListFragment.
         public void handleMessage(@NonNull Message message) {
             super.handleMessage(message);
 
-            AudiobookService.BookProgress progress = (AudiobookService.BookProgress) message.obj;
-
-            if (progress != null) {
-                time = progress.getProgress();
-                bookId = progress.getBookId();
+            if (message.what == AudiobookService.PROGRESS_MESSAGE && selectedBook != null) {
+                time = message.arg2;
+                bookId = message.arg1;
                 seekBar.setMax(selectedBook.getDuration());
-                seekBar.setProgress(progress.getProgress());
+                // Don't pull the thumb out from under the user's finger
+                if (!seekBarTracking)
+                    seekBar.setProgress(message.arg2);
 
             }
         }
     };
 
     AudiobookService.MediaControlBinder binder;
-    boolean connected;
+    boolean bound, connected;
+    // A book the user pressed play on before the service was connected
+    Book pendingPlay;
+    StartupTimer startupTimer;
     AudiobookService audiobookService;
     ServiceConnection connection = new ServiceConnection() {
         @Override
@@ -89,6 +277,11 @@ public class MainActivity extends AppCompatActivity implements BookListFragment.
             binder = (AudiobookService.MediaControlBinder)service;
             connected = true;
             binder.setProgressHandler(handler);
+            if (pendingPlay != null) {
+                Book book = pendingPlay;
+                pendingPlay = null;
+                playButtonPressed(book);
+            }
         }
 
         @Override
@@ -98,10 +291,13 @@ public class MainActivity extends AppCompatActivity implements BookListFragment.
     };
 
     private final String SEARCH_API = "https://kamorris.com/lab/abp/booksearch.php?search=";
+    private final String BOOK_DOWNLOAD_URL = "https://kamorris.com/lab/audlib/download.php?id=";
 
     @Override
     protected void onCreate(final Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        final boolean eagerStartup = getIntent() != null && getIntent().getBooleanExtra(EXTRA_EAGER_STARTUP, false);
+        startupTimer = new StartupTimer(eagerStartup ? "eager" : "deferred");
         setContentView(R.layout.activity_main);
 
         searchEditText = findViewById(R.id.searchEditText);
@@ -112,12 +308,45 @@ public class MainActivity extends AppCompatActivity implements BookListFragment.
         findViewById(R.id.searchButton).setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
+                mainHandler.removeCallbacks(pendingSearch);
                 fetchBooks(searchEditText.getText().toString());
             }
         });
 
-         bindIntent = new Intent(MainActivity.this, AudiobookService.class);
-        bindService(bindIntent, connection, BIND_AUTO_CREATE);
+        /*
+        Search as the user types, but wait for a short pause in typing
+        so we don't send a request for every keystroke
+         */
+        searchEditText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                mainHandler.removeCallbacks(pendingSearch);
+                String query = SearchCache.normalize(s.toString());
+                if (query.length() > 0 && !query.equals(lastQuery)) {
+                    searchCatalog(query);
+                    mainHandler.postDelayed(pendingSearch, SEARCH_DEBOUNCE_DELAY);
+                }
+            }
+        });
+
+        /*
+        Starting the service builds its notification channel and media
+        players, so it isn't bound until the first frame is up, or sooner
+        if the user presses play before then
+         */
+        bindIntent = new Intent(MainActivity.this, AudiobookService.class);
+        if (eagerStartup)
+            bindToService();
         pauseButton = findViewById(R.id.pauseButton);
         pauseButton.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -155,34 +384,53 @@ public class MainActivity extends AppCompatActivity implements BookListFragment.
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
                 if(connected) {
                     if(fromUser) {
-                        binder.seekTo(progress);
+                        /*
+                        While dragging, only preview. The real seek
+                        happens once, when the user lets go.
+                         */
+                        if (seekBarTracking)
+                            binder.previewSeek(progress);
+                        else
+                            binder.seekTo(progress);
                     }
                 }
             }
 
             @Override
             public void onStartTrackingTouch(SeekBar seekBar) {
-
+                seekBarTracking = true;
             }
 
             @Override
             public void onStopTrackingTouch(SeekBar seekBar) {
-
+                seekBarTracking = false;
+                if (connected)
+                    binder.seekTo(seekBar.getProgress());
             }
         });
 
+        if (bookListStore == null) {
+            // The writer thread only stays around while there are snapshots to write
+            bookListStore = new BookListStore(new File(getFilesDir(), "state"),
+                    new ThreadPoolExecutor(0, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>()));
+        }
+
+        cacheExecutor = Executors.newSingleThreadExecutor();
+
         /*
         If we previously saved a book search and/or selected a book, then use that
         information to set up the necessary instance variables
          */
         if (savedInstanceState != null) {
-            books = savedInstanceState.getParcelableArrayList(BOOKS_KEY);
+            books = restoreBooks(savedInstanceState.getString(BOOKS_HANDLE_KEY));
             selectedBook = savedInstanceState.getParcelable(SELECTED_BOOK_KEY);
             currentBookName = savedInstanceState.getString(CURRENT_BOOK_KEY);
             savedProgress = savedInstanceState.getInt(SAVED_PROGRESS_KEY);
             nowPlayingText = savedInstanceState.getString(NOW_PLAYING_KEY);
             nowPlayingTextView = findViewById(R.id.nowPlaying);
             nowPlayingTextView.setText(nowPlayingText);
+            lastQuery = savedInstanceState.getString(LAST_QUERY_KEY, "");
+            morePages = savedInstanceState.getBoolean(MORE_PAGES_KEY);
         }
         else
             books = new ArrayList<Book>();
@@ -190,7 +438,37 @@ public class MainActivity extends AppCompatActivity implements BookListFragment.
         twoPane = findViewById(R.id.container2) != null;
         fm = getSupportFragmentManager();
 
-        requestQueue = Volley.newRequestQueue(this);
+        catalogDatabase = BookDatabase.get(this);
+        Runnable initNetwork = new Runnable() {
+            @Override
+            public void run() {
+                getRequestQueue(MainActivity.this);
+                getSearchCache();
+                syncCatalog();
+            }
+        };
+        if (eagerStartup)
+            initNetwork.run();
+        else
+            cacheExecutor.execute(initNetwork);
+
+        if (downloader == null) {
+            // Downloads share a budget with the service's stream caches
+            final AudioStorage storage = AudioStorage.get(this);
+            downloader = new AudiobookDownloader(storage.getDownloadDirectory(), DOWNLOAD_CONNECTIONS);
+            downloader.setStorage(storage);
+            cacheExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        storage.load();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+        downloader.setListener(downloadListener);
 
         /*
         Get an instance of BookListFragment with an empty list of books
@@ -198,10 +476,10 @@ public class MainActivity extends AppCompatActivity implements BookListFragment.
         books if we had previously performed a search
          */
         bookListFragment = BookListFragment.newInstance(books);
+        resumePaging();
 
-        fm.beginTransaction()
-                .replace(R.id.container1, bookListFragment)
-        .commit();
+        FragmentTransaction transaction = fm.beginTransaction()
+                .replace(R.id.container1, bookListFragment);
 
         /*
         If we have two containers available, load a single instance
@@ -218,10 +496,10 @@ public class MainActivity extends AppCompatActivity implements BookListFragment.
             else
                 bookDetailsFragment = new BookDetailsFragment();
 
-            fm.beginTransaction()
-                    .replace(R.id.container2, bookDetailsFragment)
-                    .commit();
+            // Both panes go in together, so there is one commit to run before the first frame
+            transaction.replace(R.id.container2, bookDetailsFragment).commit();
         } else {
+            transaction.commit();
             if (selectedBook != null) {
                 fm.beginTransaction()
                         .replace(R.id.container1, BookDetailsFragment.newInstance(selectedBook))
@@ -230,48 +508,331 @@ public class MainActivity extends AppCompatActivity implements BookListFragment.
                         .commit();
             }
         }
+
+        startupTimer.watch(getWindow().getDecorView(), eagerStartup ? null : new Runnable() {
+            @Override
+            public void run() {
+                bindToService();
+            }
+        });
+    }
+
+    private void bindToService() {
+        if (bound)
+            return;
+        bound = bindService(bindIntent, connection, BIND_AUTO_CREATE);
+    }
+
+    /*
+    OkHttp does the HTTP caching and revalidation, and SearchCache keeps
+    the parsed results, so Volley doesn't need a cache of its own
+     */
+    static synchronized RequestQueue getRequestQueue(Context context) {
+        if (requestQueue == null) {
+            RequestQueue queue = new RequestQueue(new NoCache(), new BasicNetwork(OkHttpStack.get(context)));
+            queue.start();
+            requestQueue = queue;
+        }
+        return requestQueue;
+    }
+
+    synchronized SearchCache getSearchCache() {
+        if (searchCache == null)
+            searchCache = new SearchCache(new File(getCacheDir(), "search_cache"),
+                    SEARCH_CACHE_MEMORY_ENTRIES, SEARCH_CACHE_DISK_ENTRIES,
+                    SEARCH_CACHE_TTL, SEARCH_CACHE_STALE);
+        return searchCache;
+    }
+
+    /*
+    The main thread never waits for the request queue to be made.
+    Until it has been, requests are added from cacheExecutor, which
+    makes it if initNetwork hasn't got to it yet.
+     */
+    private void addRequest(final Request<?> request) {
+        RequestQueue queue = requestQueue;
+        if (queue != null) {
+            queue.add(request);
+            return;
+        }
+        cacheExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Too late for onDestroy to have cancelled it
+                if (!isDestroyed())
+                    getRequestQueue(MainActivity.this).add(request);
+            }
+        });
     }
 
     /*
-    Fetch a set of "books" from from the web service API
+    Fetch a set of "books" from from the web service API.
+    Previous results are shown straight away from the search cache,
+    and the network is only used when the cached copy is missing or old.
      */
-    private void fetchBooks(String searchString) {
+    private void fetchBooks(final String searchString) {
+        final String query = SearchCache.normalize(searchString);
+        final int sequence = searchSequence.next();
+        lastQuery = query;
+        cancelSupersededSearches(query);
+
+        // Until cacheExecutor has made the search cache, the memory tier is empty anyway
+        SearchCache cache = searchCache;
+        SearchCache.Entry cached = cache != null ? cache.getFromMemory(query) : null;
+        if (cached != null) {
+            showSearchResults(sequence, query, cached.getBooks());
+            if (!cached.isFresh())
+                fetchBooksFromNetwork(query, sequence);
+            return;
+        }
+
         /*
-        A Volloy JSONArrayRequest will automatically convert a JSON Array response from
-        a web server to an Android JSONArray object
+        Reading the disk tier happens off the main thread and
+        the result is handed back through the main handler
          */
-        JsonArrayRequest jsonArrayRequest = new JsonArrayRequest(SEARCH_API + searchString, new Response.Listener<JSONArray>() {
+        cacheExecutor.execute(new Runnable() {
             @Override
-            public void onResponse(JSONArray response) {
-                if (response.length() > 0) {
-                    books.clear();
-                    for (int i = 0; i < response.length(); i++) {
-                        try {
-                            JSONObject bookJSON;
-                            bookJSON = response.getJSONObject(i);
-                            books.add(new Book (bookJSON.getInt(Book.JSON_ID),
-                                    bookJSON.getString(Book.JSON_TITLE),
-                                    bookJSON.getString(Book.JSON_AUTHOR),
-                                    bookJSON.getString(Book.JSON_COVER_URL),
-                                    bookJSON.getInt(Book.JSON_DURATION)));
-                        } catch (JSONException e) {
-                            e.printStackTrace();
-                        }
+            public void run() {
+                final SearchCache.Entry entry = getSearchCache().get(query);
+                if (entry != null)
+                    bookIndex.addAll(entry.getBooks());
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isDestroyed())
+                            return;
+                        if (entry != null)
+                            showSearchResults(sequence, query, entry.getBooks());
+                        if ((entry == null || !entry.isFresh()) && searchSequence.isLatest(sequence))
+                            fetchBooksFromNetwork(query, sequence);
                     }
-                    updateBooksDisplay();
-                } else {
-                    Toast.makeText(MainActivity.this, getString(R.string.search_error_message), Toast.LENGTH_SHORT).show();
-                }
+                });
             }
-        }, new Response.ErrorListener() {
+        });
+    }
+
+    /*
+    Brings the local copy of the catalog up to date if it's due
+     */
+    private void syncCatalog() {
+        if (!catalogSyncStarted.compareAndSet(false, true))
+            return;
+        final CatalogSync sync = new CatalogSync(
+                new CatalogSync.HttpSource(OkHttpStack.sharedClient(), SEARCH_API),
+                catalogDatabase, CATALOG_SYNC_PAGE_SIZE, CATALOG_SYNC_BATCH_SIZE);
+        catalogSyncExecutor.execute(new Runnable() {
             @Override
-            public void onErrorResponse(VolleyError error) {
+            public void run() {
+                if (!sync.isDue(System.currentTimeMillis(), CATALOG_SYNC_INTERVAL))
+                    return;
+                try {
+                    Log.i(TAG, "Catalog sync: " + sync.run());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
 
+    /*
+    Show whatever the local catalog already knows about, straight away.
+    The synced copy of the catalog is searched through its full text
+    index, and until there is one, the books we've been sent so far.
+     */
+    private void searchCatalog(final String query) {
+        final int sequence = searchSequence.next();
+        cacheExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ArrayList<Book> found = catalogDatabase.search(query, MAX_LOCAL_RESULTS);
+                if (found.isEmpty())
+                    found = bookIndex.search(query, MAX_LOCAL_RESULTS);
+                if (found.isEmpty())
+                    found = bookIndex.fuzzySearch(query, MAX_LOCAL_RESULTS);
+                final ArrayList<Book> results = found;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isDestroyed() && results.size() > 0)
+                            showBooks(sequence, results);
+                    }
+                });
             }
         });
-        requestQueue.add(jsonArrayRequest);
+    }
+
+    /*
+    The server's results come first, followed by anything else in
+    the catalog that matches but the server didn't send back
+     */
+    private ArrayList<Book> withCatalogMatches(String query, ArrayList<Book> response) {
+        ArrayList<Book> results = new ArrayList<>(response);
+        HashSet<Integer> ids = new HashSet<>();
+        for (Book book : response)
+            ids.add(book.getId());
+        for (Book book : bookIndex.search(query, MAX_LOCAL_RESULTS))
+            if (ids.add(book.getId()))
+                results.add(book);
+        return results;
+    }
+
+    /*
+    The first page of a search, from the server or the search cache.
+    Anything shorter than a full page is the whole result. A full page
+    means there could be more, so the rest is paged in as the list scrolls.
+    A server that ignores paging sends more than a page, which is shown
+    as it is, and once it has been caught ignoring paging nothing is paged.
+     */
+    private void showSearchResults(int sequence, String query, ArrayList<Book> firstPage) {
+        if (firstPage.size() != SEARCH_PAGE_SIZE || serverIgnoresPaging) {
+            showBooks(sequence, withCatalogMatches(query, firstPage));
+            return;
+        }
+        if (!searchSequence.show(sequence))
+            return;
+        pendingBooksHandle = null;
+        closePagedBooks();
+
+        pagedBooks = new PagedBookSource(pageLoader, query, SEARCH_PAGE_SIZE, SEARCH_PAGE_WINDOW);
+        pagedBooks.setFirstPage(firstPage);
+        // Only the first page is kept with the activity's state
+        books.clear();
+        books.addAll(firstPage);
+        if (fm.findFragmentById(R.id.container1) instanceof BookDetailsFragment)
+            fm.popBackStack();
+        bookListFragment.showPagedBooks(pagedBooks);
+    }
+
+    private void closePagedBooks() {
+        if (pagedBooks != null) {
+            pagedBooks.close();
+            pagedBooks = null;
+            if (requestQueue != null)
+                requestQueue.cancelAll(pageRequestTag);
+        }
+    }
+
+    private String pageUrl(String query, int offset, int limit) {
+        return SEARCH_API + Uri.encode(query) + "&offset=" + offset + "&limit=" + limit;
+    }
+
+    /*
+    Results for an older search never replace results for a newer one
+     */
+    private boolean showBooks(int sequence, ArrayList<Book> results) {
+        if (!searchSequence.show(sequence))
+            return false;
+        pendingBooksHandle = null;
+        closePagedBooks();
+        books.clear();
+        books.addAll(results);
+        updateBooksDisplay();
+        return true;
+    }
+
+    /*
+    Requests for any query other than the current one are no longer
+    needed, so take them out of the request queue
+     */
+    private void cancelSupersededSearches(String query) {
+        Iterator<Map.Entry<String, SearchResponseListener>> iterator = inFlightSearches.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, SearchResponseListener> entry = iterator.next();
+            if (!entry.getKey().equals(query)) {
+                entry.getValue().request.cancel();
+                iterator.remove();
+            }
+        }
+    }
+
+    private void fetchBooksFromNetwork(String query, int sequence) {
+        /*
+        If the same query is already on its way, don't send it again.
+        The pending response is simply delivered as the newer search.
+         */
+        SearchResponseListener inFlight = inFlightSearches.get(query);
+        if (inFlight != null) {
+            inFlight.sequence = sequence;
+            return;
+        }
+
+        /*
+        A BookListRequest parses the response into Book objects on a Volley
+        worker thread, so only the finished list is delivered to the main thread
+         */
+        SearchResponseListener listener = new SearchResponseListener(query, sequence);
+        listener.request = new BookListRequest(pageUrl(query, 0, SEARCH_PAGE_SIZE), listener, listener);
+        listener.request.setTag(searchRequestTag);
+        inFlightSearches.put(query, listener);
+        addRequest(listener.request);
     };
 
+    class SearchResponseListener implements Response.Listener<ArrayList<Book>>, Response.ErrorListener {
+
+        final String query;
+        int sequence;
+        BookListRequest request;
+
+        SearchResponseListener(String query, int sequence) {
+            this.query = query;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void onResponse(final ArrayList<Book> response) {
+            finished();
+            if (response.size() > 0) {
+                showSearchResults(sequence, query, response);
+                cacheExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        getSearchCache().put(query, response);
+                        bookIndex.addAll(response);
+                    }
+                });
+            } else if (searchSequence.isLatest(sequence)) {
+                showCloseMatches(query, sequence);
+            }
+        }
+
+        @Override
+        public void onErrorResponse(VolleyError error) {
+            finished();
+            if (searchSequence.isLatest(sequence))
+                showCloseMatches(query, sequence);
+        }
+
+        private void finished() {
+            if (inFlightSearches.get(query) == this)
+                inFlightSearches.remove(query);
+        }
+    }
+
+    /*
+    The server searches for exactly what was typed, so when it finds
+    nothing, look through the books we know about for ones that are close,
+    in case the query was misspelled
+     */
+    private void showCloseMatches(final String query, final int sequence) {
+        cacheExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final ArrayList<Book> matches = bookIndex.fuzzySearch(query, MAX_LOCAL_RESULTS);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isDestroyed() || !searchSequence.isLatest(sequence))
+                            return;
+                        if (matches.isEmpty())
+                            Toast.makeText(MainActivity.this, getString(R.string.search_error_message), Toast.LENGTH_SHORT).show();
+                        else
+                            showBooks(sequence, matches);
+                    }
+                });
+            }
+        });
+    }
+
     private void updateBooksDisplay() {
         /*
         Remove the BookDetailsFragment from the container after a search
@@ -283,8 +844,8 @@ public class MainActivity extends AppCompatActivity implements BookListFragment.
     }
 
     @Override
-    public void bookSelected(int index) {
-        selectedBook = books.get(index);
+    public void bookSelected(Book book) {
+        selectedBook = book;
         if (twoPane)
             /*
             Display selected book using previously attached fragment
@@ -300,6 +861,15 @@ public class MainActivity extends AppCompatActivity implements BookListFragment.
                     .addToBackStack(null)
                     .commit();
         }
+
+        // Start preparing the book now, so pressing play can start it right away
+        if (connected) {
+            File downloaded = downloader.getDownloadedFile(selectedBook.getId());
+            if (downloaded != null)
+                binder.prepareStandby(selectedBook.getId(), downloaded);
+            else
+                binder.prepareStandby(selectedBook.getId());
+        }
     }
 
     @Override
@@ -307,11 +877,70 @@ public class MainActivity extends AppCompatActivity implements BookListFragment.
         super.onSaveInstanceState(outState);
 
         // Save previously searched books as well as selected book
-        outState.putParcelableArrayList(BOOKS_KEY, books);
+        // Books still being restored keep the handle they'll be restored from
+        outState.putString(BOOKS_HANDLE_KEY, pendingBooksHandle != null
+                ? pendingBooksHandle : bookListStore.save(BOOKS_HANDLE_KEY, books));
         outState.putParcelable(SELECTED_BOOK_KEY, selectedBook);
         outState.putString(CURRENT_BOOK_KEY, currentBookName);
         outState.putInt(SAVED_PROGRESS_KEY, savedProgress);
         outState.putString(NOW_PLAYING_KEY, nowPlayingText);
+        outState.putString(LAST_QUERY_KEY, lastQuery);
+        outState.putBoolean(MORE_PAGES_KEY, pendingBooksHandle != null
+                ? morePages : pagedBooks != null && !pagedBooks.isEndReached());
+    }
+
+    /*
+    After rotation the books are still in memory and come straight back.
+    After the process was killed they have to be read from their snapshot,
+    which happens on cacheExecutor while the activity starts with an empty
+    list. They are shown when they arrive unless a search has been shown
+    by then.
+     */
+    private ArrayList<Book> restoreBooks(final String handle) {
+        ArrayList<Book> restored = bookListStore.restoreFromMemory(handle);
+        if (restored != null || handle == null)
+            return restored != null ? restored : new ArrayList<Book>();
+
+        pendingBooksHandle = handle;
+        final int sequence = searchSequence.next();
+        cacheExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                final ArrayList<Book> books = bookListStore.restore(handle);
+                Log.i(TAG, "Restored " + (books == null ? 0 : books.size()) + " books in "
+                        + (SystemClock.elapsedRealtime() - start) + "ms");
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isDestroyed() || !handle.equals(pendingBooksHandle))
+                            return;
+                        pendingBooksHandle = null;
+                        if (books != null && searchSequence.show(sequence))
+                            showRestoredBooks(books);
+                    }
+                });
+            }
+        });
+        return new ArrayList<Book>();
+    }
+
+    private void showRestoredBooks(ArrayList<Book> restored) {
+        books.clear();
+        books.addAll(restored);
+        bookListFragment.updateBooksDisplay(books);
+        resumePaging();
+    }
+
+    /*
+    Carry on paging from where we were if there were more pages to load
+     */
+    private void resumePaging() {
+        if (morePages && !serverIgnoresPaging && lastQuery.length() > 0 && books.size() > 0) {
+            pagedBooks = new PagedBookSource(pageLoader, lastQuery, SEARCH_PAGE_SIZE, SEARCH_PAGE_WINDOW);
+            pagedBooks.setFirstPage(new ArrayList<>(books));
+            bookListFragment.showPagedBooks(pagedBooks);
+        }
     }
 
     @Override
@@ -322,17 +951,61 @@ public class MainActivity extends AppCompatActivity implements BookListFragment.
                 binder.stop();
             }
             seekBar.setMax(book.getDuration());
-            binder.play(book.getId());
+
+            // Pick up where the listener left off, even if the app was killed since
+            int startPosition = binder.getSavedPosition(book.getId());
+
+            // Books that have been downloaded are played from disk instead of streamed
+            File downloaded = downloader.getDownloadedFile(book.getId());
+            if (downloaded != null)
+                binder.play(book.getId(), downloaded, startPosition);
+            else
+                binder.play(book.getId(), startPosition);
             currentBookName = book.getTitle();
             nowPlayingText = "Now Playing: " + book.getTitle();
             nowPlayingTextView = findViewById(R.id.nowPlaying);
             nowPlayingTextView.setText(nowPlayingText);
+        } else {
+            // Play as soon as the service is up
+            pendingPlay = book;
+            bindToService();
         }
     }
 
+    @Override
+    public void downloadButtonPressed(Book book) {
+        if (downloader.getDownloadedFile(book.getId()) != null) {
+            BookDetailsFragment fragment = displayedDetailsFragment();
+            if (fragment != null)
+                fragment.showDownloadComplete(book.getId());
+        } else {
+            downloader.download(book.getId(), BOOK_DOWNLOAD_URL + book.getId());
+        }
+    }
+
+    private BookDetailsFragment displayedDetailsFragment() {
+        if (twoPane)
+            return bookDetailsFragment;
+        if (fm.findFragmentById(R.id.container1) instanceof BookDetailsFragment)
+            return (BookDetailsFragment) fm.findFragmentById(R.id.container1);
+        return null;
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
-        unbindService(connection);
+        if (bound)
+            unbindService(connection);
+        downloader.setListener(null);
+        /*
+        Anything still queued on cacheExecutor is allowed to finish, but
+        whatever it posts back checks isDestroyed() first, and nothing
+        already posted is left to run
+         */
+        mainHandler.removeCallbacksAndMessages(null);
+        if (requestQueue != null)
+            requestQueue.cancelAll(searchRequestTag);
+        closePagedBooks();
+        cacheExecutor.shutdown();
     }
 }
@@ -0,0 +1,214 @@
+package com.example.bookshelf;
+
+import android.content.Context;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Header;
+import com.android.volley.Request;
+import com.android.volley.toolbox.BaseHttpStack;
+import com.android.volley.toolbox.HttpResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Cache;
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.EventListener;
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/*
+Lets Volley send its requests through OkHttp instead of HttpURLConnection.
+
+Connections are pooled and shared with the cover loader, and OkHttp
+multiplexes requests to the same host over one HTTP/2 connection when
+the server supports it. Responses are asked for gzipped and unzipped
+transparently. Responses are also kept in a small HTTP cache, so asking
+for the same search again sends the ETag or Last-Modified it came with
+and the server can answer with a short 304 instead of the whole list.
+Volley never sees the 304, just the cached response.
+ */
+public class OkHttpStack extends BaseHttpStack {
+
+    private static final long HTTP_CACHE_SIZE = 5 * 1024 * 1024;
+
+    private static OkHttpClient sharedClient;
+    private static OkHttpStack instance;
+
+    private final OkHttpClient client;
+    private final Stats stats = new Stats();
+
+    public OkHttpStack(OkHttpClient client) {
+        this.client = client.newBuilder().eventListener(stats.wireCounter).build();
+    }
+
+    /*
+    One client, and so one connection pool, for everything the app downloads
+     */
+    public static synchronized OkHttpClient sharedClient() {
+        if (sharedClient == null) {
+            sharedClient = new OkHttpClient.Builder()
+                    .connectionPool(new ConnectionPool(5, 5, TimeUnit.MINUTES))
+                    .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                    .build();
+        }
+        return sharedClient;
+    }
+
+    /*
+    Stack for the request queue, with the HTTP cache in the app's cache
+    directory. There is only ever one, as two caches open on the same
+    directory would write over each other's entries.
+     */
+    public static synchronized OkHttpStack get(Context context) {
+        if (instance == null) {
+            Cache cache = new Cache(new File(context.getApplicationContext().getCacheDir(), "http"), HTTP_CACHE_SIZE);
+            instance = new OkHttpStack(sharedClient().newBuilder().cache(cache).build());
+        }
+        return instance;
+    }
+
+    public Stats getStats() {
+        return stats;
+    }
+
+    @Override
+    public HttpResponse executeRequest(Request<?> request, Map<String, String> additionalHeaders)
+            throws IOException, AuthFailureError {
+        HashMap<String, String> headers = new HashMap<>(request.getHeaders());
+        headers.putAll(additionalHeaders);
+        return execute(request.getUrl(), request.getMethod(), headers, request.getBody(),
+                request.getBodyContentType(), request.getTimeoutMs());
+    }
+
+    HttpResponse execute(String url, int method, Map<String, String> headers, byte[] body,
+                         String contentType, int timeoutMs) throws IOException {
+        OkHttpClient client = this.client;
+        if (timeoutMs != client.readTimeoutMillis()) {
+            // Shares the pool and cache, only the timeouts differ
+            client = client.newBuilder()
+                    .connectTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                    .readTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                    .writeTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                    .build();
+        }
+
+        okhttp3.Request.Builder builder = new okhttp3.Request.Builder().url(url);
+        for (Map.Entry<String, String> header : headers.entrySet())
+            builder.header(header.getKey(), header.getValue());
+        setMethod(builder, method, body, contentType);
+
+        Response response = client.newCall(builder.build()).execute();
+        stats.requests.incrementAndGet();
+        if (response.networkResponse() == null)
+            stats.cacheHits.incrementAndGet();
+        else if (response.cacheResponse() != null)
+            stats.notModified.incrementAndGet();
+
+        ArrayList<Header> responseHeaders = new ArrayList<>();
+        Headers okHeaders = response.headers();
+        for (int i = 0; i < okHeaders.size(); i++)
+            responseHeaders.add(new Header(okHeaders.name(i), okHeaders.value(i)));
+
+        ResponseBody responseBody = response.body();
+        if (responseBody == null || method == Request.Method.HEAD) {
+            if (responseBody != null)
+                responseBody.close();
+            return new HttpResponse(response.code(), responseHeaders);
+        }
+        // -1 when the body was unzipped, which Volley handles
+        long length = responseBody.contentLength();
+        return new HttpResponse(response.code(), responseHeaders,
+                length > Integer.MAX_VALUE ? -1 : (int) length, responseBody.byteStream());
+    }
+
+    private static void setMethod(okhttp3.Request.Builder builder, int method, byte[] body, String contentType) {
+        RequestBody requestBody = body == null ? null : RequestBody.create(MediaType.parse(contentType), body);
+        switch (method) {
+            case Request.Method.DEPRECATED_GET_OR_POST:
+            case Request.Method.GET:
+                if (requestBody != null)
+                    builder.post(requestBody);
+                else
+                    builder.get();
+                break;
+            case Request.Method.DELETE:
+                builder.delete(requestBody);
+                break;
+            case Request.Method.POST:
+                builder.post(requestBody != null ? requestBody : RequestBody.create(null, new byte[0]));
+                break;
+            case Request.Method.PUT:
+                builder.put(requestBody != null ? requestBody : RequestBody.create(null, new byte[0]));
+                break;
+            case Request.Method.PATCH:
+                builder.patch(requestBody != null ? requestBody : RequestBody.create(null, new byte[0]));
+                break;
+            case Request.Method.HEAD:
+                builder.head();
+                break;
+            case Request.Method.OPTIONS:
+                builder.method("OPTIONS", null);
+                break;
+            case Request.Method.TRACE:
+                builder.method("TRACE", null);
+                break;
+            default:
+                throw new IllegalStateException("Unknown method " + method);
+        }
+    }
+
+    /*
+    What has gone over the network. Bytes are counted as they arrive,
+    so a gzipped response counts its compressed size.
+     */
+    public static class Stats {
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong cacheHits = new AtomicLong();
+        final AtomicLong notModified = new AtomicLong();
+        final AtomicLong bytesReceived = new AtomicLong();
+
+        final EventListener wireCounter = new EventListener() {
+            @Override
+            public void responseHeadersEnd(Call call, Response response) {
+                bytesReceived.addAndGet(response.headers().byteCount());
+            }
+
+            @Override
+            public void responseBodyEnd(Call call, long byteCount) {
+                bytesReceived.addAndGet(byteCount);
+            }
+        };
+
+        public long getRequests() {
+            return requests.get();
+        }
+
+        /*
+        Requests answered by the server with 304 Not Modified
+         */
+        public long getNotModified() {
+            return notModified.get();
+        }
+
+        public long getCacheHits() {
+            return cacheHits.get();
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived.get();
+        }
+    }
+}
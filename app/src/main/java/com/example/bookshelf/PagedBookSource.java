@@ -0,0 +1,217 @@
+package com.example.bookshelf;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+The results of one search, loaded a page at a time as the list scrolls.
+
+Only a fixed number of pages are kept in memory. When another page is
+needed, the page that was used least recently is dropped, and if the
+list scrolls back to it later it is simply loaded again. How many books
+there are in total isn't known up front; the list ends at the first
+page that comes back short.
+
+This is used from the main thread only. The loader can take as long as
+it likes, but it must deliver its results on the main thread.
+ */
+public class PagedBookSource {
+
+    /*
+    Fetches `limit` results for a query, starting at result `offset`
+     */
+    public interface PageLoader {
+        void loadPage(String query, int offset, int limit, Callback callback);
+
+        interface Callback {
+            void onPageLoaded(ArrayList<Book> books);
+            void onError(Exception e);
+        }
+    }
+
+    public interface Listener {
+        void onPageLoaded(int start, int count);
+        void onError(Exception e);
+    }
+
+    private final PageLoader loader;
+    private final String query;
+    private final int pageSize, maxPages;
+
+    private final LinkedHashMap<Integer, ArrayList<Book>> pages;
+    private final HashSet<Integer> loading = new HashSet<>();
+    private Listener listener;
+
+    // Number of books we know exist, and whether there could be more after them
+    private int knownCount;
+    private boolean endReached, pagingIgnored;
+    private int firstBookId = -1;
+    private boolean closed;
+    private int loadCount;
+
+    public PagedBookSource(PageLoader loader, String query, int pageSize, final int maxPages) {
+        this.loader = loader;
+        this.query = query;
+        this.pageSize = pageSize;
+        this.maxPages = maxPages;
+
+        // Access order, so the eldest entry is the page used least recently
+        pages = new LinkedHashMap<Integer, ArrayList<Book>>(maxPages + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, ArrayList<Book>> eldest) {
+                return size() > PagedBookSource.this.maxPages;
+            }
+        };
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /*
+    Hands over a first page that was already fetched some other way
+     */
+    public void setFirstPage(ArrayList<Book> books) {
+        pageLoaded(0, books);
+    }
+
+    /*
+    The number of rows to show: every book we know about, plus one
+    more for the row that loads the next page if the end isn't known yet
+     */
+    public int getCount() {
+        return endReached ? knownCount : knownCount + 1;
+    }
+
+    public boolean isEndReached() {
+        return endReached;
+    }
+
+    /*
+    True once a later page showed the server doesn't understand paging,
+    so the caller knows not to page other searches either
+     */
+    public boolean isPagingIgnored() {
+        return pagingIgnored;
+    }
+
+    /*
+    The book at a position, or null if its page isn't loaded yet, in which
+    case the page is requested. Getting close to the end of a page also
+    starts loading the next one so it is usually there before it's needed.
+     */
+    public Book getBook(int position) {
+        int page = position / pageSize;
+        int index = position % pageSize;
+
+        if (index >= pageSize * 3 / 4)
+            load(page + 1);
+        else if (index < pageSize / 4 && page > 0)
+            load(page - 1);
+
+        ArrayList<Book> books = pages.get(page);
+        if (books == null) {
+            load(page);
+            return null;
+        }
+        return index < books.size() ? books.get(index) : null;
+    }
+
+    /*
+    The book at a position if it is already loaded, without loading anything
+     */
+    public Book peekBook(int position) {
+        ArrayList<Book> books = pages.get(position / pageSize);
+        int index = position % pageSize;
+        return books != null && index < books.size() ? books.get(index) : null;
+    }
+
+    public int getLoadedPageCount() {
+        return pages.size();
+    }
+
+    /*
+    How many pages have been asked of the loader, reloads included
+     */
+    public int getLoadCount() {
+        return loadCount;
+    }
+
+    /*
+    Results that arrive after this are ignored
+     */
+    public void close() {
+        closed = true;
+        listener = null;
+        pages.clear();
+        loading.clear();
+    }
+
+    private void load(final int page) {
+        if (closed || pages.containsKey(page) || loading.contains(page))
+            return;
+        if (endReached && page * pageSize >= knownCount)
+            return;
+
+        loading.add(page);
+        loadCount++;
+        loader.loadPage(query, page * pageSize, pageSize, new PageLoader.Callback() {
+            @Override
+            public void onPageLoaded(ArrayList<Book> books) {
+                if (closed)
+                    return;
+                loading.remove(page);
+                pageLoaded(page, books);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                if (closed)
+                    return;
+                // Nothing is remembered, so the next time the page is needed it is tried again
+                loading.remove(page);
+                if (listener != null)
+                    listener.onError(e);
+            }
+        });
+    }
+
+    private void pageLoaded(int page, ArrayList<Book> books) {
+        /*
+        A server that doesn't understand paging sends back the same
+        first results whatever offset we ask for, so that is where the list ends
+         */
+        if (page > 0 && (books.size() > pageSize
+                || (books.size() > 0 && books.get(0).getId() == firstBookId))) {
+            pagingIgnored = true;
+            books = new ArrayList<>();
+        }
+        if (page == 0 && books.size() > 0)
+            firstBookId = books.get(0).getId();
+        if (books.size() > pageSize)
+            books = new ArrayList<>(books.subList(0, pageSize));
+
+        int start = page * pageSize;
+        if (books.size() > 0)
+            pages.put(page, books);
+        if (start + books.size() > knownCount)
+            knownCount = start + books.size();
+        if (books.size() < pageSize) {
+            endReached = true;
+            knownCount = start + books.size();
+        }
+
+        if (listener != null)
+            listener.onPageLoaded(start, books.size());
+    }
+}
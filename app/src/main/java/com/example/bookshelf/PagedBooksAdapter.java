@@ -0,0 +1,92 @@
+package com.example.bookshelf;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+/*
+Shows search results that are loaded a page at a time.
+
+Binding a row whose page isn't loaded yet asks the source for it and
+shows a placeholder until it arrives. When a page arrives, only its rows
+are rebound, plus any rows the list grew by.
+
+A row is its position in the results, so there are no stable ids: a
+book's id would only be known while its page is loaded, and a row's id
+would change as pages are loaded and evicted.
+ */
+public class PagedBooksAdapter extends RecyclerView.Adapter<BooksAdapter.BookViewHolder>
+        implements PagedBookSource.Listener, CoverPrefetcher.BookRows {
+
+    private final Context context;
+    private final PagedBookSource source;
+    private final BooksAdapter.OnBookClickListener clickListener;
+    private int count;
+
+    public PagedBooksAdapter(Context context, PagedBookSource source, BooksAdapter.OnBookClickListener clickListener) {
+        this.context = context;
+        this.source = source;
+        this.clickListener = clickListener;
+        count = source.getCount();
+        source.setListener(this);
+    }
+
+    @Override
+    public int getItemCount() {
+        return count;
+    }
+
+    @NonNull
+    @Override
+    public BooksAdapter.BookViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(context).inflate(R.layout.books_adapter_layout, parent, false);
+        return new BooksAdapter.BookViewHolder(view, clickListener);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull BooksAdapter.BookViewHolder holder, int position) {
+        holder.bind(source.getBook(position));
+    }
+
+    @Override
+    public void onViewRecycled(@NonNull BooksAdapter.BookViewHolder holder) {
+        CoverLoader.get(context).cancelRequest(holder.coverImageView);
+    }
+
+    @Override
+    public Book peekBook(int position) {
+        return source.peekBook(position);
+    }
+
+    @Override
+    public void onPageLoaded(int start, int loaded) {
+        int newCount = source.getCount();
+        int oldCount = count;
+        count = newCount;
+
+        if (newCount > oldCount)
+            notifyItemRangeInserted(oldCount, newCount - oldCount);
+        else if (newCount < oldCount)
+            notifyItemRangeRemoved(newCount, oldCount - newCount);
+
+        int end = Math.min(start + loaded, Math.min(oldCount, newCount));
+        if (end > start)
+            notifyItemRangeChanged(start, end - start);
+    }
+
+    @Override
+    public void onError(Exception e) {
+        e.printStackTrace();
+    }
+
+    /*
+    Called when the list stops showing these results
+     */
+    public void close() {
+        source.setListener(null);
+    }
+}
@@ -0,0 +1,249 @@
+package com.example.bookshelf;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+Two-tier cache for book search results. Results are kept in a small
+in-memory LRU map and written through to a directory on disk so they
+survive the process being killed. Every entry remembers when it was
+fetched so callers can decide between using it as-is, using it while
+refreshing in the background (stale-while-revalidate), or ignoring it.
+ */
+public class SearchCache {
+
+    private static final int FILE_VERSION = 3;
+    private static final String FILE_SUFFIX = ".books";
+
+    private final File directory;
+    private final int maxMemoryEntries, maxDiskEntries;
+    private final long ttlMillis, staleMillis;
+
+    private final LinkedHashMap<String, Entry> memory;
+
+    public SearchCache(File directory, int maxMemoryEntries, int maxDiskEntries, long ttlMillis, long staleMillis) {
+        this.directory = directory;
+        this.maxMemoryEntries = maxMemoryEntries;
+        this.maxDiskEntries = maxDiskEntries;
+        this.ttlMillis = ttlMillis;
+        this.staleMillis = staleMillis;
+
+        // Access ordered so the eldest entry is always the least recently used one
+        memory = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > SearchCache.this.maxMemoryEntries;
+            }
+        };
+    }
+
+    /*
+    Searches that only differ in case or spacing should share a cache entry
+     */
+    public static String normalize(String query) {
+        if (query == null)
+            return "";
+        return query.trim().replaceAll("\\s+", " ").toLowerCase(Locale.US);
+    }
+
+    /*
+    Only looks at the memory tier, so it is safe to call from the main thread
+     */
+    public synchronized Entry getFromMemory(String query) {
+        String key = normalize(query);
+        Entry entry = memory.get(key);
+        if (entry != null && !entry.isUsable()) {
+            memory.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    /*
+    Looks in memory first and then on disk. Entries found on disk are
+    promoted back into memory. Returns null if nothing usable was found.
+     */
+    public Entry get(String query) {
+        Entry entry = getFromMemory(query);
+        if (entry != null)
+            return entry;
+
+        String key = normalize(query);
+        File file = fileFor(key);
+        if (!file.exists())
+            return null;
+
+        try {
+            entry = readEntry(file, key);
+        } catch (IOException e) {
+            e.printStackTrace();
+            file.delete();
+            return null;
+        }
+
+        // A different query whose name hashes to the same file
+        if (entry == null)
+            return null;
+
+        if (!entry.isUsable()) {
+            file.delete();
+            return null;
+        }
+
+        synchronized (this) {
+            memory.put(key, entry);
+        }
+        return entry;
+    }
+
+    public void put(String query, ArrayList<Book> books) {
+        String key = normalize(query);
+        Entry entry = new Entry(new ArrayList<>(books), now());
+
+        synchronized (this) {
+            memory.put(key, entry);
+        }
+
+        try {
+            writeEntry(fileFor(key), key, entry);
+            trimDisk();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized void clearMemory() {
+        memory.clear();
+    }
+
+    /*
+    Overridden by tests to control how old entries appear to be
+     */
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    private File fileFor(String key) {
+        // Queries can contain anything, so name files after a hash of the key.
+        // Different keys can share a file, so the key is in the file too.
+        return new File(directory, Integer.toHexString(key.hashCode()) + "_" + key.length() + FILE_SUFFIX);
+    }
+
+    /*
+    Returns null if the file holds the results of some other query
+     */
+    private Entry readEntry(File file, String key) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_VERSION)
+                throw new IOException("Unknown cache file version");
+            if (!in.readUTF().equals(key))
+                return null;
+            long fetchedAt = in.readLong();
+            int count = in.readInt();
+            ArrayList<Book> books = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                books.add(new Book(in.readInt(), readString(in), readString(in), readString(in), in.readInt()));
+            }
+            return new Entry(books, fetchedAt);
+        }
+    }
+
+    private void writeEntry(File file, String key, Entry entry) throws IOException {
+        if (!directory.exists() && !directory.mkdirs())
+            throw new IOException("Could not create " + directory);
+
+        // Write to a temporary file first so a crash never leaves a half written entry behind
+        File temp = new File(directory, file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(key);
+            out.writeLong(entry.fetchedAt);
+            out.writeInt(entry.books.size());
+            for (Book book : entry.books) {
+                out.writeInt(book.getId());
+                writeString(out, book.getTitle());
+                writeString(out, book.getAuthor());
+                writeString(out, book.getCoverUrl());
+                out.writeInt(book.getDuration());
+            }
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /*
+    Books can be missing a cover url, so strings may be null
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+            out.writeUTF(value);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private void trimDisk() {
+        File[] files = directory.listFiles();
+        if (files == null || files.length <= maxDiskEntries)
+            return;
+
+        // Oldest files go first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (int i = 0; i < files.length - maxDiskEntries; i++) {
+            files[i].delete();
+        }
+    }
+
+    public class Entry {
+        private final ArrayList<Book> books;
+        private final long fetchedAt;
+
+        Entry(ArrayList<Book> books, long fetchedAt) {
+            this.books = books;
+            this.fetchedAt = fetchedAt;
+        }
+
+        public ArrayList<Book> getBooks() {
+            return books;
+        }
+
+        public long getFetchedAt() {
+            return fetchedAt;
+        }
+
+        /*
+        A fresh entry can be used without asking the server again
+         */
+        public boolean isFresh() {
+            return now() - fetchedAt < ttlMillis;
+        }
+
+        /*
+        A usable entry that isn't fresh should be shown, but refreshed in the background
+         */
+        public boolean isUsable() {
+            return now() - fetchedAt < ttlMillis + staleMillis;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.bookshelf;
+
+/*
+Numbers searches in the order they were started.
+
+Results come back out of order: the search cache, the local catalog and
+the server all answer the same search, and an earlier search can answer
+after a later one. Results are only shown if nothing from a newer search
+has been shown already, and some work (asking the server, suggesting
+close matches) is only worth doing for the newest search.
+
+Only used from the main thread.
+ */
+class SearchSequence {
+
+    private int latest, shown;
+
+    /*
+    The number for a search that is starting now
+     */
+    int next() {
+        return ++latest;
+    }
+
+    /*
+    Whether no search has been started since this one
+     */
+    boolean isLatest(int sequence) {
+        return sequence == latest;
+    }
+
+    /*
+    Whether results for this search can be shown, which they can't if
+    a newer search's results already are. Results that can be shown are
+    taken to be shown, so older ones are turned away from then on.
+     */
+    boolean show(int sequence) {
+        if (sequence < shown)
+            return false;
+        shown = sequence;
+        return true;
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.bookshelf;
+
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+
+/*
+Times how long an activity takes to start, from onCreate to:
+
+- the first frame: a runnable posted to the decor view before it is
+  attached runs straight after the first traversal, which is the one
+  that draws the first frame
+- responding to input: the first time the main thread has nothing
+  queued after that frame, so a touch would be handled straight away
+
+Things that can wait until the screen is up are run at the first frame.
+ */
+class StartupTimer {
+
+    private static final String TAG = "StartupTimer";
+
+    private final String mode;
+    private final long start = SystemClock.uptimeMillis();
+    private volatile long firstFrame = -1, responsive = -1;
+
+    StartupTimer(String mode) {
+        this.mode = mode;
+    }
+
+    /*
+    Call at the end of onCreate. afterFirstFrame (which may be null)
+    runs on the main thread once the first frame is drawn.
+     */
+    void watch(View decorView, final Runnable afterFirstFrame) {
+        decorView.post(new Runnable() {
+            @Override
+            public void run() {
+                firstFrame = SystemClock.uptimeMillis() - start;
+                if (afterFirstFrame != null)
+                    afterFirstFrame.run();
+
+                Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+                    @Override
+                    public boolean queueIdle() {
+                        responsive = SystemClock.uptimeMillis() - start;
+                        Log.i(TAG, "Startup (" + mode + "): first frame " + firstFrame
+                                + "ms, responsive " + responsive + "ms");
+                        return false;
+                    }
+                });
+            }
+        });
+    }
+
+    String getMode() {
+        return mode;
+    }
+
+    /*
+    Milliseconds from onCreate, or -1 if it hasn't happened yet
+     */
+    long getFirstFrame() {
+        return firstFrame;
+    }
+
+    long getResponsive() {
+        return responsive;
+    }
+}
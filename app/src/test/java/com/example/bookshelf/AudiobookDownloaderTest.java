@@ -0,0 +1,253 @@
+package com.example.bookshelf;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.temple.audiobookplayer.AudioStorage;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the downloader against a local server that understands range requests.
+ */
+public class AudiobookDownloaderTest {
+
+    private static final int BOOK_ID = 7;
+
+    private HttpServer server;
+    private byte[] audio;
+    private String md5;
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+    private final AtomicLong bytesServed = new AtomicLong();
+    private volatile long failAfterBytes = -1;
+    private volatile boolean supportRanges = true;
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        audio = new byte[3 * 1024 * 1024 + 123];
+        new Random(42).nextBytes(audio);
+        md5 = base64(MessageDigest.getInstance("MD5").digest(audio));
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/download.php", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+        server.start();
+
+        directory = File.createTempFile("downloads", "");
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("ETag", "\"v1\"");
+        exchange.getResponseHeaders().set("Content-MD5", md5);
+        if (supportRanges)
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.getResponseHeaders().set("Content-Length", String.valueOf(audio.length));
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+            return;
+        }
+
+        int start = 0, end = audio.length - 1;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (supportRanges && range != null) {
+            rangeRequests.incrementAndGet();
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            start = Integer.parseInt(bounds[0]);
+            end = Integer.parseInt(bounds[1]);
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + audio.length);
+            exchange.sendResponseHeaders(206, end - start + 1);
+        } else {
+            exchange.sendResponseHeaders(200, audio.length);
+        }
+
+        try (OutputStream out = exchange.getResponseBody()) {
+            for (int position = start; position <= end; position += 8192) {
+                int length = Math.min(8192, end - position + 1);
+                if (failAfterBytes >= 0 && bytesServed.get() >= failAfterBytes) {
+                    // Drop the connection part way through, like a flaky mobile network
+                    exchange.close();
+                    return;
+                }
+                out.write(audio, position, length);
+                bytesServed.addAndGet(length);
+            }
+        }
+    }
+
+    private String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/download.php?id=" + BOOK_ID;
+    }
+
+    private Result download(AudiobookDownloader downloader) throws InterruptedException {
+        Result result = new Result();
+        downloader.setListener(result);
+        downloader.download(BOOK_ID, url());
+        assertTrue(result.done.await(30, TimeUnit.SECONDS));
+        return result;
+    }
+
+    @Test
+    public void downloadsInParallelRanges() throws Exception {
+        AudiobookDownloader downloader = new AudiobookDownloader(directory, 4);
+        Result result = download(downloader);
+
+        assertNull(result.error);
+        assertEquals(4, rangeRequests.get());
+        assertEquals(audio.length, result.lastProgress);
+        assertContentsMatch(result.file);
+        assertFalse(new File(directory, BOOK_ID + ".state").exists());
+        assertEquals(result.file, downloader.getDownloadedFile(BOOK_ID));
+    }
+
+    @Test
+    public void resumesAfterInterruption() throws Exception {
+        failAfterBytes = audio.length / 2;
+        Result failed = download(new AudiobookDownloader(directory, 4));
+        assertNotNull(failed.error);
+        long servedBeforeFailure = bytesServed.get();
+
+        // A new downloader stands in for the app being restarted
+        failAfterBytes = -1;
+        Result result = download(new AudiobookDownloader(directory, 4));
+
+        assertNull(result.error);
+        assertContentsMatch(result.file);
+        assertTrue("Resumed download should not fetch everything again",
+                bytesServed.get() - servedBeforeFailure < audio.length);
+    }
+
+    @Test
+    public void startsOverWhenThePartFileIsGone() throws Exception {
+        failAfterBytes = audio.length / 2;
+        assertNotNull(download(new AudiobookDownloader(directory, 4)).error);
+        assertTrue(new File(directory, BOOK_ID + ".state").exists());
+        assertTrue(new File(directory, BOOK_ID + ".part").delete());
+
+        failAfterBytes = -1;
+        bytesServed.set(0);
+        Result result = download(new AudiobookDownloader(directory, 4));
+
+        assertNull(result.error);
+        assertContentsMatch(result.file);
+        assertEquals(audio.length, bytesServed.get());
+    }
+
+    @Test
+    public void downloadedBooksAreLookedUpInStorage() throws Exception {
+        AudioStorage storage = new AudioStorage(new File(directory, "index"), directory, directory,
+                AudioStorage.DEFAULT_BUDGET, AudioStorage.Policy.LEAST_VALUABLE);
+        AudiobookDownloader downloader = new AudiobookDownloader(directory, 2);
+        downloader.setStorage(storage);
+        assertNull(downloader.getDownloadedFile(BOOK_ID));
+
+        Result result = download(downloader);
+        assertNull(result.error);
+        assertEquals(result.file, downloader.getDownloadedFile(BOOK_ID));
+        assertTrue(storage.isDownloaded(BOOK_ID));
+    }
+
+    @Test
+    public void fallsBackToSingleRequestWithoutRangeSupport() throws Exception {
+        supportRanges = false;
+        Result result = download(new AudiobookDownloader(directory, 4));
+
+        assertNull(result.error);
+        assertEquals(0, rangeRequests.get());
+        assertContentsMatch(result.file);
+    }
+
+    @Test
+    public void rejectsCorruptDownload() throws Exception {
+        md5 = base64(MessageDigest.getInstance("MD5").digest(new byte[1]));
+        Result result = download(new AudiobookDownloader(directory, 2));
+
+        assertNotNull(result.error);
+        assertNull(new AudiobookDownloader(directory, 2).getDownloadedFile(BOOK_ID));
+    }
+
+    private void assertContentsMatch(File file) throws IOException {
+        assertNotNull(file);
+        byte[] contents = new byte[(int) file.length()];
+        try (InputStream in = new FileInputStream(file)) {
+            int offset = 0, read;
+            while (offset < contents.length && (read = in.read(contents, offset, contents.length - offset)) > 0)
+                offset += read;
+        }
+        assertArrayEquals(audio, contents);
+    }
+
+    private static String base64(byte[] bytes) {
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < bytes.length; i += 3) {
+            int b = (bytes[i] & 0xff) << 16
+                    | (i + 1 < bytes.length ? (bytes[i + 1] & 0xff) << 8 : 0)
+                    | (i + 2 < bytes.length ? bytes[i + 2] & 0xff : 0);
+            out.append(alphabet.charAt(b >> 18 & 63)).append(alphabet.charAt(b >> 12 & 63));
+            out.append(i + 1 < bytes.length ? alphabet.charAt(b >> 6 & 63) : '=');
+            out.append(i + 2 < bytes.length ? alphabet.charAt(b & 63) : '=');
+        }
+        return out.toString();
+    }
+
+    private static class Result implements AudiobookDownloader.Listener {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile long lastProgress;
+        volatile File file;
+        volatile Exception error;
+
+        @Override
+        public void onProgress(int bookId, long downloaded, long total) {
+            lastProgress = downloaded;
+        }
+
+        @Override
+        public void onComplete(int bookId, File file) {
+            this.file = file;
+            done.countDown();
+        }
+
+        @Override
+        public void onError(int bookId, Exception e) {
+            error = e;
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.bookshelf;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class BookCatalogTest {
+
+    @Test
+    public void booksReadBackUnchanged() {
+        BookCatalog catalog = new BookCatalog(2);
+        ArrayList<Book> books = books(1000);
+        catalog.addAll(books);
+        catalog.add(new Book(5000, null, null, null, 0));
+
+        assertEquals(1001, catalog.size());
+        for (int row = 0; row < books.size(); row++) {
+            Book expected = books.get(row), actual = catalog.get(row);
+            assertEquals(expected.getId(), actual.getId());
+            assertEquals(expected.getTitle(), actual.getTitle());
+            assertEquals(expected.getAuthor(), actual.getAuthor());
+            assertEquals(expected.getCoverUrl(), actual.getCoverUrl());
+            assertEquals(expected.getDuration(), actual.getDuration());
+        }
+        Book empty = catalog.get(1000);
+        assertNull(empty.getTitle());
+        assertNull(empty.getAuthor());
+        assertNull(empty.getCoverUrl());
+    }
+
+    @Test
+    public void findsNewestRowForAnId() {
+        BookCatalog catalog = new BookCatalog();
+        catalog.addAll(books(500));
+        assertEquals(41, catalog.indexOf(42));
+        assertEquals(-1, catalog.indexOf(100000));
+
+        catalog.add(new Book(42, "New title", "Someone", null, 1));
+        assertEquals(500, catalog.indexOf(42));
+        assertEquals("New title", catalog.get(catalog.indexOf(42)).getTitle());
+    }
+
+    @Test
+    public void viewsAreReadOnly() {
+        BookCatalog catalog = new BookCatalog();
+        catalog.addAll(books(1));
+        try {
+            catalog.get(0).setTitle("Changed");
+            fail();
+        } catch (UnsupportedOperationException expected) {
+        }
+        assertTrue(BookCatalog.sameEntry(catalog.get(0), catalog.get(0)));
+        assertFalse(BookCatalog.sameEntry(catalog.get(0), books(1).get(0)));
+    }
+
+    /*
+    Titles are unique, authors and the cover directory repeat, like real results
+     */
+    private static Book book(int i) {
+        return new Book(i + 1, "The Collected Stories Volume " + i, "Author Number " + (i % 2000),
+                "https://kamorris.com/lab/abp/covers/" + (i + 1) + ".jpeg", 3600 + i % 7200);
+    }
+
+    private static ArrayList<Book> books(int count) {
+        ArrayList<Book> books = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            books.add(book(i));
+        return books;
+    }
+}
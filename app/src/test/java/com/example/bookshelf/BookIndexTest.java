@@ -0,0 +1,211 @@
+package com.example.bookshelf;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BookIndexTest {
+
+    private static Book book(int id, String title, String author) {
+        return new Book(id, title, author, "https://example.com/" + id + ".jpg", 100);
+    }
+
+    @Test
+    public void matchesWordPrefixesInTitleAndAuthor() {
+        BookIndex index = new BookIndex(100);
+        index.addAll(Arrays.asList(
+                book(1, "Ulysses", "James Joyce"),
+                book(2, "Dubliners", "James Joyce"),
+                book(3, "The Jungle", "Upton Sinclair")));
+
+        assertEquals(2, index.search("joy", 10).size());
+        assertEquals(1, index.search("James dub", 10).size());
+        assertEquals(3, index.search("j", 10).size());
+        assertEquals(0, index.search("joyce jungle", 10).size());
+        assertEquals(0, index.search("  ", 10).size());
+    }
+
+    @Test
+    public void newestBooksComeFirst() {
+        BookIndex index = new BookIndex(100);
+        index.add(book(1, "Ulysses", "James Joyce"));
+        index.add(book(2, "Dubliners", "James Joyce"));
+        index.add(book(1, "Ulysses", "James Joyce"));
+
+        ArrayList<Book> results = index.search("joyce", 10);
+        assertEquals(1, results.get(0).getId());
+        assertEquals(2, results.get(1).getId());
+        assertEquals(1, index.search("joyce", 1).size());
+    }
+
+    @Test
+    public void replacedBookIsReindexed() {
+        BookIndex index = new BookIndex(100);
+        index.add(book(1, "Ulysses", "James Joyce"));
+        index.add(book(1, "Finnegans Wake", "James Joyce"));
+
+        assertEquals(0, index.search("ulysses", 10).size());
+        assertEquals(1, index.search("wake", 10).size());
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void staysWithinCapacity() {
+        BookIndex index = new BookIndex(1000);
+        for (int id = 0; id < 10000; id++)
+            index.add(book(id, "Title " + id, "Author " + (id % 10)));
+
+        assertEquals(1000, index.size());
+        assertNull(index.get(8999));
+        assertNotNull(index.get(9000));
+        assertEquals(100, index.search("author 3", 1000).size());
+    }
+
+    /*
+    How long these take is measured by FuzzySearchBenchmark's prefixSearch
+     */
+    @Test
+    public void searchesLargeCatalogs() {
+        BookIndex index = new BookIndex(150000);
+        String[] words = {"river", "night", "house", "winter", "garden", "stone", "letters", "silent"};
+        for (int id = 0; id < 120000; id++)
+            index.add(book(id, words[id % 8] + " " + words[(id / 8) % 8] + " " + id, "Author" + (id % 5000)));
+
+        assertEquals(120000, index.size());
+        assertEquals(50, index.search("riv", 50).size());
+        assertEquals(50, index.search("night gar", 50).size());
+        assertEquals(0, index.search("zebra", 50).size());
+        ArrayList<Book> found = index.search("stone 1199", 50);
+        assertFalse(found.isEmpty());
+        for (Book book : found) {
+            assertTrue(book.getTitle().startsWith("stone") || book.getTitle().contains(" stone "));
+            assertTrue(String.valueOf(book.getId()).startsWith("1199"));
+        }
+    }
+
+    @Test
+    public void fuzzySearchForgivesTypos() {
+        BookIndex index = new BookIndex(100);
+        index.addAll(Arrays.asList(
+                book(1, "The Hobbit", "J. R. R. Tolkien"),
+                book(2, "Dubliners", "James Joyce"),
+                book(3, "Pride and Prejudice", "Jane Austen"),
+                book(4, "Emma", "Jane Austen")));
+
+        // Swapped, dropped, added and changed letters
+        assertEquals(1, index.fuzzySearch("tolkein", 10).get(0).getId());
+        assertEquals(2, index.fuzzySearch("dublners", 10).get(0).getId());
+        assertEquals(3, index.fuzzySearch("prejeudice", 10).get(0).getId());
+        assertEquals(2, index.fuzzySearch("jmes joice", 10).get(0).getId());
+        assertEquals(2, index.fuzzySearch("austin", 10).size());
+
+        // The last word can be unfinished, the others can't
+        assertEquals(3, index.fuzzySearch("austen prejud", 10).get(0).getId());
+        assertEquals(0, index.fuzzySearch("prejud austen", 10).size());
+
+        // Short words have to be right, and nothing close is nothing found
+        assertEquals(4, index.fuzzySearch("emma", 10).get(0).getId());
+        assertEquals(0, index.fuzzySearch("emmx", 10).size());
+        assertEquals(0, index.fuzzySearch("zzzzzz", 10).size());
+    }
+
+    @Test
+    public void fuzzySearchRanksCloserAndTitleMatchesFirst() {
+        BookIndex index = new BookIndex(100);
+        index.add(book(1, "Stone Garden", "Mary Winter"));
+        index.add(book(2, "Winter Garden", "Paul Stone"));
+        index.add(book(3, "Wintry Tales", "Anne Field"));
+
+        ArrayList<Book> results = index.fuzzySearch("winter", 10);
+        // The exact word in the title, then in the author, then a near miss
+        assertEquals(2, results.get(0).getId());
+        assertEquals(1, results.get(1).getId());
+        assertEquals(3, results.get(2).getId());
+
+        assertEquals(1, index.fuzzySearch("stone", 1).size());
+        assertEquals(1, index.fuzzySearch("stone", 1).get(0).getId());
+    }
+
+    @Test
+    public void fuzzySearchSkipsRemovedBooks() {
+        BookIndex index = new BookIndex(2);
+        index.add(book(1, "Ulysses", "James Joyce"));
+        index.add(book(2, "Dubliners", "James Joyce"));
+        index.add(book(1, "Finnegans Wake", "James Joyce"));
+        index.add(book(3, "The Jungle", "Upton Sinclair"));
+
+        assertEquals(0, index.fuzzySearch("ulyses", 10).size());
+        assertEquals(0, index.fuzzySearch("dublinerz", 10).size());
+        assertEquals(1, index.fuzzySearch("finegans", 10).size());
+        assertEquals(1, index.fuzzySearch("jungel", 10).size());
+    }
+
+    @Test
+    public void editDistanceCountsSwapsAsOneEdit() {
+        assertEquals(0, BookIndex.editDistance("tolkien", "tolkien", 2, false));
+        assertEquals(1, BookIndex.editDistance("tolkein", "tolkien", 2, false));
+        assertEquals(1, BookIndex.editDistance("tolkin", "tolkein", 2, false));
+        assertEquals(2, BookIndex.editDistance("tlokein", "tolkien", 2, false));
+        assertEquals(3, BookIndex.editDistance("abcdef", "uvwxyz", 2, false));
+        assertEquals(3, BookIndex.editDistance("abc", "abcdef", 2, false));
+        assertEquals(0, BookIndex.editDistance("tolk", "tolkien", 0, true));
+        assertEquals(1, BookIndex.editDistance("tolc", "tolkien", 1, true));
+        assertEquals(1, BookIndex.editDistance("tolkienn", "tolkien", 1, true));
+    }
+
+    /*
+    How long these take is measured by FuzzySearchBenchmark's fuzzySearch
+     */
+    @Test
+    public void fuzzySearchFindsMisspellingsInLargeCatalogs() {
+        BookIndex index = new BookIndex(150000);
+        Random random = new Random(7);
+        // Made up words from a few syllables share a lot of trigrams, which is the hard case
+        String[] vocabulary = new String[50000];
+        for (int i = 0; i < vocabulary.length; i++)
+            vocabulary[i] = madeUpWord(random);
+        ArrayList<String> misspelled = new ArrayList<>();
+        ArrayList<Integer> meant = new ArrayList<>();
+        for (int id = 0; id < 100000; id++) {
+            String title = vocabulary[random.nextInt(vocabulary.length)] + " "
+                    + vocabulary[random.nextInt(vocabulary.length)] + " " + vocabulary[random.nextInt(vocabulary.length)];
+            String author = vocabulary[random.nextInt(vocabulary.length)] + " " + vocabulary[random.nextInt(vocabulary.length)];
+            index.add(book(id, title, author));
+            if (id % 997 == 0) {
+                misspelled.add(swapLetters(title.split(" ")[0]) + " " + author.split(" ")[1]);
+                meant.add(id);
+            }
+        }
+
+        // The book each query was made from is among the results
+        for (int i = 0; i < misspelled.size(); i++) {
+            boolean found = false;
+            for (Book book : index.fuzzySearch(misspelled.get(i), 50))
+                found |= book.getId() == meant.get(i);
+            assertTrue(found);
+        }
+    }
+
+    private static final String[] SYLLABLES = {"ka", "lo", "mi", "ren", "tos", "va", "del", "sha", "pri", "on",
+            "gu", "the", "bra", "wen", "is", "mor", "cal", "fi", "nu", "ast"};
+
+    private static String madeUpWord(Random random) {
+        StringBuilder word = new StringBuilder();
+        int count = 2 + random.nextInt(3);
+        for (int i = 0; i < count; i++)
+            word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+        return word.toString();
+    }
+
+    private static String swapLetters(String word) {
+        char[] letters = word.toCharArray();
+        char second = letters[1];
+        letters[1] = letters[2];
+        letters[2] = second;
+        return new String(letters);
+    }
+}
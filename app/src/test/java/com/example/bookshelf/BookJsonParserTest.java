@@ -0,0 +1,139 @@
+package com.example.bookshelf;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class BookJsonParserTest {
+
+    private static byte[] utf8(String s) throws IOException {
+        return s.getBytes("UTF-8");
+    }
+
+    static String searchResponse(int count) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0)
+                json.append(',');
+            json.append("{\"book_id\":\"").append(i)
+                    .append("\",\"title\":\"Book number ").append(i)
+                    .append("\",\"author\":\"Author ").append(i % 100)
+                    .append("\",\"published\":").append(1900 + i % 100)
+                    .append(",\"duration\":\"").append(1000 + i)
+                    .append("\",\"cover_url\":\"https://kamorris.com/lab/abp/covers/").append(i).append(".jpeg\"}");
+        }
+        return json.append(']').toString();
+    }
+
+    @Test
+    public void parsesBooks() throws Exception {
+        ArrayList<Book> books = BookJsonParser.parse(utf8(
+                "[ {\"book_id\": 7, \"title\": \"Ulysses\", \"author\": \"James Joyce\",\n"
+                        + " \"cover_url\": \"https:\\/\\/example.com\\/7.jpg\", \"duration\": 1234} ]"));
+
+        assertEquals(1, books.size());
+        Book book = books.get(0);
+        assertEquals(7, book.getId());
+        assertEquals("Ulysses", book.getTitle());
+        assertEquals("James Joyce", book.getAuthor());
+        assertEquals("https://example.com/7.jpg", book.getCoverUrl());
+        assertEquals(1234, book.getDuration());
+    }
+
+    @Test
+    public void acceptsQuotedNumbersAndSkipsUnknownFields() throws Exception {
+        ArrayList<Book> books = BookJsonParser.parse(utf8(
+                "[{\"book_id\":\"3\",\"extra\":{\"nested\":[1,\"]}\",{}]},\"title\":\"Caf\\u00e9\","
+                        + "\"author\":\"A\",\"cover_url\":null,\"duration\":\"60\",\"flag\":true}]"));
+
+        Book book = books.get(0);
+        assertEquals(3, book.getId());
+        assertEquals("Caf\u00e9", book.getTitle());
+        assertNull(book.getCoverUrl());
+        assertEquals(60, book.getDuration());
+    }
+
+    @Test
+    public void skipsEntriesWithoutAnIdOrTitle() throws Exception {
+        ArrayList<Book> books = BookJsonParser.parse(utf8(
+                "[{\"book_id\":1,\"title\":null,\"author\":\"A\"},"
+                        + "{\"title\":\"No id\",\"author\":\"A\"},"
+                        + "{\"book_id\":null,\"title\":\"Null id\"},"
+                        + "{\"book_id\":2,\"author\":\"No title\"},"
+                        + "{},"
+                        + "{\"book_id\":3,\"title\":\"Kept\",\"author\":null}]"));
+
+        assertEquals(1, books.size());
+        Book book = books.get(0);
+        assertEquals(3, book.getId());
+        assertEquals("Kept", book.getTitle());
+        assertEquals("", book.getAuthor());
+        assertNull(book.getCoverUrl());
+    }
+
+    @Test
+    public void emptyArray() throws Exception {
+        assertEquals(0, BookJsonParser.parse(utf8(" [ ] ")).size());
+    }
+
+    @Test
+    public void readsAcrossBufferBoundaries() throws Exception {
+        ArrayList<Book> books = BookJsonParser.parse(utf8(searchResponse(1000)));
+
+        assertEquals(1000, books.size());
+        assertEquals("Book number 999", books.get(999).getTitle());
+        assertEquals(1999, books.get(999).getDuration());
+    }
+
+    @Test
+    public void rejectsMalformedInput() {
+        String[] inputs = {"", "{}", "[{\"book_id\":1", "[{\"title\":\"open}]", "[{\"book_id\":x}]"};
+        for (String input : inputs) {
+            try {
+                BookJsonParser.parse(utf8(input));
+                fail("Parsed " + input);
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    /*
+    Gives the same books as the old JsonArrayRequest path (String, then
+    JSONArray, then one Book per JSONObject). How much faster it is gets
+    measured in the benchmark module's SearchParseBenchmark.
+     */
+    @Test
+    public void matchesJsonArrayParsing() throws Exception {
+        byte[] data = utf8(searchResponse(10000));
+        ArrayList<Book> expected = parseWithJsonArray(data);
+        ArrayList<Book> books = BookJsonParser.parse(data);
+
+        assertEquals(expected.size(), books.size());
+        for (int i = 0; i < books.size(); i++) {
+            assertEquals(expected.get(i).getId(), books.get(i).getId());
+            assertEquals(expected.get(i).getTitle(), books.get(i).getTitle());
+            assertEquals(expected.get(i).getAuthor(), books.get(i).getAuthor());
+            assertEquals(expected.get(i).getCoverUrl(), books.get(i).getCoverUrl());
+            assertEquals(expected.get(i).getDuration(), books.get(i).getDuration());
+        }
+    }
+
+    private static ArrayList<Book> parseWithJsonArray(byte[] data) throws Exception {
+        JSONArray response = new JSONArray(new String(data, "UTF-8"));
+        ArrayList<Book> books = new ArrayList<>();
+        for (int i = 0; i < response.length(); i++) {
+            JSONObject bookJSON = response.getJSONObject(i);
+            books.add(new Book(bookJSON.getInt(Book.JSON_ID),
+                    bookJSON.getString(Book.JSON_TITLE),
+                    bookJSON.getString(Book.JSON_AUTHOR),
+                    bookJSON.getString(Book.JSON_COVER_URL),
+                    bookJSON.getInt(Book.JSON_DURATION)));
+        }
+        return books;
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.bookshelf;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class BookListStoreTest {
+
+    private File directory;
+
+    // Snapshots are written straight away so the tests can read them back
+    private final Executor direct = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("state", "");
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void restoresFromMemoryInTheSameProcess() {
+        BookListStore store = new BookListStore(directory, direct);
+        ArrayList<Book> books = books(100);
+        String handle = store.save("books", books);
+
+        ArrayList<Book> restored = store.restore(handle);
+        assertEquals(100, restored.size());
+        assertSame(books.get(42), restored.get(42));
+        assertSame(books.get(42), store.restoreFromMemory(handle).get(42));
+    }
+
+    @Test
+    public void restoresFromSnapshotAfterProcessDeath() {
+        String handle = new BookListStore(directory, direct).save("books", books(100));
+
+        BookListStore restarted = new BookListStore(directory, direct);
+        // Only the snapshot has it now
+        assertNull(restarted.restoreFromMemory(handle));
+        ArrayList<Book> restored = restarted.restore(handle);
+        assertEquals(100, restored.size());
+        Book book = restored.get(42);
+        assertEquals(43, book.getId());
+        assertEquals("Title 42", book.getTitle());
+        assertEquals("Author 8", book.getAuthor());
+        assertEquals("https://example.com/42.jpg", book.getCoverUrl());
+        assertEquals(642, book.getDuration());
+        assertNull(restored.get(0).getCoverUrl());
+    }
+
+    @Test
+    public void unchangedListKeepsItsHandle() {
+        BookListStore store = new BookListStore(directory, direct);
+        String first = store.save("books", books(10));
+        assertEquals(first, store.save("books", books(10)));
+        assertNotEquals(first, store.save("books", books(11)));
+    }
+
+    @Test
+    public void updatedBooksAreSavedAgain() {
+        BookListStore store = new BookListStore(directory, direct);
+        ArrayList<Book> books = books(10);
+        String first = store.save("books", books);
+
+        // Same ids, but the catalog has a new title for one of them
+        ArrayList<Book> updated = books(10);
+        updated.set(3, new Book(4, "New title", "Author 3", "https://example.com/3.jpg", 603));
+        String second = store.save("books", updated);
+        assertNotEquals(first, second);
+        assertEquals("New title", new BookListStore(directory, direct).restore(second).get(3).getTitle());
+
+        // Even when it is the same Book that was changed
+        String third = store.save("covers", books);
+        books.get(5).setCoverUrl("https://example.com/new.jpg");
+        assertNotEquals(third, store.save("covers", books));
+    }
+
+    @Test
+    public void handleFromAnOlderSaveIsNotRestored() {
+        BookListStore store = new BookListStore(directory, direct);
+        String old = store.save("books", books(10));
+        store.save("books", books(20));
+
+        assertNull(new BookListStore(directory, direct).restore(old));
+        assertNull(store.restore("nonsense"));
+        assertNull(store.restore(null));
+    }
+
+    @Test
+    public void snapshotIsSmallerThanTheParcelledList() {
+        ArrayList<Book> books = books(5000);
+        BookListStore store = new BookListStore(directory, direct);
+        String handle = store.save("books", books);
+        long snapshotBytes = new File(directory, "books.snapshot").length();
+
+        // Only the handle goes in the bundle
+        assertTrue(handle.length() < 100);
+        assertTrue(snapshotBytes < parcelSize(books));
+        assertEquals(5000, store.restore(handle).size());
+        assertEquals(5000, new BookListStore(directory, direct).restore(handle).size());
+    }
+
+    /*
+    What writeToParcel would use: ints are 4 bytes, strings are a length
+    followed by UTF-16 characters and a terminator, padded to 4 bytes
+     */
+    private static long parcelSize(ArrayList<Book> books) {
+        long size = 4;
+        for (Book book : books)
+            size += 8 + parcelString(book.getTitle()) + parcelString(book.getAuthor()) + parcelString(book.getCoverUrl());
+        return size;
+    }
+
+    private static long parcelString(String string) {
+        if (string == null)
+            return 4;
+        return 4 + ((2 * (string.length() + 1) + 3) & ~3);
+    }
+
+    private static ArrayList<Book> books(int count) {
+        ArrayList<Book> books = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            books.add(new Book(i + 1, "Title " + i, "Author " + (i % 17),
+                    i == 0 ? null : "https://example.com/" + i + ".jpg", 600 + i));
+        return books;
+    }
+}
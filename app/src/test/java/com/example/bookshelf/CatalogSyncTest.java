@@ -0,0 +1,240 @@
+package com.example.bookshelf;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.OkHttpClient;
+
+import static org.junit.Assert.*;
+
+/**
+ * Syncs from a local stand-in for booksearch.php into an in-memory store.
+ */
+public class CatalogSyncTest {
+
+    private static final int PAGE_SIZE = 100;
+    private static final int BATCH_SIZE = 40;
+
+    private HttpServer server;
+    private CatalogSync.HttpSource source;
+    private MemoryStore store;
+
+    private final TreeMap<Integer, Book> catalog = new TreeMap<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile boolean ignorePaging;
+    private volatile int failAtOffset = -1;
+
+    @Before
+    public void setUp() throws Exception {
+        for (int i = 1; i <= 1050; i++)
+            catalog.put(i, book(i, "Title " + i));
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/booksearch.php", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.start();
+        source = new CatalogSync.HttpSource(new OkHttpClient(),
+                "http://127.0.0.1:" + server.getAddress().getPort() + "/booksearch.php?search=");
+        store = new MemoryStore();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        HashMap<String, String> parameters = new HashMap<>();
+        for (String pair : exchange.getRequestURI().getQuery().split("&")) {
+            int equals = pair.indexOf('=');
+            parameters.put(pair.substring(0, equals), pair.substring(equals + 1));
+        }
+        int offset = Integer.parseInt(parameters.get("offset"));
+        int limit = Integer.parseInt(parameters.get("limit"));
+
+        if (offset == failAtOffset) {
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+            return;
+        }
+
+        ArrayList<Book> books = new ArrayList<>(catalog.values());
+        List<Book> page = ignorePaging ? books
+                : books.subList(Math.min(offset, books.size()), Math.min(offset + limit, books.size()));
+        byte[] body = json(page).getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private CatalogSync.Result sync() throws IOException {
+        return new CatalogSync(source, store, PAGE_SIZE, BATCH_SIZE).run();
+    }
+
+    @Test
+    public void firstSyncAddsEverythingInBatches() throws IOException {
+        CatalogSync.Result result = sync();
+
+        assertEquals(1050, result.getAdded());
+        assertEquals(0, result.getUpdated());
+        assertEquals(0, result.getRemoved());
+        assertEquals(1050, store.books.size());
+        assertEquals("Title 777", store.books.get(777).getTitle());
+        // 11 pages, the last one short
+        assertEquals(11, requests.get());
+        for (int size : store.batchSizes)
+            assertTrue(size <= BATCH_SIZE);
+        assertEquals((1050 + BATCH_SIZE - 1) / BATCH_SIZE, store.batchSizes.size());
+        assertTrue(store.lastSync > 0);
+    }
+
+    @Test
+    public void laterSyncsOnlyWriteWhatChanged() throws IOException {
+        sync();
+        store.batchSizes.clear();
+
+        // Nothing changed, nothing written
+        CatalogSync.Result result = sync();
+        assertEquals(1050, result.getUnchanged());
+        assertTrue(store.batchSizes.isEmpty());
+
+        catalog.put(10, book(10, "Retitled"));
+        catalog.put(500, book(500, "Title 500 (unabridged)"));
+        catalog.put(900, new Book(900, "Title 900", "Another Author", "cover", 900));
+        catalog.remove(20);
+        catalog.remove(1000);
+        for (int i = 2001; i <= 2005; i++)
+            catalog.put(i, book(i, "New " + i));
+
+        result = sync();
+        assertEquals(5, result.getAdded());
+        assertEquals(3, result.getUpdated());
+        assertEquals(2, result.getRemoved());
+        assertEquals(1045, result.getUnchanged());
+        assertEquals(1, store.batchSizes.size());
+        assertEquals(8 + 2, (int) store.batchSizes.get(0));
+
+        assertEquals(1053, store.books.size());
+        assertEquals("Retitled", store.books.get(10).getTitle());
+        assertEquals("Another Author", store.books.get(900).getAuthor());
+        assertNull(store.books.get(20));
+        assertNotNull(store.books.get(2003));
+    }
+
+    @Test
+    public void serverThatIgnoresPagingIsReadOnce() throws IOException {
+        ignorePaging = true;
+        CatalogSync.Result result = sync();
+
+        assertEquals(1050, result.getAdded());
+        assertEquals(1, requests.get());
+        assertEquals(1050, store.books.size());
+    }
+
+    @Test
+    public void failedSyncRemovesNothing() throws IOException {
+        sync();
+        long lastSync = store.lastSync;
+        catalog.remove(5);
+        catalog.put(6, book(6, "Changed"));
+        failAtOffset = 500;
+
+        try {
+            sync();
+            fail("The sync should have failed");
+        } catch (IOException expected) {
+        }
+        // Nothing is removed on a partial read, and the sync is still due
+        assertNotNull(store.books.get(5));
+        assertEquals(lastSync, store.lastSync);
+
+        failAtOffset = -1;
+        sync();
+        assertNull(store.books.get(5));
+        assertEquals("Changed", store.books.get(6).getTitle());
+    }
+
+    @Test
+    public void hashChangesWithAnyField() {
+        Book book = new Book(1, "Title", "Author", "cover", 100);
+        long hash = CatalogSync.hash(book);
+        assertEquals(hash, CatalogSync.hash(new Book(1, "Title", "Author", "cover", 100)));
+        assertNotEquals(hash, CatalogSync.hash(new Book(2, "Title", "Author", "cover", 100)));
+        assertNotEquals(hash, CatalogSync.hash(new Book(1, "Title", "Author", "cover", 101)));
+        assertNotEquals(hash, CatalogSync.hash(new Book(1, "Titl", "Author", "cover", 100)));
+        assertNotEquals(hash, CatalogSync.hash(new Book(1, "Title", "author", "cover", 100)));
+        assertNotEquals(hash, CatalogSync.hash(new Book(1, "Title", "Author", null, 100)));
+    }
+
+    private static Book book(int id, String title) {
+        return new Book(id, title, "Author " + (id % 31), "https://kamorris.com/lab/abp/covers/" + id + ".jpeg", 600 + id);
+    }
+
+    private static String json(List<Book> books) {
+        StringBuilder json = new StringBuilder("[");
+        for (Book book : books) {
+            if (json.length() > 1)
+                json.append(',');
+            json.append("{\"book_id\":").append(book.getId())
+                    .append(",\"title\":\"").append(book.getTitle()).append('"')
+                    .append(",\"author\":\"").append(book.getAuthor()).append('"')
+                    .append(",\"cover_url\":\"").append(book.getCoverUrl()).append('"')
+                    .append(",\"duration\":").append(book.getDuration()).append('}');
+        }
+        return json.append(']').toString();
+    }
+
+    private static class MemoryStore implements CatalogSync.Store {
+        final HashMap<Integer, Book> books = new HashMap<>();
+        final ArrayList<Integer> batchSizes = new ArrayList<>();
+        long lastSync;
+
+        @Override
+        public HashMap<Integer, Long> getHashes() {
+            HashMap<Integer, Long> hashes = new HashMap<>();
+            for (Book book : books.values())
+                hashes.put(book.getId(), CatalogSync.hash(book));
+            return hashes;
+        }
+
+        @Override
+        public void apply(List<Book> changed, List<Integer> removed) {
+            batchSizes.add(changed.size() + removed.size());
+            for (Book book : changed)
+                books.put(book.getId(), book);
+            for (int id : removed)
+                books.remove(id);
+        }
+
+        @Override
+        public long getLastSync() {
+            return lastSync;
+        }
+
+        @Override
+        public void setLastSync(long time) {
+            lastSync = time;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.example.bookshelf;
+
+import com.android.volley.Request;
+import com.android.volley.toolbox.HttpResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import okhttp3.Cache;
+import okhttp3.OkHttpClient;
+
+import static org.junit.Assert.*;
+
+/**
+ * Searches a local stand-in for the search api that supports gzip and ETags.
+ */
+public class OkHttpStackTest {
+
+    private static final int BOOKS = 500;
+
+    private HttpServer server;
+    private String url;
+    private File cacheDirectory;
+    private OkHttpStack stack;
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger notModified = new AtomicInteger();
+    private final AtomicInteger gzipped = new AtomicInteger();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private byte[] response;
+    private String etag = "\"v1\"";
+
+    @Before
+    public void setUp() throws Exception {
+        response = searchResponse(BOOKS);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/booksearch.php", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/booksearch.php?search=fox";
+
+        cacheDirectory = File.createTempFile("http", "");
+        cacheDirectory.delete();
+        stack = new OkHttpStack(new OkHttpClient.Builder().cache(new Cache(cacheDirectory, 1024 * 1024)).build());
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        File[] files = cacheDirectory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        cacheDirectory.delete();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            notModified.incrementAndGet();
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+
+        byte[] body = response;
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            gzipped.incrementAndGet();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+                out.write(body);
+            }
+            body = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        bytesSent.addAndGet(body.length);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private ArrayList<Book> search() throws IOException {
+        HttpResponse httpResponse = stack.execute(url, Request.Method.GET,
+                Collections.<String, String>emptyMap(), null, null, 2500);
+        assertEquals(200, httpResponse.getStatusCode());
+        try (InputStream in = httpResponse.getContent()) {
+            return BookJsonParser.parse(in);
+        }
+    }
+
+    /*
+    What Volley's default stack does: a plain request, read in full
+     */
+    private ArrayList<Book> searchWithHttpUrlConnection() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setUseCaches(false);
+        try (InputStream in = connection.getInputStream()) {
+            return BookJsonParser.parse(in);
+        }
+    }
+
+    @Test
+    public void searchesAreSentCompressed() throws IOException {
+        ArrayList<Book> books = search();
+        assertEquals(BOOKS, books.size());
+        assertEquals("fox 42", books.get(42).getTitle());
+        assertEquals(1, gzipped.get());
+        assertTrue(bytesSent.get() < response.length / 4);
+    }
+
+    @Test
+    public void unchangedSearchComesBackNotModified() throws IOException {
+        search();
+        ArrayList<Book> again = search();
+
+        assertEquals(BOOKS, again.size());
+        assertEquals(2, requests.get());
+        assertEquals(1, notModified.get());
+        assertEquals(1, stack.getStats().getNotModified());
+
+        // A changed result is sent again in full
+        etag = "\"v2\"";
+        assertEquals(BOOKS, search().size());
+        assertEquals(1, notModified.get());
+    }
+
+    @Test
+    public void receivesLessThanHttpUrlConnection() throws IOException {
+        bytesSent.set(0);
+        searchWithHttpUrlConnection();
+        long plainBytes = bytesSent.get();
+
+        // The first search fills the cache, the second is answered with a 304
+        search();
+        long received = stack.getStats().getBytesReceived();
+        search();
+        long unchangedBytes = stack.getStats().getBytesReceived() - received;
+
+        // A new result is gzipped in full
+        etag = "\"v2\"";
+        received = stack.getStats().getBytesReceived();
+        search();
+        long changedBytes = stack.getStats().getBytesReceived() - received;
+
+        assertTrue(unchangedBytes < plainBytes / 10);
+        assertTrue(changedBytes < plainBytes / 3);
+    }
+
+    private static byte[] searchResponse(int count) throws IOException {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0)
+                json.append(',');
+            json.append("{\"book_id\":").append(i + 1)
+                    .append(",\"title\":\"fox ").append(i).append('"')
+                    .append(",\"author\":\"Author ").append(i % 17).append('"')
+                    .append(",\"cover_url\":\"https://kamorris.com/lab/abp/covers/").append(i).append(".jpeg\"")
+                    .append(",\"duration\":").append(600 + i).append('}');
+        }
+        return json.append(']').toString().getBytes("UTF-8");
+    }
+}
@@ -0,0 +1,210 @@
+package com.example.bookshelf;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Pages through results served by a local stand-in for the search api.
+ */
+public class PagedBookSourceTest {
+
+    private static final int TOTAL = 1000;
+    private static final int PAGE_SIZE = 50;
+    private static final int WINDOW = 4;
+
+    private HttpServer server;
+    private String baseUrl;
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile boolean paging = true;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/booksearch.php", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/booksearch.php?search=";
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        HashMap<String, String> parameters = new HashMap<>();
+        for (String pair : exchange.getRequestURI().getRawQuery().split("&")) {
+            int equals = pair.indexOf('=');
+            parameters.put(pair.substring(0, equals), URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+        }
+
+        // Without paging the server behaves like the real one and sends everything
+        int offset = paging ? Integer.parseInt(parameters.get("offset")) : 0;
+        int limit = paging ? Integer.parseInt(parameters.get("limit")) : TOTAL;
+        StringBuilder json = new StringBuilder("[");
+        for (int i = offset; i < Math.min(TOTAL, offset + limit); i++) {
+            if (i > offset)
+                json.append(',');
+            json.append("{\"book_id\":").append(i + 1)
+                    .append(",\"title\":\"").append(parameters.get("search")).append(' ').append(i).append('"')
+                    .append(",\"author\":\"Author ").append(i % 17).append('"')
+                    .append(",\"cover_url\":\"https://example.com/").append(i).append(".jpg\"")
+                    .append(",\"duration\":").append(600 + i).append('}');
+        }
+        byte[] body = json.append(']').toString().getBytes("UTF-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /*
+    Fetches over http and answers straight away, the way Volley would on the main thread
+     */
+    private final PagedBookSource.PageLoader httpLoader = new PagedBookSource.PageLoader() {
+        @Override
+        public void loadPage(String query, int offset, int limit, Callback callback) {
+            try {
+                HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + query
+                        + "&offset=" + offset + "&limit=" + limit).openConnection();
+                try (InputStream in = connection.getInputStream()) {
+                    callback.onPageLoaded(BookJsonParser.parse(in));
+                }
+            } catch (IOException e) {
+                callback.onError(e);
+            }
+        }
+    };
+
+    @Test
+    public void pagesInAsTheListScrolls() {
+        PagedBookSource source = new PagedBookSource(httpLoader, "fox", PAGE_SIZE, WINDOW);
+        assertEquals(1, source.getCount());
+
+        assertNull(source.getBook(0));
+        assertEquals("fox 0", source.getBook(0).getTitle());
+        assertEquals(PAGE_SIZE + 1, source.getCount());
+
+        for (int position = 0; position < source.getCount(); position++) {
+            Book book = source.getBook(position);
+            if (book == null)
+                book = source.getBook(position);
+            if (position < TOTAL)
+                assertEquals(position + 1, book.getId());
+        }
+        assertTrue(source.isEndReached());
+        assertFalse(source.isPagingIgnored());
+        assertEquals(TOTAL, source.getCount());
+        // One more request finds the empty page that ends the list
+        assertEquals(TOTAL / PAGE_SIZE + 1, source.getLoadCount());
+    }
+
+    @Test
+    public void onlyAWindowOfPagesIsKept() {
+        PagedBookSource source = new PagedBookSource(httpLoader, "fox", PAGE_SIZE, WINDOW);
+        for (int position = 0; position < TOTAL; position++) {
+            if (source.getBook(position) == null)
+                assertNotNull(source.getBook(position));
+            assertTrue(source.getLoadedPageCount() <= WINDOW);
+        }
+        assertNull(source.peekBook(0));
+
+        // Scrolling back to the top loads the first page again
+        int before = requests.get();
+        assertNull(source.getBook(0));
+        Book first = source.getBook(0);
+        assertEquals(1, first.getId());
+        assertEquals("fox 0", first.getTitle());
+        assertTrue(requests.get() > before);
+        assertTrue(source.getLoadedPageCount() <= WINDOW);
+    }
+
+    @Test
+    public void pageIsOnlyRequestedOnceWhileLoading() {
+        final ArrayList<PagedBookSource.PageLoader.Callback> pending = new ArrayList<>();
+        PagedBookSource source = new PagedBookSource(new PagedBookSource.PageLoader() {
+            @Override
+            public void loadPage(String query, int offset, int limit, Callback callback) {
+                pending.add(callback);
+            }
+        }, "fox", PAGE_SIZE, WINDOW);
+
+        for (int i = 0; i < 10; i++)
+            assertNull(source.getBook(i));
+        assertEquals(1, pending.size());
+
+        pending.get(0).onPageLoaded(books(0, PAGE_SIZE));
+        assertEquals(1, source.getBook(0).getId());
+    }
+
+    @Test
+    public void resultsAfterCloseAreIgnored() {
+        final ArrayList<PagedBookSource.PageLoader.Callback> pending = new ArrayList<>();
+        PagedBookSource source = new PagedBookSource(new PagedBookSource.PageLoader() {
+            @Override
+            public void loadPage(String query, int offset, int limit, Callback callback) {
+                pending.add(callback);
+            }
+        }, "fox", PAGE_SIZE, WINDOW);
+        final AtomicInteger loaded = new AtomicInteger();
+        source.setListener(new PagedBookSource.Listener() {
+            @Override
+            public void onPageLoaded(int start, int count) {
+                loaded.incrementAndGet();
+            }
+
+            @Override
+            public void onError(Exception e) {
+            }
+        });
+
+        source.getBook(0);
+        source.close();
+        pending.get(0).onPageLoaded(books(0, PAGE_SIZE));
+        assertEquals(0, loaded.get());
+        assertNull(source.peekBook(0));
+    }
+
+    @Test
+    public void serverThatIgnoresPagingEndsTheList() {
+        paging = false;
+        PagedBookSource source = new PagedBookSource(httpLoader, "fox", PAGE_SIZE, WINDOW);
+        source.setFirstPage(books(0, PAGE_SIZE));
+
+        assertFalse(source.isPagingIgnored());
+        assertNull(source.getBook(PAGE_SIZE));
+        assertTrue(source.isEndReached());
+        assertTrue(source.isPagingIgnored());
+        assertEquals(PAGE_SIZE, source.getCount());
+    }
+
+    private static ArrayList<Book> books(int from, int count) {
+        ArrayList<Book> books = new ArrayList<>();
+        for (int i = from; i < from + count; i++)
+            books.add(new Book(i + 1, "fox " + i, "Author", null, 600));
+        return books;
+    }
+}
@@ -0,0 +1,181 @@
+package com.example.bookshelf;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Exercises the search cache against a local stand-in for booksearch.php.
+ */
+public class SearchCacheTest {
+
+    private static final long TTL = 1000;
+    private static final long STALE = 5000;
+
+    private HttpServer server;
+    private final AtomicInteger serverHits = new AtomicInteger();
+    private File cacheDir;
+    private long clock = 100000;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/booksearch.php", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serverHits.incrementAndGet();
+                byte[] body = ("[{\"book_id\":1,\"title\":\"Ulysses\",\"author\":\"James Joyce\","
+                        + "\"cover_url\":\"https://example.com/1.jpg\",\"duration\":1000},"
+                        + "{\"book_id\":2,\"title\":\"Dubliners\",\"author\":\"James Joyce\","
+                        + "\"cover_url\":\"https://example.com/2.jpg\",\"duration\":500}]").getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+
+        cacheDir = File.createTempFile("search_cache", "");
+        cacheDir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        File[] files = cacheDir.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        cacheDir.delete();
+    }
+
+    private SearchCache newCache(int memoryEntries) {
+        return new SearchCache(cacheDir, memoryEntries, 10, TTL, STALE) {
+            @Override
+            protected long now() {
+                return clock;
+            }
+        };
+    }
+
+    /*
+    Same decisions MainActivity.fetchBooks makes, minus Volley
+     */
+    private ArrayList<Book> search(SearchCache cache, String query) throws Exception {
+        SearchCache.Entry entry = cache.get(query);
+        if (entry != null && entry.isFresh())
+            return entry.getBooks();
+
+        ArrayList<Book> books = fetch(query);
+        cache.put(query, books);
+        return entry != null ? entry.getBooks() : books;
+    }
+
+    private ArrayList<Book> fetch(String query) throws Exception {
+        URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/booksearch.php?search=" + query);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try (InputStream in = connection.getInputStream()) {
+            return BookJsonParser.parse(in);
+        }
+    }
+
+    @Test
+    public void repeatedSearch_isServedFromCache() throws Exception {
+        SearchCache cache = newCache(5);
+
+        assertEquals(2, search(cache, "joyce").size());
+        assertEquals(2, search(cache, "  JOYCE ").size());
+        assertEquals(1, serverHits.get());
+    }
+
+    @Test
+    public void staleEntry_isServedAndRevalidated() throws Exception {
+        SearchCache cache = newCache(5);
+        search(cache, "joyce");
+
+        clock += TTL + 1;
+        SearchCache.Entry entry = cache.get("joyce");
+        assertNotNull(entry);
+        assertFalse(entry.isFresh());
+
+        assertEquals(2, search(cache, "joyce").size());
+        assertEquals(2, serverHits.get());
+        assertTrue(cache.get("joyce").isFresh());
+    }
+
+    @Test
+    public void expiredEntry_isDropped() throws Exception {
+        SearchCache cache = newCache(5);
+        search(cache, "joyce");
+
+        clock += TTL + STALE + 1;
+        assertNull(cache.get("joyce"));
+    }
+
+    @Test
+    public void entries_surviveProcessDeath() throws Exception {
+        search(newCache(5), "joyce");
+
+        SearchCache restarted = newCache(5);
+        assertNull(restarted.getFromMemory("joyce"));
+        SearchCache.Entry entry = restarted.get("joyce");
+        assertNotNull(entry);
+        assertEquals("Dubliners", entry.getBooks().get(1).getTitle());
+        assertNotNull(restarted.getFromMemory("joyce"));
+        assertEquals(1, serverHits.get());
+    }
+
+    @Test
+    public void queriesSharingAFile_dontServeEachOther() throws Exception {
+        // Same hash code and length, so the same file on disk
+        assertEquals("a~".hashCode(), "b_".hashCode());
+        search(newCache(5), "a~");
+
+        SearchCache restarted = newCache(5);
+        assertNull(restarted.get("b_"));
+        assertNotNull(restarted.get("a~"));
+    }
+
+    @Test
+    public void booksWithNullFields_areWrittenAndReadBack() {
+        ArrayList<Book> books = new ArrayList<>();
+        books.add(new Book(1, "Title", null, null, 10));
+        newCache(5).put("nulls", books);
+
+        Book book = newCache(5).get("nulls").getBooks().get(0);
+        assertEquals("Title", book.getTitle());
+        assertNull(book.getAuthor());
+        assertNull(book.getCoverUrl());
+    }
+
+    @Test
+    public void memoryTier_evictsLeastRecentlyUsed() throws Exception {
+        SearchCache cache = newCache(2);
+        search(cache, "a");
+        search(cache, "b");
+        cache.getFromMemory("a");
+        search(cache, "c");
+
+        assertNotNull(cache.getFromMemory("a"));
+        assertNull(cache.getFromMemory("b"));
+        assertNotNull(cache.get("b"));
+        assertEquals(3, serverHits.get());
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.bookshelf;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SearchSequenceTest {
+
+    @Test
+    public void olderResultsNeverReplaceNewerOnes() {
+        SearchSequence searches = new SearchSequence();
+        int first = searches.next();
+        int second = searches.next();
+
+        assertTrue(searches.show(second));
+        // The first search answers late
+        assertFalse(searches.show(first));
+        // The same search can answer again, e.g. the server after the cache
+        assertTrue(searches.show(second));
+    }
+
+    @Test
+    public void olderResultsShowUntilANewerSearchAnswers() {
+        SearchSequence searches = new SearchSequence();
+        int first = searches.next();
+        int second = searches.next();
+
+        // Nothing from the second search yet, so the first can still be shown
+        assertTrue(searches.show(first));
+        assertTrue(searches.show(second));
+        assertFalse(searches.show(first));
+    }
+
+    @Test
+    public void onlyTheNewestSearchIsLatest() {
+        SearchSequence searches = new SearchSequence();
+        int first = searches.next();
+        assertTrue(searches.isLatest(first));
+
+        int second = searches.next();
+        assertFalse(searches.isLatest(first));
+        assertTrue(searches.isLatest(second));
+        assertTrue(second > first);
+    }
+}
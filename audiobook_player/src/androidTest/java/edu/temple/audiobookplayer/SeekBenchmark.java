@@ -0,0 +1,144 @@
+package edu.temple.audiobookplayer;
+
+import android.media.MediaPlayer;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Seeks around a six hour variable bitrate MP3 the two ways the service
+ * can: MediaPlayer.seekTo() on the whole file, and opening the file
+ * again at the frame the SeekIndex gives. Reports the median and worst
+ * time from asking to being ready to play.
+ *
+ * How far off each way lands is measured on the JVM by SeekIndexTest,
+ * since the player reports the position it was asked for either way.
+ * Run it on a device with: gradlew :audiobook_player:connectedAndroidTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class SeekBenchmark {
+
+    private static final String TAG = "SeekBenchmark";
+    private static final int SEEKS = 30;
+    private static final int HOURS = 6;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "seek_benchmark.mp3");
+        writeBook(file, (int) (HOURS * 3600L * 22050 / 576));
+    }
+
+    @After
+    public void tearDown() {
+        SeekIndex.fileFor(file).delete();
+        file.delete();
+    }
+
+    /*
+    MPEG 2 layer III frames with silent bodies, the first half at
+    8-16kbps and the second at 32-40kbps
+     */
+    private static void writeBook(File file, int frames) throws IOException {
+        Random random = new Random(7);
+        byte[] silence = new byte[2048];
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            for (int i = 0; i < frames; i++) {
+                int header = 0xFFF300C0 | ((i < frames / 2 ? 1 : 4) + random.nextInt(2)) << 12 | random.nextInt(2) << 9;
+                out.write(header >>> 24);
+                out.write(header >>> 16);
+                out.write(header >>> 8);
+                out.write(header);
+                out.write(silence, 0, SeekIndex.frameSize(header) - 4);
+            }
+        }
+    }
+
+    @Test
+    public void benchmark_seeks() throws Exception {
+        long start = SystemClock.elapsedRealtime();
+        SeekIndex index = SeekIndex.ensure(file);
+        assertNotNull(index);
+        long buildMillis = SystemClock.elapsedRealtime() - start;
+
+        int[] targets = new int[SEEKS];
+        Random random = new Random(11);
+        for (int i = 0; i < SEEKS; i++)
+            targets[i] = random.nextInt(index.getDuration());
+
+        long[] player = new long[SEEKS];
+        long[] indexed = new long[SEEKS];
+        MediaPlayer mediaPlayer = new MediaPlayer();
+        try {
+            open(mediaPlayer, 0);
+            for (int i = 0; i < SEEKS; i++)
+                player[i] = seek(mediaPlayer, targets[i]);
+            for (int i = 0; i < SEEKS; i++) {
+                long began = SystemClock.elapsedRealtime();
+                SeekIndex.Target target = index.find(file, targets[i]);
+                open(mediaPlayer, target.getOffset());
+                indexed[i] = SystemClock.elapsedRealtime() - began;
+            }
+        } finally {
+            mediaPlayer.release();
+        }
+
+        Arrays.sort(player);
+        Arrays.sort(indexed);
+        String report = "Seeks into a " + HOURS + " hour book, index built in " + buildMillis + "ms: MediaPlayer median "
+                + player[SEEKS / 2] + "ms, worst " + player[SEEKS - 1] + "ms; indexed median "
+                + indexed[SEEKS / 2] + "ms, worst " + indexed[SEEKS - 1] + "ms";
+        Log.i(TAG, report);
+        System.out.println(report);
+    }
+
+    private void open(MediaPlayer player, long offset) throws Exception {
+        final CountDownLatch prepared = new CountDownLatch(1);
+        player.reset();
+        try (FileInputStream in = new FileInputStream(file)) {
+            player.setDataSource(in.getFD(), offset, file.length() - offset);
+        }
+        player.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+            @Override
+            public void onPrepared(MediaPlayer mp) {
+                prepared.countDown();
+            }
+        });
+        player.prepareAsync();
+        assertTrue("Never prepared", prepared.await(10, TimeUnit.SECONDS));
+    }
+
+    private long seek(MediaPlayer player, int position) throws Exception {
+        final CountDownLatch complete = new CountDownLatch(1);
+        player.setOnSeekCompleteListener(new MediaPlayer.OnSeekCompleteListener() {
+            @Override
+            public void onSeekComplete(MediaPlayer mp) {
+                complete.countDown();
+            }
+        });
+        long began = SystemClock.elapsedRealtime();
+        player.seekTo(position);
+        assertTrue("Seek never completed", complete.await(10, TimeUnit.SECONDS));
+        return SystemClock.elapsedRealtime() - began;
+    }
+}
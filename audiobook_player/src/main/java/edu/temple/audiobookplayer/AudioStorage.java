@@ -0,0 +1,451 @@
+package edu.temple.audiobookplayer;
+
+import android.content.Context;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+Keeps downloaded books and stream caches within a byte budget.
+
+Every file of audio on the device is tracked here with its size, when
+its book was last played and whether the book was listened to the end.
+When the total goes over the budget, files are deleted in order of the
+eviction policy until it fits again. Books the service has open (the
+one playing, the standby book and the one being prefetched) are never
+deleted.
+
+What is tracked is kept in a small index file of fixed-size records,
+so starting up reads one file instead of walking the audio directories.
+The directories are only walked once, the first time there is no index,
+to pick up files that were there before it.
+
+Downloads and the service both use this, from their own threads, so
+every method is synchronized.
+ */
+public class AudioStorage {
+
+    public static final int DOWNLOAD = 0;
+    public static final int STREAM_CACHE = 1;
+
+    public static final String DOWNLOAD_DIRECTORY = "audiobooks";
+    public static final String DOWNLOAD_SUFFIX = ".mp3";
+    public static final String CACHE_DIRECTORY = "audio_cache";
+
+    public static final long DEFAULT_BUDGET = 1024L * 1024 * 1024;
+
+    private static final String INDEX_NAME = "audio_storage.index";
+    private static final int INDEX_VERSION = 1;
+
+    public enum Policy {
+        // Whatever was played longest ago goes first
+        LEAST_RECENTLY_PLAYED,
+        // Stream caches of downloaded books, then finished books, then
+        // other stream caches (they can be streamed again), then downloads
+        LEAST_VALUABLE
+    }
+
+    private static AudioStorage instance;
+
+    public static synchronized AudioStorage get(Context context) {
+        if (instance == null) {
+            Context application = context.getApplicationContext();
+            instance = new AudioStorage(new File(application.getFilesDir(), INDEX_NAME),
+                    new File(application.getFilesDir(), DOWNLOAD_DIRECTORY),
+                    new File(application.getCacheDir(), CACHE_DIRECTORY),
+                    DEFAULT_BUDGET, Policy.LEAST_VALUABLE);
+        }
+        return instance;
+    }
+
+    private final File indexFile, downloadDirectory, cacheDirectory;
+    private final HashMap<Long, Entry> entries = new HashMap<>();
+    // The books in entries that are downloaded, readable without the lock
+    private final Set<Integer> downloaded = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private long budget;
+    private Policy policy;
+    private long totalBytes;
+    private final HashSet<Integer> pinned = new HashSet<>();
+    private boolean loaded, changed;
+
+    public AudioStorage(File indexFile, File downloadDirectory, File cacheDirectory, long budget, Policy policy) {
+        this.indexFile = indexFile;
+        this.downloadDirectory = downloadDirectory;
+        this.cacheDirectory = cacheDirectory;
+        this.budget = budget;
+        this.policy = policy;
+    }
+
+    public File getDownloadDirectory() {
+        return downloadDirectory;
+    }
+
+    public File getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    /*
+    Reads the index back in, on a background thread. Only the first call
+    does anything. Anything recorded before it keeps what was recorded.
+    Entries whose files have gone are dropped, which only takes a stat
+    per entry.
+     */
+    public synchronized void load() throws IOException {
+        if (loaded)
+            return;
+        loaded = true;
+        if (!indexFile.exists()) {
+            scanDirectories();
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != INDEX_VERSION) {
+                scanDirectories();
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry(in.readInt(), in.readByte());
+                entry.finished = in.readBoolean();
+                entry.size = in.readLong();
+                entry.lastPlayed = in.readLong();
+                if (entries.containsKey(key(entry.bookId, entry.kind)))
+                    continue;
+                if (!dataFile(entry).exists()) {
+                    changed = true;
+                    continue;
+                }
+                put(entry);
+            }
+        }
+    }
+
+    /*
+    Writes the index if anything changed since it was last written
+     */
+    public synchronized void save() throws IOException {
+        if (!changed)
+            return;
+        File directory = indexFile.getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs())
+            throw new IOException("Could not create " + directory);
+        File temp = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(entries.size());
+            for (Entry entry : entries.values()) {
+                out.writeInt(entry.bookId);
+                out.writeByte(entry.kind);
+                out.writeBoolean(entry.finished);
+                out.writeLong(entry.size);
+                out.writeLong(entry.lastPlayed);
+            }
+        }
+        if (!temp.renameTo(indexFile)) {
+            temp.delete();
+            throw new IOException("Could not replace " + indexFile);
+        }
+        changed = false;
+    }
+
+    /*
+    A book finished downloading. It counts as played now, so a book that
+    was just downloaded isn't the first thing to go.
+     */
+    public synchronized void recordDownload(int bookId, long size) {
+        Entry entry = entry(bookId, DOWNLOAD, System.currentTimeMillis());
+        resize(entry, size);
+        entry.finished = false;
+    }
+
+    /*
+    How much of a streamed book is in its cache now
+     */
+    public synchronized void recordCache(int bookId, long size) {
+        resize(entry(bookId, STREAM_CACHE, System.currentTimeMillis()), size);
+    }
+
+    public void played(int bookId) {
+        played(bookId, System.currentTimeMillis());
+    }
+
+    synchronized void played(int bookId, long time) {
+        for (int kind = DOWNLOAD; kind <= STREAM_CACHE; kind++) {
+            Entry entry = entries.get(key(bookId, kind));
+            if (entry != null) {
+                entry.lastPlayed = time;
+                entry.finished = false;
+                changed = true;
+            }
+        }
+    }
+
+    public synchronized void setFinished(int bookId) {
+        for (int kind = DOWNLOAD; kind <= STREAM_CACHE; kind++) {
+            Entry entry = entries.get(key(bookId, kind));
+            if (entry != null && !entry.finished) {
+                entry.finished = true;
+                changed = true;
+            }
+        }
+    }
+
+    /*
+    The books whose files the service has open, which trim() leaves alone.
+    Replaces whatever was pinned before, so an empty list pins nothing.
+     */
+    public synchronized void setPinned(Collection<Integer> bookIds) {
+        pinned.clear();
+        pinned.addAll(bookIds);
+    }
+
+    /*
+    Whether a book has been downloaded, going by what's recorded here.
+    Nothing is read from disk and no lock is taken, so this is safe to
+    ask from the main thread, even while the index is being loaded.
+     */
+    public boolean isDownloaded(int bookId) {
+        return downloaded.contains(bookId);
+    }
+
+    /*
+    The book a downloaded file belongs to, or -1 if it isn't one of ours
+     */
+    public int bookIdOf(File file) {
+        String name = file.getName();
+        if (!downloadDirectory.equals(file.getParentFile()) || !name.endsWith(DOWNLOAD_SUFFIX))
+            return -1;
+        try {
+            return Integer.parseInt(name.substring(0, name.length() - DOWNLOAD_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public synchronized void setBudget(long budget) {
+        this.budget = budget;
+    }
+
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    public synchronized void setPolicy(Policy policy) {
+        this.policy = policy;
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized List<Entry> getEntries() {
+        ArrayList<Entry> copy = new ArrayList<>();
+        for (Entry entry : entries.values())
+            copy.add(entry.copy());
+        return copy;
+    }
+
+    /*
+    Deletes files until everything fits in the budget, on a background
+    thread. Returns what was deleted.
+     */
+    public synchronized List<Entry> trim() {
+        ArrayList<Entry> evicted = new ArrayList<>();
+        if (totalBytes <= budget)
+            return evicted;
+
+        ArrayList<Entry> candidates = new ArrayList<>();
+        for (Entry entry : entries.values())
+            if (!pinned.contains(entry.bookId))
+                candidates.add(entry);
+        Collections.sort(candidates, policy == Policy.LEAST_VALUABLE ? byValue : byLastPlayed);
+
+        for (Entry entry : candidates) {
+            if (totalBytes <= budget)
+                break;
+            if (!delete(entry))
+                continue;
+            entries.remove(key(entry.bookId, entry.kind));
+            if (entry.kind == DOWNLOAD)
+                downloaded.remove(entry.bookId);
+            totalBytes -= entry.size;
+            changed = true;
+            evicted.add(entry);
+        }
+        return evicted;
+    }
+
+    private final Comparator<Entry> byLastPlayed = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return Long.compare(a.lastPlayed, b.lastPlayed);
+        }
+    };
+
+    private final Comparator<Entry> byValue = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int difference = value(a) - value(b);
+            return difference != 0 ? difference : Long.compare(a.lastPlayed, b.lastPlayed);
+        }
+    };
+
+    private int value(Entry entry) {
+        if (entry.kind == STREAM_CACHE && entries.containsKey(key(entry.bookId, DOWNLOAD)))
+            return 0;
+        if (entry.finished)
+            return 1;
+        return entry.kind == STREAM_CACHE ? 2 : 3;
+    }
+
+    private boolean delete(Entry entry) {
+        File data = dataFile(entry);
+        if (data.exists() && !data.delete())
+            return false;
+        if (entry.kind == STREAM_CACHE)
+            new File(cacheDirectory, entry.bookId + StreamCache.BLOCKS_SUFFIX).delete();
+        else
+            SeekIndex.fileFor(data).delete();
+        return true;
+    }
+
+    private File dataFile(Entry entry) {
+        if (entry.kind == DOWNLOAD)
+            return new File(downloadDirectory, entry.bookId + DOWNLOAD_SUFFIX);
+        return new File(cacheDirectory, entry.bookId + StreamCache.DATA_SUFFIX);
+    }
+
+    private Entry entry(int bookId, int kind, long now) {
+        Entry entry = entries.get(key(bookId, kind));
+        if (entry == null) {
+            entry = new Entry(bookId, kind);
+            entry.lastPlayed = now;
+            put(entry);
+        }
+        return entry;
+    }
+
+    private void put(Entry entry) {
+        entries.put(key(entry.bookId, entry.kind), entry);
+        if (entry.kind == DOWNLOAD)
+            downloaded.add(entry.bookId);
+        totalBytes += entry.size;
+        changed = true;
+    }
+
+    private void resize(Entry entry, long size) {
+        if (entry.size == size)
+            return;
+        totalBytes += size - entry.size;
+        entry.size = size;
+        changed = true;
+    }
+
+    private static long key(int bookId, int kind) {
+        return (long) bookId << 1 | kind;
+    }
+
+    /*
+    Builds the index from whatever is already in the directories. Files
+    are given the time they were last written as their last played time.
+     */
+    private void scanDirectories() {
+        File[] downloads = downloadDirectory.listFiles();
+        if (downloads != null) {
+            for (File file : downloads) {
+                int bookId = bookIdOf(file);
+                if (bookId < 0 || entries.containsKey(key(bookId, DOWNLOAD)))
+                    continue;
+                Entry entry = new Entry(bookId, DOWNLOAD);
+                entry.size = file.length();
+                entry.lastPlayed = file.lastModified();
+                put(entry);
+            }
+        }
+
+        File[] caches = cacheDirectory.listFiles();
+        if (caches != null) {
+            for (File file : caches) {
+                String name = file.getName();
+                if (!name.endsWith(StreamCache.BLOCKS_SUFFIX))
+                    continue;
+                int bookId;
+                try {
+                    bookId = Integer.parseInt(name.substring(0, name.length() - StreamCache.BLOCKS_SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (entries.containsKey(key(bookId, STREAM_CACHE)))
+                    continue;
+                Entry entry = new Entry(bookId, STREAM_CACHE);
+                try {
+                    entry.size = StreamCache.cachedBytes(file);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    continue;
+                }
+                entry.lastPlayed = file.lastModified();
+                put(entry);
+            }
+        }
+        changed = true;
+    }
+
+    public static class Entry {
+        final int bookId;
+        final int kind;
+        long size, lastPlayed;
+        boolean finished;
+
+        Entry(int bookId, int kind) {
+            this.bookId = bookId;
+            this.kind = kind;
+        }
+
+        public int getBookId() {
+            return bookId;
+        }
+
+        // DOWNLOAD or STREAM_CACHE
+        public int getKind() {
+            return kind;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        // System.currentTimeMillis() when the book was last played
+        public long getLastPlayed() {
+            return lastPlayed;
+        }
+
+        public boolean isFinished() {
+            return finished;
+        }
+
+        Entry copy() {
+            Entry copy = new Entry(bookId, kind);
+            copy.size = size;
+            copy.lastPlayed = lastPlayed;
+            copy.finished = finished;
+            return copy;
+        }
+    }
+}
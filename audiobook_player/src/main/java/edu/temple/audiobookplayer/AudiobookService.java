@@ -5,14 +5,15 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.Service;
 import android.content.Intent;
-import android.media.AudioAttributes;
 import android.media.MediaPlayer;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 //import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
@@ -20,20 +21,135 @@ import androidx.core.app.NotificationCompat;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 
-public class AudiobookService extends Service implements MediaPlayer.OnPreparedListener, MediaPlayer.OnCompletionListener {
+public class AudiobookService extends Service implements MediaPlayer.OnPreparedListener, MediaPlayer.OnCompletionListener,
+        MediaPlayer.OnSeekCompleteListener, MediaPlayer.OnInfoListener, MediaPlayer.OnBufferingUpdateListener {
+
+    /*
+    Progress messages carry the book id in arg1 (-1 when playing a file,
+    in which case obj is the file's Uri) and the position in seconds in arg2
+     */
+    public static final int PROGRESS_MESSAGE = 1;
+    private static final long PROGRESS_INTERVAL = 1000;
+    private static final long JOURNAL_INTERVAL = 5000;
+    private static final long MIN_PROGRESS_INTERVAL = 100;
+
+    private static final String BOOK_DOWNLOAD_URL = "https://kamorris.com/lab/audlib/download.php?id=";
+
+    // How much of the next books in the queue is downloaded ahead of time
+    private static final long PREFETCH_MILLIS = 3 * 60 * 1000;
+    private static final long MAX_PREFETCH_BYTES = 8 * 1024 * 1024;
+    private static final long LOOK_AHEAD_BYTES = 1024 * 1024;
 
     private final MediaControlBinder binder = new MediaControlBinder();
     private static final String TAG = "Audiobook Service";
-    private final MediaPlayer mediaPlayer = new MediaPlayer();
+    private final PlayerPool playerPool = new PlayerPool(1, this, this, this, this, this);
+    private volatile MediaPlayer mediaPlayer;
     private Notification notification;
-    private Handler progressHandler;
-    private Thread progressThread;
-    private PlayingState playingState = PlayingState.STOPPED; // 0 - stopped, 1 - playing, 2 - paused
+    private final ProgressBroadcaster progressBroadcaster = new ProgressBroadcaster();
+    // Stands in for the handler passed to setProgressHandler()
+    private ProgressBroadcaster.Listener handlerListener;
+    private ScheduledExecutorService scheduler;
+    private ProgressTicker progressTicker;
+    private PositionJournal positionJournal;
+    private volatile PlayingState playingState = PlayingState.STOPPED; // 0 - stopped, 1 - playing, 2 - paused
     private int startPosition;
     private int currentBookId = -1;
     private Uri currentBookUri;
+    private final StreamCache.Stats cacheStats = new StreamCache.Stats();
+    private StreamCache currentCache;
+
+    // Downloads and stream caches, kept within a byte budget
+    private AudioStorage storage;
+
+    /*
+    A downloaded book with a seek index is seeked by opening it again at
+    the frame the index gives, so the player's own position is counted
+    from there and positionBase is added to it. reopening is set while
+    the player prepares at the new place.
+
+    Indexes are read in the background and only used once they arrive,
+    so a book seeks the plain way for the first moment after it opens.
+    Progress ticks read these from the scheduler thread.
+     */
+    private volatile File currentFile;
+    private volatile SeekIndex currentIndex;
+    private volatile int positionBase;
+    private volatile boolean reopening;
+    private SeekIndex standbyIndex;
+
+    // Seeks, and anything else that touches the players, happen on the main thread
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final SeekDelay seekDelay = new SeekDelay();
+    // Set once onDestroy() starts, so late background work doesn't start more
+    private volatile boolean destroyed;
+
+    /*
+    A second player that is already preparing (or prepared) the book the
+    user is most likely to play next, so starting it is just a handoff
+     */
+    private MediaPlayer standbyPlayer;
+    private int standbyBookId = -1;
+    private Uri standbyBookUri;
+    private boolean standbyPrepared;
+    private long standbyPreparingSince;
+    private StreamCache standbyCache;
+
+    /*
+    Books lined up to play. While the queue is playing, the next book is
+    prepared on the standby player and the start of the one after that
+    is downloaded, so moving on doesn't leave a gap.
+     */
+    private final PlaybackQueue playbackQueue = new PlaybackQueue();
+    private File queueFile;
+    private boolean queueActive;
+    private ExecutorService prefetchExecutor;
+    private StreamCache lookAheadCache;
+
+    // Time from a play request to audio starting, for cold and warm starts
+    private long playRequestedAt;
+    private boolean warmStart;
+    private long coldStartLatency = -1, warmStartLatency = -1;
+
+    // Start times for the playback histograms, all from elapsedRealtime()
+    private final PlaybackStats playbackStats = new PlaybackStats();
+    private long preparingSince, stallingSince = -1;
+    private boolean awaitingFirstAudio;
+
+    /*
+    Only one seek runs at a time, and seeks that come in meanwhile
+    collapse into the latest one. Previews are approximate seeks to the
+    nearest sync frame, which are much cheaper on a streamed book.
+     */
+    private final SeekCoalescer seekCoalescer = new SeekCoalescer(new SeekCoalescer.Seeker() {
+        @Override
+        public boolean seek(int position, boolean precise) {
+            if (currentIndex != null && playingState != PlayingState.STOPPED)
+                return reopenAt(position);
+            try {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+                    mediaPlayer.seekTo(position, precise ? MediaPlayer.SEEK_CLOSEST : MediaPlayer.SEEK_CLOSEST_SYNC);
+                else if (precise)
+                    mediaPlayer.seekTo(position);
+                else
+                    return false; // No cheap seek to preview with, so wait for the real one
+                return true;
+            } catch (IllegalStateException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+    });
 
     private final String NOTIFICATION_CHANNEL_ID = "media_player_control";
 
@@ -45,9 +161,64 @@ public class AudiobookService extends Service implements MediaPlayer.OnPreparedL
 
         createNotificationChannel();
 
-        mediaPlayer.setAudioAttributes(new AudioAttributes.Builder().setContentType(AudioAttributes.CONTENT_TYPE_SPEECH).build());
-        mediaPlayer.setOnPreparedListener(this);
-        mediaPlayer.setOnCompletionListener(this);
+        // Every timed job in the service shares this one thread
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "AudiobookService scheduler");
+            }
+        });
+        progressTicker = new ProgressTicker(scheduler, new ProgressTicker.Listener() {
+            @Override
+            public void onTick() {
+                notifyProgress();
+            }
+        });
+
+        positionJournal = new PositionJournal(new File(getFilesDir(), "positions.journal"), JOURNAL_INTERVAL);
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    positionJournal.load();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+
+        // Prefetching waits on the network, so it gets its own thread rather than holding up ticks
+        prefetchExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "AudiobookService prefetch");
+            }
+        });
+        queueFile = new File(getFilesDir(), "playback.queue");
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    playbackQueue.load(queueFile);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+
+        storage = AudioStorage.get(this);
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    storage.load();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+
+        mediaPlayer = playerPool.acquire();
 
         String NOTIFICATION_PLAYING_TITLE = getString(R.string.notification_playing_title);
         String NOTIFICATION_PLAYING_DESCRIPTION = getString(R.string.notification_playing_description);
@@ -67,24 +238,110 @@ public class AudiobookService extends Service implements MediaPlayer.OnPreparedL
         return binder;
     }
 
-    private void setHandler (Handler handler) {
+    /*
+    The handler gets PROGRESS_MESSAGEs once a second. Setting another
+    handler replaces it, and null stops the messages.
+     */
+    private void setHandler (final Handler handler) {
         Log.i(TAG, "Handler set");
-        progressHandler = handler;
+        if (handlerListener != null)
+            progressBroadcaster.remove(handlerListener);
+        handlerListener = null;
+        if (handler != null) {
+            handlerListener = new ProgressMessageListener(PROGRESS_MESSAGE, new ProgressMessageListener.Sender() {
+                @Override
+                public void send(int what, int arg1, int arg2, Object obj) {
+                    Message.obtain(handler, what, arg1, arg2, obj).sendToTarget();
+                }
+            });
+            progressBroadcaster.add(handlerListener, PROGRESS_INTERVAL);
+        }
+        updateProgressRate();
+    }
+
+    private void addProgressListener(ProgressBroadcaster.Listener listener, long interval) {
+        progressBroadcaster.add(listener, Math.max(interval, MIN_PROGRESS_INTERVAL));
+        updateProgressRate();
+    }
+
+    private void removeProgressListener(ProgressBroadcaster.Listener listener) {
+        progressBroadcaster.remove(listener);
+        updateProgressRate();
+    }
+
+    /*
+    Progress only needs to tick while something is playing, as often as
+    the most eager listener wants it. Without anyone listening it just has
+    to keep the position journal current, which is done far less often.
+     */
+    private void updateProgressRate() {
+        if (playingState != PlayingState.PLAYING) {
+            progressTicker.setInterval(0);
+        } else {
+            long fastest = progressBroadcaster.getFastestInterval();
+            progressTicker.setInterval(fastest > 0 ? Math.min(fastest, JOURNAL_INTERVAL) : JOURNAL_INTERVAL);
+        }
+    }
+
+    /*
+    Runs on the scheduler thread. A tick builds at most one snapshot,
+    which every listener that is due shares.
+     */
+    private void notifyProgress() {
+        if (playingState != PlayingState.PLAYING)
+            return;
+        int position = currentPosition() / 1000;
+        checkpoint(position, false);
+
+        long now = SystemClock.elapsedRealtime();
+        // Checked first so the player isn't asked for its duration when nobody is due
+        if (progressBroadcaster.isAnyoneDue(now))
+            progressBroadcaster.publish(currentBookId, currentBookUri, position, duration() / 1000, now);
+    }
+
+    /*
+    Saves the position of the current book to the journal, and tidies
+    the journal up (on the scheduler thread) once it gets long
+     */
+    private void checkpoint(int position, boolean force) {
+        if (currentBookId < 0)
+            return;
+        try {
+            positionJournal.record(currentBookId, position, force);
+            if (positionJournal.needsCompaction()) {
+                scheduler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            positionJournal.compact();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                });
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     private void play(int id) {
+        playRequestedAt = SystemClock.elapsedRealtime();
+        if (standbyPlayer != null && standbyBookId == id && standbyBookUri == null) {
+            promoteStandby();
+            return;
+        }
         try {
+            recordStorage();
             currentBookId = id;
             currentBookUri = null;
+            currentFile = null;
+            currentIndex = null;
+            positionBase = 0;
             mediaPlayer.reset();
-            String BOOK_DOWNLOAD_URL = "https://kamorris.com/lab/audlib/download.php?id=";
-            mediaPlayer.setDataSource(BOOK_DOWNLOAD_URL + id);
-            playingState = PlayingState.STOPPED;
-            mediaPlayer.prepareAsync();
-            Log.i(TAG, "Audiobook preparing");
-            int FOREGROUND_CODE = 1;
-            startForeground(FOREGROUND_CODE, notification);
-            Log.i(TAG, "Foreground notification started");
+            currentCache = setDataSource(mediaPlayer, id);
+            updatePins();
+            startPreparing();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -96,65 +353,571 @@ public class AudiobookService extends Service implements MediaPlayer.OnPreparedL
     }
 
     private void play(File file) {
+        playRequestedAt = SystemClock.elapsedRealtime();
+        Uri uri = Uri.fromFile(file);
+        if (standbyPlayer != null && uri.equals(standbyBookUri)) {
+            promoteStandby();
+            return;
+        }
         try {
-            currentBookUri = Uri.fromFile(file);
+            recordStorage();
+            currentBookUri = uri;
             currentBookId = -1;
+            currentCache = null;
+            currentFile = file;
+            currentIndex = null;
+            positionBase = 0;
+            loadSeekIndex(file);
             mediaPlayer.reset();
-            mediaPlayer.setDataSource((new FileInputStream(file)).getFD());
-            playingState = PlayingState.STOPPED;
+            setDataSource(mediaPlayer, file);
+            updatePins();
+            startPreparing();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+    Returns the cache the player reads through, or null if it streams directly
+     */
+    private StreamCache setDataSource(MediaPlayer player, int id) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            // Streamed audio goes through a disk cache so it is only ever downloaded once
+            StreamCache cache = newStreamCache(id);
+            player.setDataSource(new CachingMediaDataSource(cache));
+            return cache;
+        } else {
+            player.setDataSource(BOOK_DOWNLOAD_URL + id);
+            return null;
+        }
+    }
+
+    private StreamCache newStreamCache(int id) {
+        return new StreamCache(storage.getCacheDirectory(), id, BOOK_DOWNLOAD_URL + id, cacheStats);
+    }
+
+    private void setDataSource(MediaPlayer player, File file) throws IOException {
+        setDataSource(player, file, 0);
+    }
+
+    private void setDataSource(MediaPlayer player, File file, long offset) throws IOException {
+        // MediaPlayer keeps its own copy of the descriptor, so ours can be closed right away
+        try (FileInputStream in = new FileInputStream(file)) {
+            player.setDataSource(in.getFD(), offset, file.length() - offset);
+        }
+    }
+
+    /*
+    Reads the seek index saved next to a downloaded book on the scheduler
+    thread, and hands it back to the main thread to be used if the book is
+    still the current or standby one by then
+     */
+    private void loadSeekIndex(final File file) {
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                SeekIndex index = null;
+                try {
+                    index = SeekIndex.load(file);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                final SeekIndex loaded = index;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (destroyed)
+                            return;
+                        if (loaded != null)
+                            installSeekIndex(file, loaded);
+                        else
+                            buildSeekIndex(file);
+                    }
+                });
+            }
+        });
+    }
+
+    private void installSeekIndex(File file, SeekIndex index) {
+        if (file.equals(currentFile) && currentIndex == null)
+            currentIndex = index;
+        else if (standbyBookUri != null && file.getPath().equals(standbyBookUri.getPath()))
+            standbyIndex = index;
+    }
+
+    /*
+    A book without an index gets one built in the background, for the
+    next time it is played. Only books downloaded before there were
+    indexes get here, so this rarely holds up a prefetch.
+     */
+    private void buildSeekIndex(final File file) {
+        if (destroyed || prefetchExecutor.isShutdown())
+            return;
+        prefetchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long start = SystemClock.elapsedRealtime();
+                    SeekIndex index = SeekIndex.ensure(file);
+                    if (index != null)
+                        Log.i(TAG, "Indexed " + index.getFrameCount() + " frames of " + file.getName()
+                                + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /*
+    Opens the book again at the frame holding position. However variable
+    the bitrate, that lands exactly where it should, and takes the same
+    time anywhere in the book. Finishes like any other seek, with
+    onSeekComplete(), once the player has prepared.
+     */
+    private boolean reopenAt(int position) {
+        try {
+            SeekIndex.Target target = currentIndex.find(currentFile, position);
+            reopening = true;
+            mediaPlayer.reset();
+            setDataSource(mediaPlayer, currentFile, target.getOffset());
+            positionBase = target.getTime();
             mediaPlayer.prepareAsync();
-            Log.i(TAG, "Audiobook preparing");
-            int FOREGROUND_CODE = 1;
-            startForeground(FOREGROUND_CODE, notification);
-            Log.i(TAG, "Foreground notification started");
+            return true;
         } catch (IOException e) {
             e.printStackTrace();
+            reopening = false;
+            return false;
         }
     }
 
+    /*
+    Milliseconds into the book, wherever the player was opened
+     */
+    private int currentPosition() {
+        if (reopening)
+            return positionBase;
+        return positionBase + mediaPlayer.getCurrentPosition();
+    }
+
+    private int duration() {
+        if (currentIndex != null)
+            return currentIndex.getDuration();
+        return mediaPlayer.getDuration();
+    }
+
+    private void startPreparing() {
+        mainHandler.removeCallbacks(seekDelay);
+        reopening = false;
+        seekCoalescer.reset();
+        awaitingFirstAudio = false;
+        warmStart = false;
+        playingState = PlayingState.STOPPED;
+        updateProgressRate();
+        preparingSince = SystemClock.elapsedRealtime();
+        mediaPlayer.prepareAsync();
+        Log.i(TAG, "Audiobook preparing");
+        int FOREGROUND_CODE = 1;
+        startForeground(FOREGROUND_CODE, notification);
+        Log.i(TAG, "Foreground notification started");
+    }
+
+    /*
+    Gets a book ready in the background so a later play() only has to
+    swap players. Only one book is kept on standby at a time.
+     */
+    private void prepareStandby(int id, File file) {
+        Uri uri = file == null ? null : Uri.fromFile(file);
+        if (standbyPlayer != null && standbyBookId == id && (uri == null ? standbyBookUri == null : uri.equals(standbyBookUri)))
+            return;
+        if (id == currentBookId && playingState != PlayingState.STOPPED)
+            return;
+
+        cancelStandby();
+        closeLookAhead(id);
+        standbyPlayer = playerPool.acquire();
+        standbyBookId = id;
+        standbyBookUri = uri;
+        standbyPrepared = false;
+        standbyIndex = null;
+        try {
+            if (file != null) {
+                setDataSource(standbyPlayer, file);
+                loadSeekIndex(file);
+            } else {
+                standbyCache = setDataSource(standbyPlayer, id);
+            }
+            updatePins();
+            standbyPreparingSince = SystemClock.elapsedRealtime();
+            standbyPlayer.prepareAsync();
+            Log.i(TAG, "Standby player preparing");
+        } catch (IOException e) {
+            e.printStackTrace();
+            cancelStandby();
+        }
+    }
+
+    private void cancelStandby() {
+        playerPool.recycle(standbyPlayer);
+        standbyPlayer = null;
+        standbyCache = null;
+        standbyIndex = null;
+        standbyBookId = -1;
+        standbyBookUri = null;
+        standbyPrepared = false;
+        updatePins();
+    }
+
+    private void promoteStandby() {
+        recordStorage();
+        MediaPlayer previous = mediaPlayer;
+        mediaPlayer = standbyPlayer;
+        currentBookId = standbyBookId;
+        currentBookUri = standbyBookUri;
+        currentCache = standbyCache;
+        currentFile = standbyBookUri == null || standbyBookUri.getPath() == null ? null : new File(standbyBookUri.getPath());
+        // The standby book's index has usually arrived by now
+        currentIndex = standbyIndex;
+        if (currentFile != null && currentIndex == null)
+            loadSeekIndex(currentFile);
+        positionBase = 0;
+        reopening = false;
+        boolean prepared = standbyPrepared;
+        preparingSince = standbyPreparingSince;
+        standbyPlayer = null;
+        standbyCache = null;
+        standbyIndex = null;
+        standbyBookId = -1;
+        standbyBookUri = null;
+        standbyPrepared = false;
+        playerPool.recycle(previous);
+        mainHandler.removeCallbacks(seekDelay);
+        updatePins();
+        seekCoalescer.reset();
+        awaitingFirstAudio = false;
+
+        warmStart = true;
+        playingState = PlayingState.STOPPED;
+        updateProgressRate();
+        int FOREGROUND_CODE = 1;
+        startForeground(FOREGROUND_CODE, notification);
+        Log.i(TAG, "Standby player handed off");
+
+        // If it is still preparing, onPrepared() starts it as the current player
+        if (prepared)
+            startPlayback();
+    }
+
     private void play(File file, int position) {
         startPosition = position;
         play(file);
     }
 
+    /*
+    Plays a downloaded copy of a known book, so its position is still journaled
+     */
+    private void play(int id, File file, int position) {
+        play(file, position);
+        currentBookId = id;
+        updatePins();
+    }
+
+    /*
+    Downloads the first few minutes of the standby book through the same
+    cache its player reads from. The player's duration and the file's
+    length give the bitrate, so this is the same few minutes for any book.
+     */
+    private void prefetchStandby(MediaPlayer player) {
+        final StreamCache cache = standbyCache;
+        if (cache == null)
+            return;
+        final long duration = player.getDuration();
+        prefetchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long length = cache.length();
+                    long bytes = duration > 0 ? Math.min(length * PREFETCH_MILLIS / duration, MAX_PREFETCH_BYTES) : LOOK_AHEAD_BYTES;
+                    long fetched = cache.prefetch(bytes);
+                    Log.i(TAG, "Prefetched " + fetched / 1024 + "KB of the standby book");
+                    storage.recordCache(cache.getBookId(), cache.getCachedBytes());
+                    if (!Thread.currentThread().isInterrupted())
+                        trimStorage();
+                } catch (IOException e) {
+                    // Cancelling the standby closes its cache, which ends up here
+                    Log.i(TAG, "Standby prefetch stopped: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /*
+    Downloads the start of a book further down the queue. Its length isn't
+    known yet, so a fixed amount is fetched; enough for the player to find
+    its way around the file once it gets to be the standby book.
+     */
+    private void prefetchAhead(PlaybackQueue.Item item) {
+        if (item == null || item.getFile() != null || Build.VERSION.SDK_INT < Build.VERSION_CODES.M)
+            return;
+        if (lookAheadCache != null || item.getBookId() == standbyBookId || item.getBookId() == currentBookId)
+            return;
+        final StreamCache cache = newStreamCache(item.getBookId());
+        final int bookId = item.getBookId();
+        lookAheadCache = cache;
+        updatePins();
+        prefetchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean finished = false;
+                try {
+                    long fetched = cache.prefetch(LOOK_AHEAD_BYTES);
+                    Log.i(TAG, "Prefetched " + fetched / 1024 + "KB of book " + bookId);
+                    finished = !Thread.currentThread().isInterrupted();
+                } catch (IOException e) {
+                    Log.i(TAG, "Look-ahead prefetch stopped: " + e.getMessage());
+                } finally {
+                    cache.close();
+                    storage.recordCache(bookId, cache.getCachedBytes());
+                    // A cancelled prefetch leaves trimming to whatever cancelled it
+                    if (finished)
+                        trimStorage();
+                }
+            }
+        });
+    }
+
+    /*
+    Only one StreamCache may have a book's files open, so a book's
+    look-ahead prefetch is stopped before a player opens it
+     */
+    private void closeLookAhead(int bookId) {
+        if (lookAheadCache != null && (bookId < 0 || lookAheadCache.getBookId() == bookId)) {
+            lookAheadCache.close();
+            lookAheadCache = null;
+            updatePins();
+        }
+    }
+
+    private void updateLookAhead() {
+        if (!queueActive)
+            return;
+        PlaybackQueue.Item next = playbackQueue.peek(1);
+        PlaybackQueue.Item after = playbackQueue.peek(2);
+        if (lookAheadCache != null && (after == null || lookAheadCache.getBookId() != after.getBookId()))
+            closeLookAhead(-1);
+        if (next != null)
+            prepareStandby(next.getBookId(), next.getFile());
+        prefetchAhead(after);
+    }
+
+    private void playItem(PlaybackQueue.Item item) {
+        queueActive = true;
+        int position = getSavedPosition(item.getBookId());
+        if (item.getFile() != null)
+            play(item.getBookId(), item.getFile(), position);
+        else
+            play(item.getBookId(), position);
+        updateLookAhead();
+    }
+
+    private void saveQueue() {
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    playbackQueue.save(queueFile);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    private void enqueue(int id, File file) {
+        playbackQueue.add(new PlaybackQueue.Item(id, file));
+        saveQueue();
+        updateLookAhead();
+    }
+
+    private void moveInQueue(int from, int to) {
+        playbackQueue.move(from, to);
+        saveQueue();
+        updateLookAhead();
+    }
+
+    private void removeFromQueue(int index) {
+        boolean wasCurrent = playbackQueue.remove(index);
+        saveQueue();
+        if (wasCurrent && queueActive)
+            playCurrentItem();
+        else
+            updateLookAhead();
+    }
+
+    private void clearQueue() {
+        playbackQueue.clear();
+        queueActive = false;
+        closeLookAhead(-1);
+        saveQueue();
+    }
+
+    private void playQueue(int index) {
+        PlaybackQueue.Item item = playbackQueue.jumpTo(index);
+        saveQueue();
+        playItem(item);
+    }
+
+    /*
+    Moves on to the next book in the queue, or stops at the end
+     */
+    private void skip() {
+        if (playingState != PlayingState.STOPPED)
+            checkpoint(currentPosition() / 1000, true);
+        playbackQueue.advance();
+        saveQueue();
+        playCurrentItem();
+    }
+
+    private void playCurrentItem() {
+        PlaybackQueue.Item item = playbackQueue.getCurrent();
+        if (item != null) {
+            playItem(item);
+        } else {
+            queueActive = false;
+            if (playingState != PlayingState.STOPPED)
+                stop();
+        }
+    }
+
+    /*
+    The book being played, as storage knows it. A file played without
+    an id may still be one of the downloads.
+     */
+    private int storageBookId() {
+        if (currentBookId >= 0 || currentBookUri == null || currentBookUri.getPath() == null)
+            return currentBookId;
+        return storage.bookIdOf(new File(currentBookUri.getPath()));
+    }
+
+    /*
+    Every book with files open in one of our players or caches is kept
+    out of storage's reach: the current book, the standby book and the
+    look-ahead book. Its files could otherwise be deleted from under it
+    when a download or another cache pushes storage over its budget.
+     */
+    private void updatePins() {
+        ArrayList<Integer> open = new ArrayList<>(3);
+        int current = storageBookId();
+        if (current >= 0 && (currentCache != null || currentFile != null))
+            open.add(current);
+        if (standbyPlayer != null && standbyBookId >= 0)
+            open.add(standbyBookId);
+        if (lookAheadCache != null)
+            open.add(lookAheadCache.getBookId());
+        storage.setPinned(open);
+    }
+
+    /*
+    Tells storage how much of the current book is cached, then trims
+    back to the budget and saves the index on the scheduler thread
+     */
+    private void recordStorage() {
+        if (currentCache != null && currentBookId >= 0)
+            storage.recordCache(currentBookId, currentCache.getCachedBytes());
+        trimStorage();
+    }
+
+    private void trimStorage() {
+        // A prefetch can finish after onDestroy() has shut the scheduler down
+        if (scheduler.isShutdown())
+            return;
+        try {
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (AudioStorage.Entry entry : storage.trim())
+                        Log.i(TAG, "Removed " + (entry.getKind() == AudioStorage.DOWNLOAD ? "download" : "stream cache")
+                                + " of book " + entry.getBookId() + ", " + entry.getSize() / 1024 + "KB");
+                    try {
+                        storage.save();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.i(TAG, "Storage not trimmed, the service is shutting down");
+        }
+    }
+
+    /*
+    Waits for the journal if it is still being loaded, which only
+    happens if this is asked for straight after the service starts
+     */
+    private int getSavedPosition(int id) {
+        return positionJournal.getPosition(id);
+    }
+
     private void pause () {
         if (playingState == PlayingState.PLAYING) {
             playingState = PlayingState.PAUSED;
-            mediaPlayer.pause();
-            if (progressThread != null) {
-                progressThread.interrupt();
-                progressThread = null;
-            }
+            // A player that is still reopening starts (or not) when it is ready
+            if (!reopening)
+                mediaPlayer.pause();
+            stallingSince = -1;
+            checkpoint(currentPosition() / 1000, true);
+            recordStorage();
+            updateProgressRate();
             Log.i(TAG, "Player paused");
         } else if (playingState == PlayingState.PAUSED) {
             playingState = PlayingState.PLAYING;
-            mediaPlayer.start();
-            progressThread = new Thread(new NotifyProgress());
-            progressThread.start();
+            if (!reopening)
+                mediaPlayer.start();
+            updateProgressRate();
             Log.i(TAG, "Player started");
         }
     }
 
     private void stop() {
-        mediaPlayer.stop();
+        if (playingState != PlayingState.STOPPED)
+            checkpoint(currentPosition() / 1000, true);
+        if (reopening) {
+            // Stopping isn't allowed while preparing, but the next play() starts over anyway
+            reopening = false;
+            mediaPlayer.reset();
+        } else {
+            mediaPlayer.stop();
+        }
         playingState = PlayingState.STOPPED;
+        recordStorage();
         stopForeground(true);
-        if (progressThread != null) {
-            progressThread.interrupt();
-            progressThread = null;
-        }
+        updateProgressRate();
         Log.i(TAG, "Player stopped");
     }
 
     private void seekTo(int position) {
         position = position * 1000;
-        if (position <= mediaPlayer.getDuration()) {
-            mediaPlayer.seekTo((position));
+        if (position <= duration()) {
+            seekCoalescer.seek(position, true);
+            checkpoint(position / 1000, true);
             Log.i(TAG, "Audiobook position changed");
         }
     }
 
+    /*
+    Approximate seek while the user is still dragging
+     */
+    private void previewSeek(int position) {
+        if (playingState == PlayingState.STOPPED)
+            return;
+        position = position * 1000;
+        if (position <= duration())
+            seekCoalescer.seek(position, false);
+    }
+
     private boolean isPlaying() {
+        if (reopening)
+            return playingState == PlayingState.PLAYING;
         return mediaPlayer.isPlaying();
     }
 
@@ -162,21 +925,83 @@ public class AudiobookService extends Service implements MediaPlayer.OnPreparedL
     public class MediaControlBinder extends Binder {
 
         public void play(int id) {
+            queueActive = false;
             AudiobookService.this.play(id);
         }
 
         public void play(int id, int startPosition) {
+            queueActive = false;
             AudiobookService.this.play(id, startPosition);
         }
 
         public void play(File file) {
+            queueActive = false;
             AudiobookService.this.play(file);
         }
 
         public void play(File file, int startPosition) {
+            queueActive = false;
             AudiobookService.this.play(file, startPosition);
         }
 
+        public void play(int id, File file, int startPosition) {
+            queueActive = false;
+            AudiobookService.this.play(id, file, startPosition);
+        }
+
+        /*
+        Adds a book to the end of the queue, streamed or from a downloaded file.
+        Playing a single book with play() leaves the queue where it is.
+         */
+        public void enqueue(int id) {
+            AudiobookService.this.enqueue(id, null);
+        }
+
+        public void enqueue(int id, File file) {
+            AudiobookService.this.enqueue(id, file);
+        }
+
+        public void moveInQueue(int from, int to) {
+            AudiobookService.this.moveInQueue(from, to);
+        }
+
+        public void removeFromQueue(int index) {
+            AudiobookService.this.removeFromQueue(index);
+        }
+
+        public void clearQueue() {
+            AudiobookService.this.clearQueue();
+        }
+
+        public List<PlaybackQueue.Item> getQueue() {
+            return playbackQueue.getItems();
+        }
+
+        /*
+        Index of the queued book playing, or -1 before the queue has started
+         */
+        public int getQueueIndex() {
+            return playbackQueue.getCurrentIndex();
+        }
+
+        /*
+        Plays the queue from a book, carrying on with the next one whenever a book ends
+         */
+        public void playQueue(int index) {
+            AudiobookService.this.playQueue(index);
+        }
+
+        public void skip() {
+            AudiobookService.this.skip();
+        }
+
+        /*
+        Where the listener last was in a book, in seconds, even across restarts
+         */
+        public int getSavedPosition(int id) {
+            return AudiobookService.this.getSavedPosition(id);
+        }
+
         public void pause() {
             AudiobookService.this.pause();
         }
@@ -189,26 +1014,118 @@ public class AudiobookService extends Service implements MediaPlayer.OnPreparedL
             AudiobookService.this.setHandler(handler);
         }
 
+        /*
+        Progress for any number of listeners, each about every interval
+        milliseconds while a book plays. Listeners are called on a
+        background thread. Adding a listener again changes its interval.
+         */
+        public void addProgressListener(ProgressBroadcaster.Listener listener, long interval) {
+            AudiobookService.this.addProgressListener(listener, interval);
+        }
+
+        public void removeProgressListener(ProgressBroadcaster.Listener listener) {
+            AudiobookService.this.removeProgressListener(listener);
+        }
+
         public void seekTo(int position) {
             AudiobookService.this.seekTo(position);
         }
 
+        /*
+        For positions passed through while dragging. Only the latest
+        one is ever sent, and seekTo() should follow when the drag ends.
+         */
+        public void previewSeek(int position) {
+            AudiobookService.this.previewSeek(position);
+        }
+
+        /*
+        Milliseconds from a seek being sent to the player to it completing
+         */
+        public long getLastSeekLatency() {
+            return seekCoalescer.getLastLatency();
+        }
+
+        public long getAverageSeekLatency() {
+            return seekCoalescer.getAverageLatency();
+        }
+
+        /*
+        Seeks that were dropped because a newer one replaced them
+         */
+        public int getCollapsedSeekCount() {
+            return seekCoalescer.getCollapsedCount();
+        }
+
         public boolean isPlaying() {
             return AudiobookService.this.isPlaying();
         }
 
+        /*
+        Start preparing a book that is likely to be played soon
+         */
+        public void prepareStandby(int id) {
+            AudiobookService.this.prepareStandby(id, null);
+        }
+
+        public void prepareStandby(int id, File file) {
+            AudiobookService.this.prepareStandby(id, file);
+        }
+
+        /*
+        Milliseconds from the last play request to audio starting, for a
+        player that had to prepare from scratch and for a standby handoff.
+        -1 until one of each has happened.
+         */
+        public long getColdStartLatency() {
+            return coldStartLatency;
+        }
+
+        public long getWarmStartLatency() {
+            return warmStartLatency;
+        }
+
+        public StreamCache.Stats getCacheStats() {
+            return cacheStats;
+        }
+
+        /*
+        Prepare, first audio, seek and stall times since the service started
+         */
+        public PlaybackStats getPlaybackStats() {
+            return playbackStats;
+        }
+
     }
 
     @Override
     public boolean onUnbind(Intent intent) {
-        progressHandler = null;
+        // Everyone who subscribed has gone
+        progressBroadcaster.clear();
+        handlerListener = null;
+        updateProgressRate();
         return super.onUnbind(intent);
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
+        destroyed = true;
+        cancelStandby();
+        closeLookAhead(-1);
+        prefetchExecutor.shutdownNow();
+        progressTicker.setInterval(0);
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                positionJournal.close();
+            }
+        });
+        scheduler.shutdown();
+        // After the scheduler, which can still be posting back here
+        mainHandler.removeCallbacksAndMessages(null);
         mediaPlayer.release();
+        playerPool.releaseAll();
     }
 
     private void createNotificationChannel() {
@@ -227,68 +1144,140 @@ public class AudiobookService extends Service implements MediaPlayer.OnPreparedL
 
     @Override
     public void onPrepared(MediaPlayer mediaPlayer) {
+        long now = SystemClock.elapsedRealtime();
+        if (mediaPlayer == standbyPlayer) {
+            standbyPrepared = true;
+            playbackStats.prepare.record(now - standbyPreparingSince);
+            Log.i(TAG, "Standby player prepared");
+            prefetchStandby(mediaPlayer);
+            return;
+        }
+        if (mediaPlayer != this.mediaPlayer)
+            return;
+        if (reopening) {
+            reopening = false;
+            if (playingState == PlayingState.PLAYING)
+                mediaPlayer.start();
+            onSeekComplete(mediaPlayer);
+            return;
+        }
+
+        playbackStats.prepare.record(now - preparingSince);
         Log.i(TAG, "Audiobook prepared");
+        startPlayback();
+    }
+
+    private void startPlayback() {
         playingState = PlayingState.PLAYING;
+        stallingSince = -1;
         if (startPosition > 0) {
-            new Thread(new SeekDelay(500)).start();
+            mainHandler.postDelayed(seekDelay, 500);
         }
         mediaPlayer.start();
-        progressThread = new Thread(new NotifyProgress());
-        progressThread.start();
-        Log.i(TAG, "Audiobook started");
+        updateProgressRate();
+
+        // The playing book counts as the most recently played
+        storage.played(storageBookId());
+        recordStorage();
 
+        long latency = SystemClock.elapsedRealtime() - playRequestedAt;
+        if (warmStart)
+            warmStartLatency = latency;
+        else
+            coldStartLatency = latency;
+        Log.i(TAG, "Audiobook started after " + latency + "ms (" + (warmStart ? "warm" : "cold") + ")");
+
+        // Before O the player doesn't say when audio starts, so starting it has to do
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+            awaitingFirstAudio = true;
+        else
+            playbackStats.firstAudio.record(latency);
     }
 
     @Override
     public void onCompletion(MediaPlayer mp) {
+        if (mp != mediaPlayer)
+            return;
+        // A finished book starts from the beginning next time
+        checkpoint(0, true);
+        playingState = PlayingState.STOPPED;
+        recordStorage();
+        storage.setFinished(storageBookId());
+
+        // The next queued book is usually already prepared on the standby player
+        if (queueActive && playbackQueue.advance() != null) {
+            saveQueue();
+            playCurrentItem();
+            return;
+        }
+        queueActive = false;
         mp.reset();
-        progressThread = null;
+        updateProgressRate();
         stopSelf();
     }
 
-    class NotifyProgress implements Runnable {
+    @Override
+    public void onSeekComplete(MediaPlayer mp) {
+        if (mp != mediaPlayer)
+            return;
+        seekCoalescer.onSeekComplete();
+        playbackStats.seek.record(seekCoalescer.getLastLatency());
+        Log.i(TAG, "Seek took " + seekCoalescer.getLastLatency() + "ms");
+    }
 
-        @Override
-        public void run() {
-            Message message;
-            while (playingState == PlayingState.PLAYING) {
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    Log.i(TAG, "Progress update stopped");
+    @Override
+    public boolean onInfo(MediaPlayer mp, int what, int extra) {
+        if (mp != mediaPlayer)
+            return false;
+        long now = SystemClock.elapsedRealtime();
+        switch (what) {
+            case MediaPlayer.MEDIA_INFO_AUDIO_RENDERING_START:
+                if (awaitingFirstAudio) {
+                    awaitingFirstAudio = false;
+                    playbackStats.firstAudio.record(now - playRequestedAt);
                 }
-                if (progressHandler != null) {
-                    if (playingState == PlayingState.PLAYING) {
-                        message = Message.obtain();
-                        if (currentBookId >= 0)
-                            message.obj = new BookProgress(currentBookId, mediaPlayer.getCurrentPosition() / 1000);
-                        else
-                            message.obj = new BookProgress(currentBookUri, mediaPlayer.getCurrentPosition() / 1000);
-                        progressHandler.sendMessage(message);
-                    } else if (playingState == PlayingState.PAUSED)
-                        progressHandler.sendEmptyMessage(0);
+                return true;
+            case MediaPlayer.MEDIA_INFO_BUFFERING_START:
+                if (playingState == PlayingState.PLAYING)
+                    stallingSince = now;
+                return true;
+            case MediaPlayer.MEDIA_INFO_BUFFERING_END:
+                if (stallingSince >= 0) {
+                    playbackStats.stall.record(now - stallingSince);
+                    stallingSince = -1;
                 }
-            }
+                return true;
         }
-
+        return false;
     }
 
-    class SeekDelay implements Runnable {
+    @Override
+    public void onBufferingUpdate(MediaPlayer mp, int percent) {
+        if (mp == mediaPlayer)
+            playbackStats.bufferedPercent = percent;
+    }
 
-        int delay;
+    /*
+    adb shell dumpsys activity service edu.temple.audiobookplayer.AudiobookService
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("State: " + playingState + ", book " + currentBookId);
+        playbackStats.dump(writer);
+        writer.println("Queue: " + playbackQueue.size() + " books, at " + playbackQueue.getCurrentIndex()
+                + (queueActive ? ", playing" : ""));
+        writer.println("Stream cache: " + cacheStats.getHits() + " hits, " + cacheStats.getMisses() + " misses");
+        writer.println("Storage: " + storage.getTotalBytes() / 1024 + "KB of " + storage.getBudget() / 1024 + "KB");
+    }
 
-        SeekDelay(int delay) {
-            this.delay = delay;
-        }
+    /*
+    Posted to the main thread, since the seek may open the book again
+     */
+    class SeekDelay implements Runnable {
 
         @Override
         public void run() {
-            try {
-                Thread.sleep(delay);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            mediaPlayer.seekTo(1000 * startPosition);
+            seekCoalescer.seek(1000 * startPosition, true);
             startPosition = 0;
         }
     }
@@ -296,32 +1285,4 @@ public class AudiobookService extends Service implements MediaPlayer.OnPreparedL
     enum PlayingState {
         STOPPED, PLAYING, PAUSED
     }
-
-    public class BookProgress {
-        private int bookId = -1;
-        private Uri bookUri;
-        private int progress;
-
-        public BookProgress(int bookId, int progress) {
-            this.bookId = bookId;
-            this.progress = progress;
-        }
-
-        public BookProgress(Uri bookUri, int progress) {
-            this.bookUri = bookUri;
-            this.progress = progress;
-        }
-
-        public int getBookId() {
-            return bookId;
-        }
-
-        public Uri getBookUri() {
-            return bookUri;
-        }
-
-        public int getProgress() {
-            return progress;
-        }
-    }
 }
\ No newline at end of file
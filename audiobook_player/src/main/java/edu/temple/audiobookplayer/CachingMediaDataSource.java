@@ -0,0 +1,39 @@
+package edu.temple.audiobookplayer;
+
+import android.annotation.TargetApi;
+import android.media.MediaDataSource;
+import android.os.Build;
+
+import java.io.IOException;
+
+/*
+Lets MediaPlayer read a streamed book through a StreamCache.
+MediaPlayer calls readAt() on its own thread, so blocking on the
+network here doesn't hold up the main thread.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class CachingMediaDataSource extends MediaDataSource {
+
+    private final StreamCache cache;
+
+    public CachingMediaDataSource(StreamCache cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        if (size == 0)
+            return 0;
+        return cache.read(position, buffer, offset, size);
+    }
+
+    @Override
+    public long getSize() throws IOException {
+        return cache.length();
+    }
+
+    @Override
+    public void close() {
+        cache.close();
+    }
+}
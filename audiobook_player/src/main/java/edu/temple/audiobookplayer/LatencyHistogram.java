@@ -0,0 +1,101 @@
+package edu.temple.audiobookplayer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+Counts how long something took, in milliseconds, in buckets that get
+wider as times get longer.
+
+Each power of two is split into four buckets, so a time is placed to
+within about 25% whether it was 5ms or 50 seconds. Recording is a few
+atomic increments on arrays made up front, with no locks and no
+allocation, so it is safe to do on the player's callback threads.
+Reading a histogram while it is being recorded to can be off by the
+few times recorded meanwhile, which doesn't matter for telemetry.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 4;
+    private static final int BUCKETS = (64 - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long millis) {
+        if (millis < 0)
+            return;
+        counts.incrementAndGet(bucketOf(millis));
+        count.incrementAndGet();
+        sum.addAndGet(millis);
+
+        long current = max.get();
+        while (millis > current && !max.compareAndSet(current, millis))
+            current = max.get();
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getMean() {
+        long count = this.count.get();
+        return count == 0 ? 0 : sum.get() / count;
+    }
+
+    /*
+    The time that this fraction (0 to 1) of recordings took no longer
+    than, rounded up to the end of its bucket. 0 if nothing was recorded.
+     */
+    public long getPercentile(double fraction) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += counts.get(i);
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    /*
+    One line with the count, mean, common percentiles and maximum
+     */
+    public String summary() {
+        return "count=" + getCount() + " mean=" + getMean() + "ms p50=" + getPercentile(0.5)
+                + "ms p90=" + getPercentile(0.9) + "ms p99=" + getPercentile(0.99) + "ms max=" + getMax() + "ms";
+    }
+
+    static int bucketOf(long millis) {
+        if (millis < SUB_BUCKETS)
+            return (int) millis;
+        int power = 63 - Long.numberOfLeadingZeros(millis);
+        int sub = (int) (millis >>> (power - 2)) & (SUB_BUCKETS - 1);
+        return (power - 1) * SUB_BUCKETS + sub;
+    }
+
+    /*
+    The largest time that falls in a bucket
+     */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int power = bucket / SUB_BUCKETS + 1;
+        int sub = bucket % SUB_BUCKETS;
+        if (power >= 62)
+            return Long.MAX_VALUE;
+        return ((long) (SUB_BUCKETS + sub + 1) << (power - 2)) - 1;
+    }
+}
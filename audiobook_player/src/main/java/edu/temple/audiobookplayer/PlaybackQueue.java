@@ -0,0 +1,192 @@
+package edu.temple.audiobookplayer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+The books lined up to play, and which of them is playing.
+
+A queue is small (a book id and maybe a file path per entry), so saving
+it is one short file written in full each time it changes, next to the
+old one and then renamed over it.
+ */
+public class PlaybackQueue {
+
+    private static final int FILE_VERSION = 1;
+
+    /*
+    A book to play, streamed by id or from a downloaded file
+     */
+    public static final class Item {
+        private final int bookId;
+        private final String path;
+
+        public Item(int bookId, File file) {
+            this.bookId = bookId;
+            this.path = file == null ? null : file.getPath();
+        }
+
+        public int getBookId() {
+            return bookId;
+        }
+
+        /*
+        The downloaded copy to play, or null to stream the book
+         */
+        public File getFile() {
+            return path == null ? null : new File(path);
+        }
+    }
+
+    private final ArrayList<Item> items = new ArrayList<>();
+    // Index of the item playing (or next to play), -1 before the queue starts
+    private int current = -1;
+
+    public synchronized void add(Item item) {
+        items.add(item);
+    }
+
+    /*
+    Moves an item to a new place, keeping track of the one playing
+     */
+    public synchronized void move(int from, int to) {
+        if (from < 0 || from >= items.size() || to < 0 || to >= items.size())
+            throw new IndexOutOfBoundsException("Can't move " + from + " to " + to + " in " + items.size());
+        items.add(to, items.remove(from));
+        if (current == from)
+            current = to;
+        else if (from < current && to >= current)
+            current--;
+        else if (from > current && to <= current)
+            current++;
+    }
+
+    /*
+    Removes an item. Returns true if it was the one playing,
+    in which case the item after it becomes current.
+     */
+    public synchronized boolean remove(int index) {
+        if (index < 0 || index >= items.size())
+            throw new IndexOutOfBoundsException("No item " + index + " in " + items.size());
+        items.remove(index);
+        if (index < current) {
+            current--;
+            return false;
+        }
+        return index == current;
+    }
+
+    public synchronized void clear() {
+        items.clear();
+        current = -1;
+    }
+
+    public synchronized int size() {
+        return items.size();
+    }
+
+    public synchronized int getCurrentIndex() {
+        return current;
+    }
+
+    /*
+    The item playing, or null if the queue hasn't started or has finished
+     */
+    public synchronized Item getCurrent() {
+        return current >= 0 && current < items.size() ? items.get(current) : null;
+    }
+
+    /*
+    The item this many places after the current one, or null
+     */
+    public synchronized Item peek(int ahead) {
+        int index = current + ahead;
+        return index >= 0 && index < items.size() ? items.get(index) : null;
+    }
+
+    /*
+    Makes the next item current and returns it, or null at the end of the queue
+     */
+    public synchronized Item advance() {
+        if (current < items.size())
+            current++;
+        return getCurrent();
+    }
+
+    public synchronized Item jumpTo(int index) {
+        if (index < 0 || index >= items.size())
+            throw new IndexOutOfBoundsException("No item " + index + " in " + items.size());
+        current = index;
+        return items.get(index);
+    }
+
+    public synchronized List<Item> getItems() {
+        return new ArrayList<>(items);
+    }
+
+    public void save(File file) throws IOException {
+        ArrayList<Item> items;
+        int current;
+        synchronized (this) {
+            items = new ArrayList<>(this.items);
+            current = this.current;
+        }
+
+        File directory = file.getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs())
+            throw new IOException("Could not create " + directory);
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(FILE_VERSION);
+            out.writeInt(current);
+            out.writeInt(items.size());
+            for (Item item : items) {
+                out.writeInt(item.bookId);
+                out.writeBoolean(item.path != null);
+                if (item.path != null)
+                    out.writeUTF(item.path);
+            }
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /*
+    Reads a saved queue back in, unless something has been queued since
+    the service started, which is newer than anything on disk
+     */
+    public void load(File file) throws IOException {
+        if (!file.exists())
+            return;
+        ArrayList<Item> loaded = new ArrayList<>();
+        int loadedCurrent;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_VERSION)
+                return;
+            loadedCurrent = in.readInt();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int bookId = in.readInt();
+                String path = in.readBoolean() ? in.readUTF() : null;
+                loaded.add(new Item(bookId, path == null ? null : new File(path)));
+            }
+        }
+
+        synchronized (this) {
+            if (!items.isEmpty())
+                return;
+            items.addAll(loaded);
+            current = Math.min(Math.max(loadedCurrent, -1), items.size());
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package edu.temple.audiobookplayer;
+
+import java.io.PrintWriter;
+
+/*
+How playback has performed since the service started:
+
+prepare     - from asking a player to prepare to it being ready
+first audio - from a play request to audio actually coming out
+seek        - from a seek being sent to the player to it completing
+stall       - how long playback waited whenever it ran out of buffered audio
+ */
+public class PlaybackStats {
+
+    final LatencyHistogram prepare = new LatencyHistogram();
+    final LatencyHistogram firstAudio = new LatencyHistogram();
+    final LatencyHistogram seek = new LatencyHistogram();
+    final LatencyHistogram stall = new LatencyHistogram();
+
+    // How much of the current book the player has buffered, 0 to 100
+    volatile int bufferedPercent;
+
+    public LatencyHistogram getPrepare() {
+        return prepare;
+    }
+
+    public LatencyHistogram getFirstAudio() {
+        return firstAudio;
+    }
+
+    public LatencyHistogram getSeek() {
+        return seek;
+    }
+
+    public LatencyHistogram getStall() {
+        return stall;
+    }
+
+    public int getBufferedPercent() {
+        return bufferedPercent;
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("Playback:");
+        writer.println("  prepare:     " + prepare.summary());
+        writer.println("  first audio: " + firstAudio.summary());
+        writer.println("  seek:        " + seek.summary());
+        writer.println("  stall:       " + stall.summary());
+        writer.println("  buffered:    " + bufferedPercent + "%");
+    }
+}
@@ -0,0 +1,69 @@
+package edu.temple.audiobookplayer;
+
+import android.media.AudioAttributes;
+import android.media.MediaPlayer;
+
+import java.util.ArrayDeque;
+
+/*
+Hands out MediaPlayers and takes them back when they are no longer needed.
+
+Creating a MediaPlayer sets up native resources, so finished players are
+reset and kept for the next book instead of being released. Only a few
+are kept around; anything beyond that is released straight away.
+ */
+class PlayerPool {
+
+    private final int maxIdle;
+    private final MediaPlayer.OnPreparedListener preparedListener;
+    private final MediaPlayer.OnCompletionListener completionListener;
+    private final MediaPlayer.OnSeekCompleteListener seekCompleteListener;
+    private final MediaPlayer.OnInfoListener infoListener;
+    private final MediaPlayer.OnBufferingUpdateListener bufferingListener;
+    private final ArrayDeque<MediaPlayer> idle = new ArrayDeque<>();
+
+    PlayerPool(int maxIdle, MediaPlayer.OnPreparedListener preparedListener,
+               MediaPlayer.OnCompletionListener completionListener,
+               MediaPlayer.OnSeekCompleteListener seekCompleteListener,
+               MediaPlayer.OnInfoListener infoListener,
+               MediaPlayer.OnBufferingUpdateListener bufferingListener) {
+        this.maxIdle = maxIdle;
+        this.preparedListener = preparedListener;
+        this.completionListener = completionListener;
+        this.seekCompleteListener = seekCompleteListener;
+        this.infoListener = infoListener;
+        this.bufferingListener = bufferingListener;
+    }
+
+    MediaPlayer acquire() {
+        MediaPlayer player = idle.poll();
+        if (player != null)
+            return player;
+
+        player = new MediaPlayer();
+        player.setAudioAttributes(new AudioAttributes.Builder().setContentType(AudioAttributes.CONTENT_TYPE_SPEECH).build());
+        player.setOnPreparedListener(preparedListener);
+        player.setOnCompletionListener(completionListener);
+        player.setOnSeekCompleteListener(seekCompleteListener);
+        player.setOnInfoListener(infoListener);
+        player.setOnBufferingUpdateListener(bufferingListener);
+        return player;
+    }
+
+    void recycle(MediaPlayer player) {
+        if (player == null)
+            return;
+        if (idle.size() < maxIdle) {
+            player.reset();
+            idle.push(player);
+        } else {
+            player.release();
+        }
+    }
+
+    void releaseAll() {
+        for (MediaPlayer player : idle)
+            player.release();
+        idle.clear();
+    }
+}
@@ -0,0 +1,201 @@
+package edu.temple.audiobookplayer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+Remembers how far the listener got in every book, even if the process is killed.
+
+Positions are appended to a file as small fixed-size records, which is
+about as cheap as a write can be. Only the newest record for each book
+matters, so once the file holds a lot of older records it is rewritten
+with just one record per book. Each record carries a checksum, so a
+record that was only half written when the process died is ignored.
+
+The service loads the journal in the background as it starts. Anything
+that uses it before then loads it first, or waits for the load already
+under way, so a position is never read from a journal that isn't loaded.
+ */
+public class PositionJournal {
+
+    private static final int RECORD_SIZE = 20;
+    private static final int CHECK = 0x5A17B00C;
+
+    private final File file;
+    private final long minInterval;
+
+    private final HashMap<Integer, Entry> entries = new HashMap<>();
+    private FileChannel channel;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private int recordCount;
+    private boolean loaded;
+
+    public PositionJournal(File file, long minInterval) {
+        this.file = file;
+        this.minInterval = minInterval;
+    }
+
+    /*
+    Reads the journal back in. Only the first call does anything. Stops
+    at the first damaged record, and cuts the file there so new records
+    follow a good one.
+     */
+    public synchronized void load() throws IOException {
+        if (loaded)
+            return;
+        loaded = true;
+        entries.clear();
+        recordCount = 0;
+        long validLength = 0;
+
+        if (file.exists()) {
+            try (FileChannel in = new FileInputStream(file).getChannel()) {
+                ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 256);
+                boolean damaged = false;
+                while (!damaged && in.read(buffer) > 0) {
+                    buffer.flip();
+                    while (buffer.remaining() >= RECORD_SIZE) {
+                        int bookId = buffer.getInt();
+                        int position = buffer.getInt();
+                        long timestamp = buffer.getLong();
+                        if (buffer.getInt() != checksum(bookId, position, timestamp)) {
+                            damaged = true;
+                            break;
+                        }
+                        put(bookId, position, timestamp);
+                        recordCount++;
+                        validLength += RECORD_SIZE;
+                    }
+                    buffer.compact();
+                }
+            }
+        }
+
+        openForAppend(validLength);
+    }
+
+    public synchronized int getPosition(int bookId) {
+        try {
+            load();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Entry entry = entries.get(bookId);
+        return entry == null ? 0 : entry.position;
+    }
+
+    /*
+    Records a position unless this book was written less than
+    minInterval ago. Pausing, stopping and seeking pass force so
+    those positions are never skipped.
+     */
+    public synchronized void record(int bookId, int position, boolean force) throws IOException {
+        load();
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(bookId);
+        if (entry != null) {
+            if (entry.position == position)
+                return;
+            if (!force && now - entry.timestamp < minInterval)
+                return;
+        }
+        if (channel == null)
+            openForAppend(file.length());
+
+        record.clear();
+        record.putInt(bookId).putInt(position).putLong(now).putInt(checksum(bookId, position, now));
+        record.flip();
+        while (record.hasRemaining())
+            channel.write(record);
+
+        put(bookId, position, now);
+        recordCount++;
+    }
+
+    /*
+    True once the journal is mostly records that have since been replaced
+     */
+    public synchronized boolean needsCompaction() {
+        return recordCount > 4 * entries.size() + 64;
+    }
+
+    /*
+    Rewrites the journal with one record per book. The new file is
+    written next to the old one and swapped in, so a crash part way
+    through leaves the old journal as it was.
+     */
+    public synchronized void compact() throws IOException {
+        // Otherwise every book not recorded since starting would be lost
+        load();
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileChannel out = new FileOutputStream(temp).getChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * Math.max(1, entries.size()));
+            for (Map.Entry<Integer, Entry> e : entries.entrySet()) {
+                int bookId = e.getKey();
+                Entry entry = e.getValue();
+                buffer.putInt(bookId).putInt(entry.position).putLong(entry.timestamp)
+                        .putInt(checksum(bookId, entry.position, entry.timestamp));
+            }
+            buffer.flip();
+            while (buffer.hasRemaining())
+                out.write(buffer);
+            out.force(false);
+        }
+
+        close();
+        if (!temp.renameTo(file))
+            throw new IOException("Could not replace " + file);
+        recordCount = entries.size();
+        openForAppend(file.length());
+    }
+
+    public synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            channel = null;
+        }
+    }
+
+    private void openForAppend(long length) throws IOException {
+        close();
+        File directory = file.getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs())
+            throw new IOException("Could not create " + directory);
+        channel = new FileOutputStream(file, true).getChannel();
+        if (channel.size() > length)
+            channel.truncate(length);
+    }
+
+    private void put(int bookId, int position, long timestamp) {
+        Entry entry = entries.get(bookId);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(bookId, entry);
+        }
+        entry.position = position;
+        entry.timestamp = timestamp;
+    }
+
+    private static int checksum(int bookId, int position, long timestamp) {
+        int hash = CHECK;
+        hash = 31 * hash + bookId;
+        hash = 31 * hash + position;
+        hash = 31 * hash + (int) (timestamp ^ (timestamp >>> 32));
+        return hash;
+    }
+
+    private static class Entry {
+        int position;
+        long timestamp;
+    }
+}
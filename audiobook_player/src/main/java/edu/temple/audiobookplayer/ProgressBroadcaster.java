@@ -0,0 +1,161 @@
+package edu.temple.audiobookplayer;
+
+import android.net.Uri;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/*
+Hands playback progress to any number of listeners, each at its own rate.
+
+Listeners are kept in a CopyOnWriteArrayList, so adding or removing one
+never blocks a tick and a tick never sees a half changed list. Each tick
+builds one Snapshot and the same object goes to every listener that is
+due, rather than one message per listener.
+
+A listener asking for a slower rate than the ticker gets every nth tick,
+so its rate is rounded to a whole number of ticks.
+ */
+public class ProgressBroadcaster {
+
+    public interface Listener {
+        /*
+        Called on the service's scheduler thread. Anything that touches
+        views has to be passed on to the main thread.
+         */
+        void onProgress(Snapshot snapshot);
+    }
+
+    /*
+    Where playback was at one moment. Never changes once made, so it can
+    be shared between listeners and kept for as long as needed.
+     */
+    public static final class Snapshot {
+        public final int bookId;
+        public final Uri bookUri;
+        public final int position;
+        public final int duration;
+        public final long time;
+
+        /*
+        bookId is -1 when playing a file, in which case bookUri is its Uri.
+        position and duration are in seconds, time is from elapsedRealtime().
+         */
+        public Snapshot(int bookId, Uri bookUri, int position, int duration, long time) {
+            this.bookId = bookId;
+            this.bookUri = bookUri;
+            this.position = position;
+            this.duration = duration;
+            this.time = time;
+        }
+    }
+
+    private static class Subscription {
+        final Listener listener;
+        final long interval;
+        volatile long lastDelivered = Long.MIN_VALUE;
+
+        Subscription(Listener listener, long interval) {
+            this.listener = listener;
+            this.interval = interval;
+        }
+    }
+
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    /*
+    Adds a listener, or changes its rate if it is already added.
+    interval is the time in milliseconds it would like between updates.
+     */
+    public void add(Listener listener, long interval) {
+        if (listener == null || interval <= 0)
+            throw new IllegalArgumentException("A listener and a positive interval are needed");
+        remove(listener);
+        subscriptions.add(new Subscription(listener, interval));
+    }
+
+    public void remove(Listener listener) {
+        for (Subscription subscription : subscriptions)
+            if (subscription.listener == listener)
+                subscriptions.remove(subscription);
+    }
+
+    public void clear() {
+        subscriptions.clear();
+    }
+
+    public boolean hasListeners() {
+        return !subscriptions.isEmpty();
+    }
+
+    public int getListenerCount() {
+        return subscriptions.size();
+    }
+
+    /*
+    The shortest interval any listener asked for, which is how often the
+    ticker has to run. 0 with no listeners.
+     */
+    public long getFastestInterval() {
+        long fastest = 0;
+        for (Subscription subscription : subscriptions)
+            if (fastest == 0 || subscription.interval < fastest)
+                fastest = subscription.interval;
+        return fastest;
+    }
+
+    /*
+    True if some listener wants an update at this time, so the caller
+    can skip building a snapshot nobody would get
+     */
+    public boolean isAnyoneDue(long now) {
+        for (Subscription subscription : subscriptions)
+            if (isDue(subscription, now))
+                return true;
+        return false;
+    }
+
+    /*
+    Everything a tick does once it knows where playback is. The snapshot
+    is only built when the first listener that is due turns up, so a tick
+    nobody is due for allocates nothing. Returns how many listeners got it.
+     */
+    public int publish(int bookId, Uri bookUri, int position, int duration, long now) {
+        Snapshot snapshot = null;
+        int delivered = 0;
+        for (Subscription subscription : subscriptions) {
+            if (!isDue(subscription, now))
+                continue;
+            if (snapshot == null)
+                snapshot = new Snapshot(bookId, bookUri, position, duration, now);
+            subscription.lastDelivered = now;
+            subscription.listener.onProgress(snapshot);
+            delivered++;
+        }
+        return delivered;
+    }
+
+    /*
+    Gives the snapshot to every listener whose interval has passed.
+    Returns how many got it.
+     */
+    public int publish(Snapshot snapshot) {
+        int delivered = 0;
+        for (Subscription subscription : subscriptions) {
+            if (!isDue(subscription, snapshot.time))
+                continue;
+            subscription.lastDelivered = snapshot.time;
+            subscription.listener.onProgress(snapshot);
+            delivered++;
+        }
+        return delivered;
+    }
+
+    /*
+    A quarter of the interval of slack, so ticks that run slightly early
+    still count and a listener at the ticker's own rate gets every tick
+     */
+    private static boolean isDue(Subscription subscription, long now) {
+        long last = subscription.lastDelivered;
+        return last == Long.MIN_VALUE || now - last >= subscription.interval - subscription.interval / 4;
+    }
+}
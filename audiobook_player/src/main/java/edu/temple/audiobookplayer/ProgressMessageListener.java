@@ -0,0 +1,30 @@
+package edu.temple.audiobookplayer;
+
+/*
+Passes progress on as a message, the way the handler given to
+setProgressHandler() gets it: the book id in arg1, the position in
+seconds in arg2 and the book's Uri (when playing a file) in obj.
+
+The message itself is sent by a Sender, so everything up to the handler
+can run without Android. The service's Sender uses Message.obtain(),
+which takes messages from a pool, so a tick allocates nothing here.
+ */
+public class ProgressMessageListener implements ProgressBroadcaster.Listener {
+
+    public interface Sender {
+        void send(int what, int arg1, int arg2, Object obj);
+    }
+
+    private final int what;
+    private final Sender sender;
+
+    public ProgressMessageListener(int what, Sender sender) {
+        this.what = what;
+        this.sender = sender;
+    }
+
+    @Override
+    public void onProgress(ProgressBroadcaster.Snapshot snapshot) {
+        sender.send(what, snapshot.bookId, snapshot.position, snapshot.bookUri);
+    }
+}
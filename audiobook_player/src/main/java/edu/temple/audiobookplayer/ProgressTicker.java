@@ -0,0 +1,55 @@
+package edu.temple.audiobookplayer;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+Calls a listener at a fixed rate on a shared scheduler thread.
+
+Changing the rate replaces the one scheduled task rather than starting
+another, so pausing and resuming quickly can never leave more than one
+of these running. A rate of 0 cancels the task so nothing wakes up.
+ */
+public class ProgressTicker implements Runnable {
+
+    public interface Listener {
+        void onTick();
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final Listener listener;
+
+    private ScheduledFuture<?> task;
+    private long interval;
+
+    public ProgressTicker(ScheduledExecutorService scheduler, Listener listener) {
+        this.scheduler = scheduler;
+        this.listener = listener;
+    }
+
+    /*
+    Interval in milliseconds between ticks, or 0 to stop ticking
+     */
+    public synchronized void setInterval(long interval) {
+        if (interval == this.interval)
+            return;
+        this.interval = interval;
+
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+        if (interval > 0 && !scheduler.isShutdown())
+            task = scheduler.scheduleAtFixedRate(this, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized long getInterval() {
+        return interval;
+    }
+
+    @Override
+    public void run() {
+        listener.onTick();
+    }
+}
@@ -0,0 +1,123 @@
+package edu.temple.audiobookplayer;
+
+/*
+Makes sure only one seek is running on the player at a time.
+
+A seek asked for while another is still running isn't sent straight
+away. It is remembered, replacing any earlier one that was waiting, and
+sent once the running seek completes. So however fast seeks come in,
+the player only ever works on the latest position after the current one.
+
+Preview seeks are the quick, approximate kind used while the user is
+dragging. A precise seek is the one that counts, so a waiting precise
+seek is never downgraded by a preview that arrives after it.
+ */
+public class SeekCoalescer {
+
+    /*
+    Starts a seek on the player, returning false if it couldn't be started
+    (in which case no completion will follow)
+     */
+    public interface Seeker {
+        boolean seek(int position, boolean precise);
+    }
+
+    private final Seeker seeker;
+
+    private boolean seeking;
+    private long seekStartedAt;
+    private boolean pending, pendingPrecise;
+    private int pendingPosition;
+
+    private int seekCount, collapsedCount;
+    private long lastLatency = -1, totalLatency, maxLatency;
+
+    public SeekCoalescer(Seeker seeker) {
+        this.seeker = seeker;
+    }
+
+    /*
+    Position in milliseconds
+     */
+    public synchronized void seek(int position, boolean precise) {
+        if (seeking) {
+            if (pending)
+                collapsedCount++;
+            // A preview after a precise seek would undo it, so the precise one wins
+            if (!pending || precise || !pendingPrecise) {
+                pendingPosition = position;
+                pendingPrecise = precise;
+            }
+            pending = true;
+            return;
+        }
+        start(position, precise);
+    }
+
+    /*
+    Called when the player finishes a seek
+     */
+    public synchronized void onSeekComplete() {
+        if (!seeking)
+            return;
+        seeking = false;
+
+        long latency = now() - seekStartedAt;
+        lastLatency = latency;
+        totalLatency += latency;
+        maxLatency = Math.max(maxLatency, latency);
+        seekCount++;
+
+        if (pending) {
+            pending = false;
+            start(pendingPosition, pendingPrecise);
+        }
+    }
+
+    /*
+    Forgets everything in progress, for when the player is reset or replaced
+     */
+    public synchronized void reset() {
+        seeking = false;
+        pending = false;
+    }
+
+    public synchronized boolean isSeeking() {
+        return seeking;
+    }
+
+    /*
+    Milliseconds the last seek took, or -1 if there hasn't been one
+     */
+    public synchronized long getLastLatency() {
+        return lastLatency;
+    }
+
+    public synchronized long getAverageLatency() {
+        return seekCount == 0 ? -1 : totalLatency / seekCount;
+    }
+
+    public synchronized long getMaxLatency() {
+        return maxLatency;
+    }
+
+    public synchronized int getSeekCount() {
+        return seekCount;
+    }
+
+    /*
+    Seeks that were replaced by a later one before they were ever sent
+     */
+    public synchronized int getCollapsedCount() {
+        return collapsedCount;
+    }
+
+    protected long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private void start(int position, boolean precise) {
+        seekStartedAt = now();
+        seeking = seeker.seek(position, precise);
+    }
+}
@@ -0,0 +1,391 @@
+package edu.temple.audiobookplayer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+Where every moment of a downloaded MP3 starts in the file.
+
+MediaPlayer finds a time in a variable bitrate MP3 by guessing from the
+average bitrate, or at best from a table of 100 points in the file's
+header. On a book many hours long either guess can be minutes out, and
+the player then has to read its way to the right place.
+
+Every frame of an MP3 holds the same number of samples, so a time is
+just a frame number. The file is read through once, frame header by
+frame header, and the byte offset of every FRAME_STEP-th frame is kept
+in a table. Finding a time is then a lookup in the table and a walk over
+at most FRAME_STEP - 1 frame headers from there, which is exact to the
+frame (about 26ms) however long the book is.
+
+The table is saved next to the book as <book>.seek, along with the
+book's length and modification time so a changed book isn't read with
+an old table.
+ */
+public class SeekIndex {
+
+    public static final String SUFFIX = ".seek";
+
+    // About half a second of audio between entries
+    static final int FRAME_STEP = 20;
+
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 40;
+    private static final int MAX_FRAME_SIZE = 2048;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int[][] BITRATES = {
+            // MPEG 1, layers I, II, III
+            {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},
+            // MPEG 2 and 2.5, layer I, then layers II and III
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}
+    };
+    private static final int[] SAMPLE_RATES = {44100, 48000, 32000};
+
+    private final long fileLength, lastModified;
+    private final int sampleRate, samplesPerFrame, frameCount;
+    private final int[] offsets;
+
+    private SeekIndex(long fileLength, long lastModified, int sampleRate, int samplesPerFrame, int frameCount, int[] offsets) {
+        this.fileLength = fileLength;
+        this.lastModified = lastModified;
+        this.sampleRate = sampleRate;
+        this.samplesPerFrame = samplesPerFrame;
+        this.frameCount = frameCount;
+        this.offsets = offsets;
+    }
+
+    public static File fileFor(File audio) {
+        return new File(audio.getPath() + SUFFIX);
+    }
+
+    /*
+    The saved index for a book, or null if there isn't one or the book
+    has changed since it was made
+     */
+    public static SeekIndex load(File audio) throws IOException {
+        File file = fileFor(audio);
+        if (!file.exists())
+            return null;
+        try (FileChannel in = new FileInputStream(file).getChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) in.size());
+            while (buffer.hasRemaining() && in.read(buffer) > 0);
+            buffer.flip();
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != VERSION)
+                return null;
+            long fileLength = buffer.getLong();
+            long lastModified = buffer.getLong();
+            if (fileLength != audio.length() || lastModified != audio.lastModified())
+                return null;
+            int sampleRate = buffer.getInt();
+            int samplesPerFrame = buffer.getInt();
+            int frameCount = buffer.getInt();
+            int count = buffer.getInt();
+            if (buffer.getInt() != FRAME_STEP || buffer.remaining() != count * 4)
+                return null;
+            int[] offsets = new int[count];
+            buffer.asIntBuffer().get(offsets);
+            return new SeekIndex(fileLength, lastModified, sampleRate, samplesPerFrame, frameCount, offsets);
+        }
+    }
+
+    /*
+    Reads the whole book, so this runs on a background thread, once per
+    book. Returns null if the book isn't an MP3, or is too big for the
+    table's offsets. Anything between frames, like an ID3v1 tag at the
+    end, is skipped over.
+     */
+    public static SeekIndex build(File audio) throws IOException {
+        long lastModified = audio.lastModified();
+        try (FileChannel channel = new FileInputStream(audio).getChannel()) {
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE)
+                return null;
+            Reader reader = new Reader(channel);
+
+            long position = skipId3(reader);
+            position = sync(reader, position, 0);
+            if (position < 0)
+                return null;
+            int first = reader.header(position);
+            int sampleRate = sampleRate(first);
+            int samplesPerFrame = samplesPerFrame(first);
+            // A Xing, Info or VBRI frame at the start describes the file and holds no audio
+            if (isInfoFrame(reader, position, first))
+                position += frameSize(first);
+
+            int[] offsets = new int[64];
+            int count = 0, frames = 0;
+            while (true) {
+                position = sync(reader, position, first);
+                if (position < 0)
+                    break;
+                int header = reader.header(position);
+                if (frames % FRAME_STEP == 0) {
+                    if (count == offsets.length) {
+                        int[] grown = new int[count * 2];
+                        System.arraycopy(offsets, 0, grown, 0, count);
+                        offsets = grown;
+                    }
+                    offsets[count++] = (int) position;
+                }
+                frames++;
+                position += frameSize(header);
+            }
+            if (frames == 0)
+                return null;
+
+            int[] trimmed = new int[count];
+            System.arraycopy(offsets, 0, trimmed, 0, count);
+            return new SeekIndex(length, lastModified, sampleRate, samplesPerFrame, frames, trimmed);
+        }
+    }
+
+    /*
+    Writes the index next to the book, replacing any older one
+     */
+    public void save(File audio) throws IOException {
+        File file = fileFor(audio);
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(VERSION);
+            out.writeLong(fileLength);
+            out.writeLong(lastModified);
+            out.writeInt(sampleRate);
+            out.writeInt(samplesPerFrame);
+            out.writeInt(frameCount);
+            out.writeInt(offsets.length);
+            out.writeInt(FRAME_STEP);
+            for (int offset : offsets)
+                out.writeInt(offset);
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /*
+    Builds and saves the index for a book unless it already has a good one.
+    Returns the index, or null if the book can't be indexed.
+     */
+    public static SeekIndex ensure(File audio) throws IOException {
+        SeekIndex index = load(audio);
+        if (index == null) {
+            index = build(audio);
+            if (index != null)
+                index.save(audio);
+        }
+        return index;
+    }
+
+    /*
+    Length of the book in milliseconds
+     */
+    public int getDuration() {
+        return frameTime(frameCount);
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /*
+    The frame that is playing at `time` milliseconds: where it starts in
+    the book and the time it starts at, which is at most one frame earlier
+     */
+    public Target find(File audio, int time) throws IOException {
+        long frame = Math.max(0, (long) time * sampleRate / (1000L * samplesPerFrame));
+        frame = Math.min(frame, frameCount - 1);
+        int entry = (int) (frame / FRAME_STEP);
+        int remaining = (int) (frame - (long) entry * FRAME_STEP);
+        long offset = offsets[entry];
+
+        if (remaining > 0) {
+            // Every frame before the next entry is in one read
+            byte[] frames = new byte[(int) Math.min(remaining * MAX_FRAME_SIZE + 4, fileLength - offset)];
+            try (RandomAccessFile in = new RandomAccessFile(audio, "r")) {
+                in.seek(offset);
+                in.readFully(frames);
+            }
+            int position = 0;
+            for (int i = 0; i < remaining; i++) {
+                if (position + 4 > frames.length)
+                    throw new IOException("Book has changed since it was indexed");
+                int header = (frames[position] & 0xFF) << 24 | (frames[position + 1] & 0xFF) << 16
+                        | (frames[position + 2] & 0xFF) << 8 | (frames[position + 3] & 0xFF);
+                if (!isValid(header))
+                    throw new IOException("Book has changed since it was indexed");
+                position += frameSize(header);
+            }
+            offset += position;
+        }
+        return new Target(offset, frameTime(frame));
+    }
+
+    private int frameTime(long frame) {
+        return (int) (frame * samplesPerFrame * 1000 / sampleRate);
+    }
+
+    /*
+    A place to start playing from
+     */
+    public static class Target {
+        private final long offset;
+        private final int time;
+
+        Target(long offset, int time) {
+            this.offset = offset;
+            this.time = time;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        // Milliseconds from the start of the book
+        public int getTime() {
+            return time;
+        }
+    }
+
+    /*
+    Where the audio starts, after any ID3v2 tag
+     */
+    private static long skipId3(Reader reader) throws IOException {
+        if (reader.byteAt(0) != 'I' || reader.byteAt(1) != 'D' || reader.byteAt(2) != '3')
+            return 0;
+        int flags = reader.byteAt(5);
+        long size = 0;
+        for (int i = 6; i < 10; i++)
+            size = size << 7 | (reader.byteAt(i) & 0x7F);
+        // The size doesn't count the header, or the footer if there is one
+        return 10 + size + ((flags & 0x10) != 0 ? 10 : 0);
+    }
+
+    /*
+    The first frame header at or after position, or -1 at the end of the
+    book. A header that doesn't match the first frame's version and layer
+    is taken to be audio data that happens to look like one. When there
+    is no first frame yet, a header only counts if another one follows it.
+     */
+    private static long sync(Reader reader, long position, int first) throws IOException {
+        while (reader.has(position, 4)) {
+            int header = reader.header(position);
+            if (isValid(header)) {
+                if (first != 0 && (header & 0xFFFE0C00) == (first & 0xFFFE0C00))
+                    return position;
+                if (first == 0) {
+                    long next = position + frameSize(header);
+                    if (reader.has(next, 4) && isValid(reader.header(next))
+                            && (reader.header(next) & 0xFFFE0C00) == (header & 0xFFFE0C00))
+                        return position;
+                }
+            }
+            position++;
+        }
+        return -1;
+    }
+
+    private static boolean isInfoFrame(Reader reader, long position, int header) throws IOException {
+        boolean mpeg1 = version(header) == 3;
+        boolean mono = (header & 0xC0) == 0xC0;
+        int sideInfo = mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17);
+        // Two bytes of CRC come first when the protection bit is clear
+        if ((header & 0x10000) == 0)
+            sideInfo += 2;
+        return tagAt(reader, position + 4 + sideInfo, "Xing") || tagAt(reader, position + 4 + sideInfo, "Info")
+                || tagAt(reader, position + 36, "VBRI");
+    }
+
+    private static boolean tagAt(Reader reader, long position, String tag) throws IOException {
+        for (int i = 0; i < tag.length(); i++)
+            if (reader.byteAt(position + i) != tag.charAt(i))
+                return false;
+        return true;
+    }
+
+    // MPEG version: 0 for 2.5, 2 for 2, 3 for 1
+    private static int version(int header) {
+        return header >>> 19 & 3;
+    }
+
+    // Layer: 1 for III, 2 for II, 3 for I
+    private static int layer(int header) {
+        return header >>> 17 & 3;
+    }
+
+    static boolean isValid(int header) {
+        return (header & 0xFFE00000) == 0xFFE00000 && version(header) != 1 && layer(header) != 0
+                && (header >>> 12 & 0xF) != 0 && (header >>> 12 & 0xF) != 0xF && (header >>> 10 & 3) != 3;
+    }
+
+    static int sampleRate(int header) {
+        int rate = SAMPLE_RATES[header >>> 10 & 3];
+        int version = version(header);
+        return version == 3 ? rate : version == 2 ? rate / 2 : rate / 4;
+    }
+
+    static int samplesPerFrame(int header) {
+        int layer = layer(header);
+        if (layer == 3)
+            return 384;
+        return layer == 1 && version(header) != 3 ? 576 : 1152;
+    }
+
+    static int frameSize(int header) {
+        int layer = layer(header);
+        boolean mpeg1 = version(header) == 3;
+        int table = mpeg1 ? 3 - layer : layer == 3 ? 3 : 4;
+        int bitrate = BITRATES[table][header >>> 12 & 0xF] * 1000;
+        int padding = header >>> 9 & 1;
+        if (layer == 3)
+            return (12 * bitrate / sampleRate(header) + padding) * 4;
+        return samplesPerFrame(header) / 8 * bitrate / sampleRate(header) + padding;
+    }
+
+    /*
+    Reads the book through a buffer, so looking at each frame header
+    doesn't cost a read of its own
+     */
+    private static class Reader {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private long start = -1;
+
+        Reader(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        boolean has(long position, int count) throws IOException {
+            return byteAt(position + count - 1) >= 0;
+        }
+
+        // -1 past the end
+        int byteAt(long position) throws IOException {
+            if (start < 0 || position < start || position >= start + buffer.limit()) {
+                buffer.clear();
+                while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0);
+                buffer.flip();
+                start = position;
+            }
+            int index = (int) (position - start);
+            return index < buffer.limit() ? buffer.get(index) & 0xFF : -1;
+        }
+
+        // The four bytes at position, which has() should have checked are there
+        int header(long position) throws IOException {
+            return byteAt(position) << 24 | byteAt(position + 1) << 16 | byteAt(position + 2) << 8 | byteAt(position + 3);
+        }
+    }
+}
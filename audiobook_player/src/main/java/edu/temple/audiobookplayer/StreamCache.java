@@ -0,0 +1,333 @@
+package edu.temple.audiobookplayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Keeps every byte of a streamed book that the player has read, so that
+replaying, seeking backwards or resuming after a stop reads from disk
+instead of downloading the same audio again.
+
+The book is cached in a file the size of the whole book, filled in one
+block at a time as the player asks for it. A second small file records
+which blocks are already there, so the cache survives the service (or
+the whole app) being restarted.
+ */
+public class StreamCache {
+
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    static final String DATA_SUFFIX = ".cache";
+    static final String BLOCKS_SUFFIX = ".blocks";
+    private static final int BLOCKS_HEADER_SIZE = 8;
+
+    private final int bookId;
+    private final File dataFile, blocksFile;
+    private final String url;
+    private final Stats stats;
+
+    private RandomAccessFile data, blocks;
+    private FileChannel dataChannel;
+    private byte[] present;
+    private long length = -1;
+    private boolean rangesSupported = true;
+    // Read without the lock, so the service can ask while a block is downloading
+    private volatile long cachedBytes;
+
+    // The network stream we are currently reading from, and where it is up to
+    private volatile HttpURLConnection connection;
+    private InputStream stream;
+    private long streamPosition;
+    private volatile boolean closed;
+
+    private final byte[] blockBuffer = new byte[BLOCK_SIZE];
+
+    public StreamCache(File directory, int bookId, String url, Stats stats) {
+        this.bookId = bookId;
+        this.dataFile = new File(directory, bookId + DATA_SUFFIX);
+        this.blocksFile = new File(directory, bookId + BLOCKS_SUFFIX);
+        this.url = url;
+        this.stats = stats;
+    }
+
+    public int getBookId() {
+        return bookId;
+    }
+
+    /*
+    How many bytes of the book are on disk, as of the last time it was
+    opened or had a block added. 0 before it is opened.
+     */
+    public long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    public synchronized long length() throws IOException {
+        open();
+        return length;
+    }
+
+    /*
+    Reads up to `size` bytes at `position`, but never past the end of one
+    block. Returns -1 at the end of the book.
+     */
+    public synchronized int read(long position, byte[] buffer, int offset, int size) throws IOException {
+        open();
+        if (position >= length)
+            return -1;
+
+        int block = (int) (position / BLOCK_SIZE);
+        if (isPresent(block)) {
+            stats.hits.incrementAndGet();
+        } else {
+            stats.misses.incrementAndGet();
+            fetchBlock(block);
+        }
+
+        long blockEnd = Math.min((long) (block + 1) * BLOCK_SIZE, length);
+        int count = (int) Math.min(size, blockEnd - position);
+        ByteBuffer target = ByteBuffer.wrap(buffer, offset, count);
+        while (target.hasRemaining()) {
+            if (dataChannel.read(target, position + target.position() - offset) < 0)
+                throw new IOException("Cache file is shorter than the book");
+        }
+        stats.bytesFromCache.addAndGet(count);
+        return count;
+    }
+
+    /*
+    Makes sure the first `bytes` of the book are on disk, so playback can
+    start (and carry on for a while) without waiting for the network.
+    The lock is only held for one block at a time, so the player can read
+    in between. Returns the number of bytes that had to be downloaded.
+     */
+    public long prefetch(long bytes) throws IOException {
+        long downloaded = 0;
+        for (int block = 0; ; block++) {
+            synchronized (this) {
+                open();
+                long start = (long) block * BLOCK_SIZE;
+                if (start >= Math.min(bytes, length))
+                    return downloaded;
+                if (!isPresent(block)) {
+                    fetchBlock(block);
+                    downloaded += Math.min(BLOCK_SIZE, length - start);
+                }
+            }
+        }
+    }
+
+    public void close() {
+        closed = true;
+        HttpURLConnection open = connection;
+        if (open != null)
+            open.disconnect();
+
+        synchronized (this) {
+            closeStream();
+            try {
+                if (data != null)
+                    data.close();
+                if (blocks != null)
+                    blocks.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            data = null;
+            blocks = null;
+        }
+    }
+
+    private void open() throws IOException {
+        if (closed)
+            throw new IOException("Cache is closed");
+        if (data != null)
+            return;
+
+        File directory = dataFile.getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs())
+            throw new IOException("Could not create " + directory);
+
+        data = new RandomAccessFile(dataFile, "rw");
+        dataChannel = data.getChannel();
+        blocks = new RandomAccessFile(blocksFile, "rw");
+
+        if (blocks.length() >= BLOCKS_HEADER_SIZE && data.length() == readLength()) {
+            length = blocks.readLong();
+            present = new byte[blockCount(length) / 8 + 1];
+            blocks.readFully(present, 0, (int) Math.min(present.length, blocks.length() - BLOCKS_HEADER_SIZE));
+            cachedBytes = countBytes(present, length);
+        } else {
+            // First time we see this book, the first response tells us how long it is
+            openStream(0);
+            present = new byte[blockCount(length) / 8 + 1];
+            data.setLength(length);
+            blocks.setLength(0);
+            blocks.writeLong(length);
+            blocks.write(present);
+        }
+    }
+
+    private long readLength() throws IOException {
+        blocks.seek(0);
+        long recorded = blocks.readLong();
+        blocks.seek(0);
+        return recorded;
+    }
+
+    private void fetchBlock(int block) throws IOException {
+        long start = (long) block * BLOCK_SIZE;
+        int blockLength = (int) Math.min(BLOCK_SIZE, length - start);
+
+        if (stream == null || streamPosition != start) {
+            if (rangesSupported || stream == null || streamPosition > start)
+                openStream(start);
+            // Without range support the only way forward is to read and throw away
+            while (streamPosition < start) {
+                long skipped = stream.skip(start - streamPosition);
+                if (skipped <= 0)
+                    throw new IOException("Stream ended early");
+                streamPosition += skipped;
+            }
+        }
+
+        int filled = 0;
+        while (filled < blockLength) {
+            int read = stream.read(blockBuffer, filled, blockLength - filled);
+            if (read < 0)
+                throw new IOException("Stream ended early");
+            filled += read;
+        }
+        streamPosition += filled;
+        stats.bytesFromNetwork.addAndGet(filled);
+
+        // Data goes to disk before the block is marked, so a crash never marks missing data
+        ByteBuffer source = ByteBuffer.wrap(blockBuffer, 0, filled);
+        while (source.hasRemaining())
+            dataChannel.write(source, start + source.position());
+        markPresent(block);
+    }
+
+    private void openStream(long from) throws IOException {
+        closeStream();
+        HttpURLConnection opened = (HttpURLConnection) new URL(url).openConnection();
+        opened.setRequestProperty("Range", "bytes=" + from + "-");
+        connection = opened;
+        if (closed) {
+            opened.disconnect();
+            throw new IOException("Cache is closed");
+        }
+
+        int code = opened.getResponseCode();
+        if (code == HttpURLConnection.HTTP_PARTIAL) {
+            // Content-Range: bytes <from>-<to>/<length>
+            String range = opened.getHeaderField("Content-Range");
+            long total = range == null ? -1 : Long.parseLong(range.substring(range.lastIndexOf('/') + 1).trim());
+            if (length < 0)
+                length = total;
+            streamPosition = from;
+        } else if (code == HttpURLConnection.HTTP_OK) {
+            rangesSupported = false;
+            if (length < 0)
+                length = Long.parseLong(opened.getHeaderField("Content-Length"));
+            streamPosition = 0;
+        } else {
+            opened.disconnect();
+            connection = null;
+            throw new IOException("Server returned " + code);
+        }
+        if (length < 0)
+            throw new IOException("Server did not report a length");
+        stream = opened.getInputStream();
+    }
+
+    private void closeStream() {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            stream = null;
+        }
+        if (connection != null) {
+            connection.disconnect();
+            connection = null;
+        }
+    }
+
+    private boolean isPresent(int block) {
+        return (present[block >> 3] & (1 << (block & 7))) != 0;
+    }
+
+    private void markPresent(int block) throws IOException {
+        present[block >> 3] |= (byte) (1 << (block & 7));
+        cachedBytes += Math.min(BLOCK_SIZE, length - (long) block * BLOCK_SIZE);
+        blocks.seek(BLOCKS_HEADER_SIZE + (block >> 3));
+        blocks.write(present[block >> 3]);
+    }
+
+    /*
+    How many bytes of a book are cached, from its blocks file alone
+     */
+    static long cachedBytes(File blocksFile) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(blocksFile, "r")) {
+            if (in.length() < BLOCKS_HEADER_SIZE)
+                return 0;
+            long length = in.readLong();
+            byte[] present = new byte[(int) Math.min(blockCount(length) / 8 + 1, in.length() - BLOCKS_HEADER_SIZE)];
+            in.readFully(present);
+            return countBytes(present, length);
+        }
+    }
+
+    private static long countBytes(byte[] present, long length) {
+        int count = 0;
+        for (byte bits : present)
+            count += Integer.bitCount(bits & 0xFF);
+        // Every block is full except perhaps the last one
+        int last = blockCount(length) - 1;
+        long bytes = (long) count * BLOCK_SIZE;
+        if (last >= 0 && last / 8 < present.length && (present[last >> 3] & (1 << (last & 7))) != 0)
+            bytes -= (long) (last + 1) * BLOCK_SIZE - length;
+        return bytes;
+    }
+
+    private static int blockCount(long length) {
+        return (int) ((length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    }
+
+    /*
+    Hit and miss counts for every cache the service has used.
+    A hit is a read served entirely from disk, a miss needed the network.
+     */
+    public static class Stats {
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong bytesFromCache = new AtomicLong();
+        final AtomicLong bytesFromNetwork = new AtomicLong();
+
+        public long getHits() {
+            return hits.get();
+        }
+
+        public long getMisses() {
+            return misses.get();
+        }
+
+        public long getBytesRead() {
+            return bytesFromCache.get();
+        }
+
+        public long getBytesDownloaded() {
+            return bytesFromNetwork.get();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package edu.temple.audiobookplayer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AudioStorageTest {
+
+    private static final int KB = 1024;
+
+    private File root, indexFile, downloads, caches;
+
+    @Before
+    public void setUp() throws Exception {
+        root = File.createTempFile("audio_storage", "");
+        root.delete();
+        indexFile = new File(root, "audio_storage.index");
+        downloads = new File(root, AudioStorage.DOWNLOAD_DIRECTORY);
+        caches = new File(root, AudioStorage.CACHE_DIRECTORY);
+        downloads.mkdirs();
+        caches.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        delete(root);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null)
+            for (File child : files)
+                delete(child);
+        file.delete();
+    }
+
+    private AudioStorage storage(long budget, AudioStorage.Policy policy) {
+        return new AudioStorage(indexFile, downloads, caches, budget, policy);
+    }
+
+    private File download(AudioStorage storage, int bookId, int size, long played) throws IOException {
+        File file = new File(downloads, bookId + AudioStorage.DOWNLOAD_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[size]);
+        }
+        storage.recordDownload(bookId, size);
+        storage.played(bookId, played);
+        return file;
+    }
+
+    private File cache(AudioStorage storage, int bookId, int size, long played) throws IOException {
+        File file = new File(caches, bookId + StreamCache.DATA_SUFFIX);
+        file.createNewFile();
+        new File(caches, bookId + StreamCache.BLOCKS_SUFFIX).createNewFile();
+        storage.recordCache(bookId, size);
+        storage.played(bookId, played);
+        return file;
+    }
+
+    private static List<Integer> evictedBooks(List<AudioStorage.Entry> evicted) {
+        ArrayList<Integer> ids = new ArrayList<>();
+        for (AudioStorage.Entry entry : evicted)
+            ids.add(entry.getBookId());
+        return ids;
+    }
+
+    @Test
+    public void evictsLeastRecentlyPlayedUntilUnderBudget() throws IOException {
+        AudioStorage storage = storage(250 * KB, AudioStorage.Policy.LEAST_RECENTLY_PLAYED);
+        File first = download(storage, 1, 100 * KB, 1000);
+        File second = download(storage, 2, 100 * KB, 3000);
+        File third = download(storage, 3, 100 * KB, 2000);
+        assertEquals(300 * KB, storage.getTotalBytes());
+
+        List<AudioStorage.Entry> evicted = storage.trim();
+        assertEquals(1, evicted.size());
+        assertEquals(1, evicted.get(0).getBookId());
+        assertFalse(first.exists());
+        assertTrue(second.exists() && third.exists());
+        assertEquals(200 * KB, storage.getTotalBytes());
+        assertFalse(storage.isDownloaded(1));
+        assertTrue(storage.isDownloaded(2));
+
+        // Already within budget
+        assertTrue(storage.trim().isEmpty());
+    }
+
+    @Test
+    public void neverEvictsPinnedBooks() throws IOException {
+        AudioStorage storage = storage(50 * KB, AudioStorage.Policy.LEAST_RECENTLY_PLAYED);
+        File playing = download(storage, 1, 100 * KB, 1000);
+        download(storage, 2, 100 * KB, 2000);
+        // The standby book's cache, open in its player
+        File standby = cache(storage, 3, 100 * KB, 500);
+        storage.setPinned(Arrays.asList(1, 3));
+
+        assertEquals(Collections.singletonList(2), evictedBooks(storage.trim()));
+        assertTrue(playing.exists() && standby.exists());
+        // Over budget still, but there's nothing else to remove
+        assertEquals(200 * KB, storage.getTotalBytes());
+
+        storage.setPinned(Collections.singletonList(1));
+        assertEquals(Collections.singletonList(3), evictedBooks(storage.trim()));
+        assertFalse(standby.exists());
+
+        storage.setPinned(Collections.<Integer>emptyList());
+        assertEquals(1, storage.trim().size());
+        assertFalse(playing.exists());
+    }
+
+    @Test
+    public void leastValuableGoesFirst() throws IOException {
+        AudioStorage storage = storage(0, AudioStorage.Policy.LEAST_VALUABLE);
+        download(storage, 1, 10 * KB, 1000);
+        cache(storage, 2, 10 * KB, 2000);
+        download(storage, 3, 10 * KB, 5000);
+        storage.setFinished(3);
+        // Cache of a book that has been downloaded as well
+        download(storage, 4, 10 * KB, 3000);
+        File redundant = cache(storage, 4, 10 * KB, 6000);
+
+        List<Integer> order = evictedBooks(storage.trim());
+        assertFalse(redundant.exists());
+        assertEquals(Arrays.asList(4, 3, 2, 1, 4), order);
+        assertEquals(0, storage.getTotalBytes());
+        assertFalse(new File(caches, 2 + StreamCache.BLOCKS_SUFFIX).exists());
+    }
+
+    @Test
+    public void playingAgainClearsFinished() throws IOException {
+        AudioStorage storage = storage(15 * KB, AudioStorage.Policy.LEAST_VALUABLE);
+        download(storage, 1, 10 * KB, 2000);
+        download(storage, 2, 10 * KB, 1000);
+        storage.setFinished(1);
+        storage.played(1, 3000);
+
+        assertEquals(Collections.singletonList(2), evictedBooks(storage.trim()));
+    }
+
+    @Test
+    public void indexSurvivesRestartWithoutScanning() throws IOException {
+        AudioStorage storage = storage(1024 * KB, AudioStorage.Policy.LEAST_RECENTLY_PLAYED);
+        storage.load();
+        download(storage, 1, 10 * KB, 1000);
+        download(storage, 2, 20 * KB, 2000);
+        cache(storage, 3, 30 * KB, 3000);
+        storage.setFinished(2);
+        storage.save();
+        // A version, a count and 22 bytes a file
+        assertEquals(8 + 3 * 22, indexFile.length());
+
+        // Files the index doesn't know about aren't picked up, since nothing is scanned
+        new FileOutputStream(new File(downloads, 9 + AudioStorage.DOWNLOAD_SUFFIX)).close();
+        // A file that went missing is dropped
+        new File(downloads, 1 + AudioStorage.DOWNLOAD_SUFFIX).delete();
+
+        AudioStorage restarted = storage(1024 * KB, AudioStorage.Policy.LEAST_RECENTLY_PLAYED);
+        restarted.load();
+        assertEquals(50 * KB, restarted.getTotalBytes());
+        List<AudioStorage.Entry> entries = restarted.getEntries();
+        assertEquals(2, entries.size());
+        for (AudioStorage.Entry entry : entries) {
+            if (entry.getBookId() == 2) {
+                assertEquals(AudioStorage.DOWNLOAD, entry.getKind());
+                assertTrue(entry.isFinished());
+                assertEquals(2000, entry.getLastPlayed());
+            } else {
+                assertEquals(3, entry.getBookId());
+                assertEquals(AudioStorage.STREAM_CACHE, entry.getKind());
+                assertEquals(30 * KB, entry.getSize());
+            }
+        }
+    }
+
+    @Test
+    public void firstLoadScansExistingFiles() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(new File(downloads, 5 + AudioStorage.DOWNLOAD_SUFFIX))) {
+            out.write(new byte[12345]);
+        }
+        new FileOutputStream(new File(downloads, 6 + ".part")).close();
+
+        // Three of five blocks cached, the last one short
+        long length = 4L * StreamCache.BLOCK_SIZE + 100;
+        try (RandomAccessFile blocks = new RandomAccessFile(new File(caches, 7 + StreamCache.BLOCKS_SUFFIX), "rw")) {
+            blocks.writeLong(length);
+            blocks.write(0x13);
+        }
+        new RandomAccessFile(new File(caches, 7 + StreamCache.DATA_SUFFIX), "rw").close();
+
+        AudioStorage storage = storage(1024 * KB, AudioStorage.Policy.LEAST_VALUABLE);
+        storage.load();
+        assertEquals(12345 + 2L * StreamCache.BLOCK_SIZE + 100, storage.getTotalBytes());
+        assertEquals(2, storage.getEntries().size());
+        assertTrue(storage.isDownloaded(5));
+        assertFalse(storage.isDownloaded(7));
+        assertEquals(5, storage.bookIdOf(new File(downloads, "5.mp3")));
+        assertEquals(-1, storage.bookIdOf(new File(caches, "5.mp3")));
+    }
+}
@@ -0,0 +1,81 @@
+package edu.temple.audiobookplayer;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverEveryTimeInOrder() {
+        int previous = -1;
+        for (long millis = 0; millis < 100000; millis++) {
+            int bucket = LatencyHistogram.bucketOf(millis);
+            assertTrue(bucket == previous || bucket == previous + 1);
+            assertTrue(millis <= LatencyHistogram.upperBound(bucket));
+            previous = bucket;
+        }
+        assertTrue(LatencyHistogram.bucketOf(Long.MAX_VALUE) >= 0);
+    }
+
+    @Test
+    public void percentilesAreWithinABucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int millis = 1; millis <= 1000; millis++)
+            histogram.record(millis);
+        histogram.record(-5);
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500, histogram.getMean());
+        assertEquals(500, histogram.getPercentile(0.5), 500 / 4);
+        assertEquals(900, histogram.getPercentile(0.9), 900 / 4);
+        assertEquals(1000, histogram.getPercentile(1));
+        assertEquals(0, new LatencyHistogram().getPercentile(0.5));
+    }
+
+    @Test
+    public void concurrentRecordingLosesNothing() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++)
+                        histogram.record(i % 500 + offset);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(400000, histogram.getCount());
+        assertEquals(502, histogram.getMax());
+    }
+
+    @Test
+    public void recordingDoesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        long thread = Thread.currentThread().getId();
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 100000; i++)
+            histogram.record(i);
+
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 1000000; i++)
+            histogram.record(i % 60000);
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        // Leaves room for the measurement itself, far below one object per recording
+        assertTrue("1M recordings allocated " + allocated + " bytes", allocated < 1000);
+    }
+}
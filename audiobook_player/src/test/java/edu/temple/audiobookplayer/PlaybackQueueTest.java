@@ -0,0 +1,107 @@
+package edu.temple.audiobookplayer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PlaybackQueueTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("playback", ".queue");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static PlaybackQueue queueOf(int... ids) {
+        PlaybackQueue queue = new PlaybackQueue();
+        for (int id : ids)
+            queue.add(new PlaybackQueue.Item(id, null));
+        return queue;
+    }
+
+    @Test
+    public void advancesThroughTheQueueAndStopsAtTheEnd() {
+        PlaybackQueue queue = queueOf(1, 2, 3);
+        assertNull(queue.getCurrent());
+        assertEquals(1, queue.peek(1).getBookId());
+
+        assertEquals(1, queue.advance().getBookId());
+        assertEquals(2, queue.peek(1).getBookId());
+        assertEquals(3, queue.peek(2).getBookId());
+        assertEquals(2, queue.advance().getBookId());
+        assertEquals(3, queue.advance().getBookId());
+        assertNull(queue.peek(1));
+        assertNull(queue.advance());
+        assertNull(queue.advance());
+        assertEquals(2, queue.jumpTo(1).getBookId());
+    }
+
+    @Test
+    public void reorderingKeepsTheCurrentBook() {
+        PlaybackQueue queue = queueOf(1, 2, 3, 4);
+        queue.jumpTo(1);
+
+        queue.move(0, 2);
+        assertEquals(2, queue.getCurrent().getBookId());
+        queue.move(3, 0);
+        assertEquals(2, queue.getCurrent().getBookId());
+        queue.move(queue.getCurrentIndex(), 3);
+        assertEquals(2, queue.getCurrent().getBookId());
+        assertEquals(3, queue.getCurrentIndex());
+
+        List<PlaybackQueue.Item> items = queue.getItems();
+        assertEquals(4, items.get(0).getBookId());
+        assertEquals(3, items.get(1).getBookId());
+        assertEquals(1, items.get(2).getBookId());
+    }
+
+    @Test
+    public void removingTheCurrentBookMovesToTheNext() {
+        PlaybackQueue queue = queueOf(1, 2, 3);
+        queue.jumpTo(1);
+        assertFalse(queue.remove(0));
+        assertEquals(2, queue.getCurrent().getBookId());
+        assertTrue(queue.remove(queue.getCurrentIndex()));
+        assertEquals(3, queue.getCurrent().getBookId());
+        assertTrue(queue.remove(queue.getCurrentIndex()));
+        assertNull(queue.getCurrent());
+    }
+
+    @Test
+    public void survivesARestart() throws Exception {
+        PlaybackQueue queue = queueOf(1, 2);
+        queue.add(new PlaybackQueue.Item(3, new File("/data/audiobooks/3.mp3")));
+        queue.jumpTo(2);
+        queue.save(file);
+        // One book id per entry, so even a long queue is a tiny file
+        assertTrue(file.length() < 64);
+
+        PlaybackQueue restored = new PlaybackQueue();
+        restored.load(file);
+        assertEquals(3, restored.size());
+        assertEquals(2, restored.getCurrentIndex());
+        assertEquals(new File("/data/audiobooks/3.mp3"), restored.getCurrent().getFile());
+        assertNull(restored.getItems().get(0).getFile());
+    }
+
+    @Test
+    public void booksQueuedBeforeLoadingWin() throws Exception {
+        queueOf(1, 2).save(file);
+        PlaybackQueue queue = queueOf(9);
+        queue.load(file);
+        assertEquals(1, queue.size());
+        assertEquals(9, queue.peek(1).getBookId());
+    }
+}
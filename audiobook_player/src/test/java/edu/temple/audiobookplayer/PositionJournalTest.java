@@ -0,0 +1,158 @@
+package edu.temple.audiobookplayer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class PositionJournalTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("positions", ".journal");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void positionsSurviveRestart() throws Exception {
+        PositionJournal journal = new PositionJournal(file, 0);
+        journal.load();
+        journal.record(1, 100, false);
+        journal.record(2, 50, false);
+        journal.record(1, 130, false);
+        journal.close();
+
+        PositionJournal restarted = new PositionJournal(file, 0);
+        restarted.load();
+        assertEquals(130, restarted.getPosition(1));
+        assertEquals(50, restarted.getPosition(2));
+        assertEquals(0, restarted.getPosition(3));
+    }
+
+    @Test
+    public void writesAreRateLimitedUnlessForced() throws Exception {
+        PositionJournal journal = new PositionJournal(file, 60000);
+        journal.load();
+        journal.record(1, 10, false);
+        journal.record(1, 11, false);
+        assertEquals(10, journal.getPosition(1));
+        assertEquals(20, file.length());
+
+        journal.record(1, 12, true);
+        assertEquals(12, journal.getPosition(1));
+        assertEquals(40, file.length());
+        journal.close();
+    }
+
+    @Test
+    public void tornRecordIsIgnored() throws Exception {
+        PositionJournal journal = new PositionJournal(file, 0);
+        journal.load();
+        journal.record(1, 100, false);
+        journal.record(1, 200, false);
+        journal.close();
+
+        // Simulate dying half way through writing a record
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[]{0, 0, 0, 1, 0, 0});
+        }
+
+        PositionJournal restarted = new PositionJournal(file, 0);
+        restarted.load();
+        assertEquals(200, restarted.getPosition(1));
+        restarted.record(1, 300, false);
+        restarted.close();
+
+        PositionJournal again = new PositionJournal(file, 0);
+        again.load();
+        assertEquals(300, again.getPosition(1));
+        again.close();
+    }
+
+    /*
+    The service loads the journal in the background, and can be asked
+    for a position or record one before that has happened
+     */
+    @Test
+    public void journalLoadsOnFirstUse() throws Exception {
+        PositionJournal journal = new PositionJournal(file, 0);
+        journal.load();
+        journal.record(1, 100, false);
+        journal.record(2, 50, false);
+        journal.close();
+
+        PositionJournal restarted = new PositionJournal(file, 0);
+        assertEquals(100, restarted.getPosition(1));
+        restarted.close();
+
+        PositionJournal recording = new PositionJournal(file, 0);
+        recording.record(1, 150, false);
+        recording.compact();
+        // The load that was queued first finds it already done
+        recording.load();
+        assertEquals(150, recording.getPosition(1));
+        assertEquals(50, recording.getPosition(2));
+        recording.close();
+
+        PositionJournal again = new PositionJournal(file, 0);
+        again.load();
+        assertEquals(150, again.getPosition(1));
+        assertEquals(50, again.getPosition(2));
+        again.close();
+    }
+
+    @Test
+    public void compactionKeepsOneRecordPerBook() throws Exception {
+        PositionJournal journal = new PositionJournal(file, 0);
+        journal.load();
+        for (int i = 1; i <= 500; i++)
+            journal.record(i % 5, i, false);
+        assertTrue(journal.needsCompaction());
+
+        journal.compact();
+        assertEquals(5 * 20, file.length());
+        assertFalse(journal.needsCompaction());
+        journal.record(1, 1000, false);
+        journal.close();
+
+        PositionJournal restarted = new PositionJournal(file, 0);
+        restarted.load();
+        assertEquals(1000, restarted.getPosition(1));
+        assertEquals(500, restarted.getPosition(0));
+        restarted.close();
+    }
+
+    /*
+    What each write costs is measured by ProgressPathBenchmark
+     */
+    @Test
+    public void compactionKeepsTheJournalSmall() throws Exception {
+        PositionJournal journal = new PositionJournal(file, 0);
+        journal.load();
+        int writes = 20000;
+        for (int i = 1; i <= writes; i++) {
+            journal.record(7, i, false);
+            if (journal.needsCompaction())
+                journal.compact();
+        }
+        journal.close();
+
+        assertTrue(file.length() < 100 * 20);
+        PositionJournal restarted = new PositionJournal(file, 0);
+        assertEquals(writes, restarted.getPosition(7));
+        restarted.close();
+    }
+}
@@ -0,0 +1,102 @@
+package edu.temple.audiobookplayer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ProgressBroadcasterTest {
+
+    private final ProgressBroadcaster broadcaster = new ProgressBroadcaster();
+
+    private static class Recorder implements ProgressBroadcaster.Listener {
+        final ArrayList<ProgressBroadcaster.Snapshot> received = new ArrayList<>();
+
+        @Override
+        public void onProgress(ProgressBroadcaster.Snapshot snapshot) {
+            received.add(snapshot);
+        }
+    }
+
+    private void tick(long time) {
+        if (broadcaster.isAnyoneDue(time))
+            broadcaster.publish(new ProgressBroadcaster.Snapshot(7, null, (int) (time / 1000), 3600, time));
+    }
+
+    @Test
+    public void eachListenerGetsItsOwnRate() {
+        Recorder bar = new Recorder(), notification = new Recorder(), widget = new Recorder();
+        broadcaster.add(bar, 1000);
+        broadcaster.add(notification, 5000);
+        broadcaster.add(widget, 2000);
+        assertEquals(1000, broadcaster.getFastestInterval());
+
+        // Ticks at the fastest rate, a little early or late like a real scheduler
+        for (int second = 1; second <= 20; second++)
+            tick(second * 1000 + (second % 2 == 0 ? -5 : 5));
+
+        assertEquals(20, bar.received.size());
+        assertEquals(10, widget.received.size());
+        // The first tick goes to everyone, then every fifth one
+        assertEquals(5, notification.received.size());
+
+        // Everyone due at the same tick shares one snapshot
+        assertSame(bar.received.get(0), widget.received.get(0));
+        assertSame(bar.received.get(0), notification.received.get(0));
+    }
+
+    @Test
+    public void addingAgainChangesTheRateAndRemovingStops() {
+        Recorder recorder = new Recorder();
+        broadcaster.add(recorder, 1000);
+        broadcaster.add(recorder, 3000);
+        assertEquals(1, broadcaster.getListenerCount());
+        assertEquals(3000, broadcaster.getFastestInterval());
+
+        for (int second = 1; second <= 9; second++)
+            tick(second * 1000);
+        assertEquals(3, recorder.received.size());
+
+        broadcaster.remove(recorder);
+        tick(20000);
+        assertEquals(3, recorder.received.size());
+        assertFalse(broadcaster.hasListeners());
+        assertEquals(0, broadcaster.getFastestInterval());
+    }
+
+    @Test
+    public void listenersCanComeAndGoWhileTicking() throws InterruptedException {
+        final AtomicInteger delivered = new AtomicInteger();
+        final ProgressBroadcaster.Listener counter = new ProgressBroadcaster.Listener() {
+            @Override
+            public void onProgress(ProgressBroadcaster.Snapshot snapshot) {
+                delivered.incrementAndGet();
+            }
+        };
+        broadcaster.add(counter, 1);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread churn = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 10000; i++) {
+                    Recorder recorder = new Recorder();
+                    broadcaster.add(recorder, 1);
+                    broadcaster.remove(recorder);
+                }
+                done.countDown();
+            }
+        });
+        churn.start();
+        long time = 0;
+        while (done.getCount() > 0)
+            tick(time += 10);
+        churn.join();
+
+        assertEquals(1, broadcaster.getListenerCount());
+        assertEquals(time / 10, delivered.get());
+    }
+}
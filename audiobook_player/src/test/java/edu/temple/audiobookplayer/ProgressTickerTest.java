@@ -0,0 +1,134 @@
+package edu.temple.audiobookplayer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ProgressTickerTest {
+
+    private final AtomicInteger threadsCreated = new AtomicInteger();
+    private ScheduledExecutorService scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                threadsCreated.incrementAndGet();
+                return new Thread(runnable);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void pauseResumeCycles_neverAddThreads() throws Exception {
+        final AtomicInteger ticks = new AtomicInteger();
+        ProgressTicker ticker = new ProgressTicker(scheduler, new ProgressTicker.Listener() {
+            @Override
+            public void onTick() {
+                ticks.incrementAndGet();
+            }
+        });
+
+        int threadsBefore = Thread.activeCount();
+        for (int i = 0; i < 1000; i++) {
+            ticker.setInterval(1);
+            ticker.setInterval(0);
+        }
+        ticker.setInterval(1);
+        Thread.sleep(50);
+
+        assertEquals(1, threadsCreated.get());
+        assertTrue(Thread.activeCount() <= threadsBefore + 1);
+        assertTrue(ticks.get() > 0);
+    }
+
+    @Test
+    public void stoppedTicker_doesNotWakeUp() throws Exception {
+        final AtomicInteger ticks = new AtomicInteger();
+        ProgressTicker ticker = new ProgressTicker(scheduler, new ProgressTicker.Listener() {
+            @Override
+            public void onTick() {
+                ticks.incrementAndGet();
+            }
+        });
+
+        ticker.setInterval(1);
+        Thread.sleep(20);
+        ticker.setInterval(0);
+        Thread.sleep(10);
+        int stoppedAt = ticks.get();
+        Thread.sleep(50);
+
+        assertEquals(stoppedAt, ticks.get());
+        assertEquals(0, ticker.getInterval());
+    }
+
+    /*
+    Measures what the scheduler thread allocates between two ticks
+    a thousand ticks apart. Each tick goes the way it does in the service:
+    a snapshot is published to a ProgressMessageListener, which fills in
+    a progress message. The old code allocated a BookProgress per tick
+    (and a Thread per resume), this should stay close to zero.
+     */
+    @Test
+    public void ticks_allocateAlmostNothing() throws Exception {
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long[] allocated = new long[2];
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger ticks = new AtomicInteger();
+        final int[] message = new int[3];
+
+        final ProgressBroadcaster broadcaster = new ProgressBroadcaster();
+        // Stands in for Message.obtain(), which reuses pooled messages
+        broadcaster.add(new ProgressMessageListener(AudiobookService.PROGRESS_MESSAGE, new ProgressMessageListener.Sender() {
+            @Override
+            public void send(int what, int arg1, int arg2, Object obj) {
+                message[0] = what;
+                message[1] = arg1;
+                message[2] = arg2;
+            }
+        }), 1);
+
+        ProgressTicker ticker = new ProgressTicker(scheduler, new ProgressTicker.Listener() {
+            @Override
+            public void onTick() {
+                int tick = ticks.incrementAndGet();
+                // Every tick is a second of playback, so the listener is always due
+                broadcaster.publish(7, null, tick, 3600, tick * 1000L);
+                if (tick == 100)
+                    allocated[0] = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+                else if (tick == 1100) {
+                    allocated[1] = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+                    done.countDown();
+                }
+            }
+        });
+        ticker.setInterval(1);
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        ticker.setInterval(0);
+
+        assertEquals(AudiobookService.PROGRESS_MESSAGE, message[0]);
+        assertEquals(7, message[1]);
+        assertTrue(message[2] >= 1100);
+
+        long perTick = (allocated[1] - allocated[0]) / 1000;
+        assertTrue("Allocated " + perTick + " bytes per tick", perTick < 128);
+    }
+}
@@ -0,0 +1,103 @@
+package edu.temple.audiobookplayer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class SeekCoalescerTest {
+
+    private final ArrayList<String> sent = new ArrayList<>();
+    private long time;
+
+    private final SeekCoalescer coalescer = new SeekCoalescer(new SeekCoalescer.Seeker() {
+        @Override
+        public boolean seek(int position, boolean precise) {
+            sent.add((precise ? "precise " : "preview ") + position);
+            return true;
+        }
+    }) {
+        @Override
+        protected long now() {
+            return time;
+        }
+    };
+
+    @Test
+    public void dragSendsOnlyTheLatestSeekAfterEachCompletion() {
+        // A drag reports a new position every few milliseconds
+        for (int position = 0; position < 50; position++) {
+            coalescer.seek(position * 1000, false);
+            time += 5;
+            if (position == 20)
+                coalescer.onSeekComplete();
+        }
+        coalescer.seek(60000, true);
+
+        assertEquals(2, sent.size());
+        assertEquals("preview 0", sent.get(0));
+        assertEquals("preview 20000", sent.get(1));
+
+        coalescer.onSeekComplete();
+        assertEquals("precise 60000", sent.get(2));
+        coalescer.onSeekComplete();
+        assertFalse(coalescer.isSeeking());
+        assertEquals(3, sent.size());
+        assertEquals(48, coalescer.getCollapsedCount());
+    }
+
+    @Test
+    public void previewNeverReplacesAWaitingPreciseSeek() {
+        coalescer.seek(1000, false);
+        coalescer.seek(5000, true);
+        coalescer.seek(7000, false);
+        coalescer.onSeekComplete();
+
+        assertEquals("precise 5000", sent.get(1));
+    }
+
+    @Test
+    public void reportsLatency() {
+        assertEquals(-1, coalescer.getLastLatency());
+        coalescer.seek(1000, true);
+        time += 120;
+        coalescer.onSeekComplete();
+        coalescer.seek(2000, true);
+        time += 40;
+        coalescer.onSeekComplete();
+
+        assertEquals(40, coalescer.getLastLatency());
+        assertEquals(80, coalescer.getAverageLatency());
+        assertEquals(120, coalescer.getMaxLatency());
+        assertEquals(2, coalescer.getSeekCount());
+    }
+
+    @Test
+    public void seekThatCannotStartDoesNotBlockLaterOnes() {
+        SeekCoalescer refusing = new SeekCoalescer(new SeekCoalescer.Seeker() {
+            @Override
+            public boolean seek(int position, boolean precise) {
+                sent.add(position + "");
+                return precise;
+            }
+        });
+        refusing.seek(1000, false);
+        assertFalse(refusing.isSeeking());
+        refusing.seek(2000, true);
+        assertTrue(refusing.isSeeking());
+        assertEquals(2, sent.size());
+    }
+
+    @Test
+    public void resetDropsWaitingSeek() {
+        coalescer.seek(1000, true);
+        coalescer.seek(2000, true);
+        coalescer.reset();
+        coalescer.onSeekComplete();
+        assertEquals(1, sent.size());
+
+        coalescer.seek(3000, true);
+        assertEquals("precise 3000", sent.get(1));
+    }
+}
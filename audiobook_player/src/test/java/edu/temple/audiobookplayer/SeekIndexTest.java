@@ -0,0 +1,188 @@
+package edu.temple.audiobookplayer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Indexes made-up variable bitrate MP3s: MPEG 2 layer III frames with
+ * silent bodies, so a multi-hour book is only a few tens of megabytes.
+ */
+public class SeekIndexTest {
+
+    private static final int SAMPLE_RATE = 22050;
+    private static final int SAMPLES_PER_FRAME = 576;
+
+    private File file;
+    // Where every audio frame starts, as written
+    private int[] frameOffsets;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("book", ".mp3");
+    }
+
+    @After
+    public void tearDown() {
+        SeekIndex.fileFor(file).delete();
+        file.delete();
+    }
+
+    private static int header(int bitrateIndex, int padding) {
+        // Sync, MPEG 2, layer III, no CRC, 22050Hz, mono
+        return 0xFFF30000 | bitrateIndex << 12 | padding << 9 | 0xC0;
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    /*
+    A book whose first half is at 8-16kbps and second half at 32-40kbps,
+    which throws off any seek that goes by the average bitrate
+     */
+    private void writeBook(int frames, boolean tags) throws IOException {
+        frameOffsets = new int[frames];
+        Random random = new Random(7);
+        byte[] silence = new byte[2048];
+        int position = 0;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            if (tags) {
+                // ID3v2 tag with 1000 bytes after its header
+                out.write(new byte[]{'I', 'D', '3', 4, 0, 0, 0, 0, 7, 104});
+                out.write(silence, 0, 1000);
+                position += 1010;
+
+                // Xing frame, which isn't audio
+                int header = header(4, 0);
+                int size = SeekIndex.frameSize(header);
+                writeInt(out, header);
+                out.write(silence, 0, 9);
+                out.write(new byte[]{'X', 'i', 'n', 'g'});
+                out.write(silence, 0, size - 17);
+                position += size;
+            }
+            for (int i = 0; i < frames; i++) {
+                int bitrateIndex = (i < frames / 2 ? 1 : 4) + random.nextInt(2);
+                int header = header(bitrateIndex, random.nextInt(2));
+                int size = SeekIndex.frameSize(header);
+                frameOffsets[i] = position;
+                writeInt(out, header);
+                out.write(silence, 0, size - 4);
+                position += size;
+            }
+            if (tags) {
+                out.write(new byte[]{'T', 'A', 'G'});
+                out.write(silence, 0, 125);
+            }
+        }
+    }
+
+    private static int frameTime(long frame) {
+        return (int) (frame * SAMPLES_PER_FRAME * 1000 / SAMPLE_RATE);
+    }
+
+    @Test
+    public void frameSizes() {
+        // MPEG 1 layer III at 128kbps, 44100Hz
+        assertEquals(417, SeekIndex.frameSize(0xFFFB9000));
+        assertEquals(418, SeekIndex.frameSize(0xFFFB9200));
+        assertEquals(1152, SeekIndex.samplesPerFrame(0xFFFB9000));
+        assertEquals(44100, SeekIndex.sampleRate(0xFFFB9000));
+        // MPEG 2 layer III at 8kbps, 22050Hz
+        assertEquals(26, SeekIndex.frameSize(header(1, 0)));
+        assertEquals(SAMPLES_PER_FRAME, SeekIndex.samplesPerFrame(header(1, 0)));
+        assertEquals(SAMPLE_RATE, SeekIndex.sampleRate(header(1, 0)));
+        assertFalse(SeekIndex.isValid(0xFFFBF000));
+        assertFalse(SeekIndex.isValid(0x49443304));
+    }
+
+    @Test
+    public void skipsTagsAndTheXingFrame() throws IOException {
+        writeBook(100, true);
+        SeekIndex index = SeekIndex.build(file);
+
+        assertNotNull(index);
+        assertEquals(100, index.getFrameCount());
+        assertEquals(frameTime(100), index.getDuration());
+        SeekIndex.Target start = index.find(file, 0);
+        assertEquals(frameOffsets[0], start.getOffset());
+        assertEquals(0, start.getTime());
+        // Past the end is the last frame
+        assertEquals(frameOffsets[99], index.find(file, 1000000).getOffset());
+    }
+
+    @Test
+    public void staleIndexIsNotUsed() throws IOException {
+        writeBook(500, false);
+        SeekIndex.ensure(file);
+        assertNotNull(SeekIndex.load(file));
+
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[26]);
+        }
+        assertNull(SeekIndex.load(file));
+        assertNotNull(SeekIndex.ensure(file));
+    }
+
+    @Test
+    public void somethingThatIsNotAnMp3IsNotIndexed() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("<html>Not found</html>".getBytes("UTF-8"));
+        }
+        assertNull(SeekIndex.build(file));
+    }
+
+    /*
+    Three hours of audio. Every seek lands on the frame playing at the
+    time asked for, compared with seeking by average bitrate.
+     */
+    @Test
+    public void seeksIntoAThreeHourBook() throws IOException {
+        int frames = (int) (3 * 3600L * SAMPLE_RATE / SAMPLES_PER_FRAME);
+        writeBook(frames, true);
+
+        SeekIndex.ensure(file);
+        SeekIndex index = SeekIndex.load(file);
+        assertNotNull(index);
+        assertEquals(frames, index.getFrameCount());
+
+        int seeks = 2000;
+        int[] targets = new int[seeks];
+        Random random = new Random(11);
+        for (int i = 0; i < seeks; i++)
+            targets[i] = random.nextInt(index.getDuration());
+
+        long audioStart = frameOffsets[0];
+        long audioLength = file.length() - 128 - audioStart;
+        int worstIndexed = 0, worstEstimated = 0;
+        for (int target : targets) {
+            SeekIndex.Target found = index.find(file, target);
+            int frame = (int) ((long) target * SAMPLE_RATE / (1000L * SAMPLES_PER_FRAME));
+            assertEquals(frameOffsets[frame], found.getOffset());
+            assertTrue(found.getTime() <= target);
+            worstIndexed = Math.max(worstIndexed, target - found.getTime());
+
+            // Where going by the average bitrate would have started playing instead
+            long estimate = audioStart + (long) target * audioLength / index.getDuration();
+            int landed = Arrays.binarySearch(frameOffsets, (int) estimate);
+            landed = landed >= 0 ? landed : -landed - 2;
+            worstEstimated = Math.max(worstEstimated, Math.abs(frameTime(landed) - target));
+        }
+        assertTrue(worstIndexed <= frameTime(1) + 1);
+        assertTrue(worstEstimated > 60 * 1000);
+    }
+}
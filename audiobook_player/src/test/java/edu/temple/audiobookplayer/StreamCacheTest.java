@@ -0,0 +1,181 @@
+package edu.temple.audiobookplayer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reads through a StreamCache the way MediaPlayer would, against a local server.
+ */
+public class StreamCacheTest {
+
+    private HttpServer server;
+    private byte[] audio;
+    private final AtomicLong bytesServed = new AtomicLong();
+    private volatile boolean supportRanges = true;
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        audio = new byte[10 * StreamCache.BLOCK_SIZE + 1000];
+        new Random(7).nextBytes(audio);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/download.php", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int start = 0;
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                if (supportRanges && range != null) {
+                    start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+                    exchange.getResponseHeaders().set("Content-Range",
+                            "bytes " + start + "-" + (audio.length - 1) + "/" + audio.length);
+                    exchange.sendResponseHeaders(206, audio.length - start);
+                } else {
+                    exchange.sendResponseHeaders(200, audio.length);
+                }
+                try (OutputStream out = exchange.getResponseBody()) {
+                    for (int position = start; position < audio.length; position += 4096) {
+                        int length = Math.min(4096, audio.length - position);
+                        out.write(audio, position, length);
+                        bytesServed.addAndGet(length);
+                    }
+                } catch (IOException e) {
+                    // The cache hung up part way through, which is expected
+                }
+            }
+        });
+        server.start();
+
+        directory = File.createTempFile("audio_cache", "");
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    private StreamCache newCache(StreamCache.Stats stats) {
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/download.php?id=3";
+        return new StreamCache(directory, 3, url, stats);
+    }
+
+    /*
+    Reads [from, to) in small pieces like MediaPlayer does
+     */
+    private byte[] readRange(StreamCache cache, long from, long to) throws IOException {
+        byte[] out = new byte[(int) (to - from)];
+        int offset = 0;
+        while (offset < out.length) {
+            int read = cache.read(from + offset, out, offset, Math.min(8000, out.length - offset));
+            assertTrue(read > 0);
+            offset += read;
+        }
+        return out;
+    }
+
+    @Test
+    public void sequentialPlayback_downloadsEachByteOnce() throws Exception {
+        StreamCache.Stats stats = new StreamCache.Stats();
+        StreamCache cache = newCache(stats);
+
+        assertEquals(audio.length, cache.length());
+        assertArrayEquals(audio, readRange(cache, 0, audio.length));
+        assertEquals(-1, cache.read(audio.length, new byte[10], 0, 10));
+        assertEquals(audio.length, stats.getBytesDownloaded());
+        cache.close();
+    }
+
+    @Test
+    public void backwardSeek_isServedFromDisk() throws Exception {
+        StreamCache.Stats stats = new StreamCache.Stats();
+        StreamCache cache = newCache(stats);
+        readRange(cache, 0, 5 * StreamCache.BLOCK_SIZE);
+        long downloaded = stats.getBytesDownloaded();
+        long misses = stats.getMisses();
+
+        byte[] again = readRange(cache, StreamCache.BLOCK_SIZE + 17, 3 * StreamCache.BLOCK_SIZE);
+
+        assertArrayEquals(Arrays.copyOfRange(audio, StreamCache.BLOCK_SIZE + 17, 3 * StreamCache.BLOCK_SIZE), again);
+        assertEquals(downloaded, stats.getBytesDownloaded());
+        assertEquals(misses, stats.getMisses());
+        assertTrue(stats.getHits() > 0);
+        cache.close();
+    }
+
+    @Test
+    public void cachedBlocks_surviveRestart() throws Exception {
+        StreamCache first = newCache(new StreamCache.Stats());
+        readRange(first, 0, 4 * StreamCache.BLOCK_SIZE);
+        first.close();
+        long servedBefore = bytesServed.get();
+
+        StreamCache.Stats stats = new StreamCache.Stats();
+        StreamCache restarted = newCache(stats);
+        assertArrayEquals(Arrays.copyOfRange(audio, 0, 4 * StreamCache.BLOCK_SIZE),
+                readRange(restarted, 0, 4 * StreamCache.BLOCK_SIZE));
+        assertEquals(0, stats.getMisses());
+        assertEquals(0, stats.getBytesDownloaded());
+
+        // Reading past what was cached picks up from the network again
+        assertArrayEquals(Arrays.copyOfRange(audio, 6 * StreamCache.BLOCK_SIZE, audio.length),
+                readRange(restarted, 6 * StreamCache.BLOCK_SIZE, audio.length));
+        assertTrue(bytesServed.get() > servedBefore);
+        restarted.close();
+    }
+
+    @Test
+    public void prefetchedStartIsReadFromDisk() throws Exception {
+        StreamCache.Stats stats = new StreamCache.Stats();
+        StreamCache cache = newCache(stats);
+        assertEquals(3 * StreamCache.BLOCK_SIZE, cache.prefetch(3 * StreamCache.BLOCK_SIZE - 10));
+        assertEquals(0, cache.prefetch(StreamCache.BLOCK_SIZE));
+        cache.close();
+
+        // What the player reads first is already there after a restart
+        StreamCache.Stats playerStats = new StreamCache.Stats();
+        StreamCache player = newCache(playerStats);
+        assertArrayEquals(Arrays.copyOfRange(audio, 0, 3 * StreamCache.BLOCK_SIZE),
+                readRange(player, 0, 3 * StreamCache.BLOCK_SIZE));
+        assertEquals(0, playerStats.getMisses());
+        assertEquals(audio.length - 3 * StreamCache.BLOCK_SIZE, player.prefetch(Long.MAX_VALUE));
+        player.close();
+
+        try {
+            player.prefetch(StreamCache.BLOCK_SIZE);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void worksWithoutRangeSupport() throws Exception {
+        supportRanges = false;
+        StreamCache cache = newCache(new StreamCache.Stats());
+
+        assertArrayEquals(Arrays.copyOfRange(audio, 7 * StreamCache.BLOCK_SIZE, audio.length),
+                readRange(cache, 7 * StreamCache.BLOCK_SIZE, audio.length));
+        assertArrayEquals(Arrays.copyOfRange(audio, 0, 1000), readRange(cache, 0, 1000));
+        cache.close();
+    }
+}
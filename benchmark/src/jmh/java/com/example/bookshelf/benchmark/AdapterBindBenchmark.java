@@ -0,0 +1,54 @@
+package com.example.bookshelf.benchmark;
+
+import com.example.bookshelf.Book;
+import com.example.bookshelf.BookCatalog;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+
+/*
+The work BooksAdapter does to bind one screen of rows while scrolling:
+find the book at each position and read what the row shows (title,
+author and the cover url handed to CoverLoader). Views can't be created
+off a device, so setting the text and drawing are left out; this is
+the part that depends on how the books are stored.
+ */
+@State(Scope.Thread)
+public class AdapterBindBenchmark {
+
+    private static final int BOOKS = 10000;
+    private static final int ROWS_ON_SCREEN = 12;
+
+    @Param({"list", "catalog"})
+    public String source;
+
+    private ArrayList<Book> list;
+    private BookCatalog catalog;
+    private int first;
+
+    @Setup
+    public void setUp() {
+        list = SampleBooks.books(BOOKS);
+        catalog = new BookCatalog(BOOKS);
+        catalog.addAll(list);
+    }
+
+    @Benchmark
+    public void bindScreen(Blackhole blackhole) {
+        boolean fromCatalog = "catalog".equals(source);
+        // Each call scrolls one screen further down
+        first = (first + ROWS_ON_SCREEN) % (BOOKS - ROWS_ON_SCREEN);
+        for (int position = first; position < first + ROWS_ON_SCREEN; position++) {
+            Book book = fromCatalog ? catalog.get(position) : list.get(position);
+            blackhole.consume(book.getTitle());
+            blackhole.consume(book.getAuthor());
+            blackhole.consume(book.getCoverUrl());
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.bookshelf.benchmark;
+
+import android.os.Parcel;
+
+import com.example.bookshelf.Book;
+import com.example.bookshelf.BookCatalog;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+
+/*
+Writing books to a Parcel and reading them back, one at a time as the
+selected book is saved, and as a whole list the way a Bundle stores it.
+Catalog books go through the same path, reading their fields from the catalog.
+ */
+@State(Scope.Thread)
+public class BookParcelBenchmark {
+
+    @Param({"100", "5000"})
+    public int count;
+
+    private Book book;
+    private ArrayList<Book> books;
+    private ArrayList<Book> catalogBooks;
+
+    @Setup
+    public void setUp() {
+        book = SampleBooks.book(42);
+        books = SampleBooks.books(count);
+
+        BookCatalog catalog = new BookCatalog(count);
+        catalog.addAll(books);
+        catalogBooks = new ArrayList<>(count);
+        for (int row = 0; row < count; row++)
+            catalogBooks.add(catalog.get(row));
+    }
+
+    @Benchmark
+    public Book singleBook() {
+        Parcel parcel = Parcel.obtain();
+        try {
+            book.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return Book.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    @Benchmark
+    public ArrayList<Book> bookList() {
+        return roundTrip(books);
+    }
+
+    @Benchmark
+    public ArrayList<Book> catalogBookList() {
+        return roundTrip(catalogBooks);
+    }
+
+    private static ArrayList<Book> roundTrip(ArrayList<Book> books) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeParcelableList(books, 0);
+            parcel.setDataPosition(0);
+            return parcel.readParcelableList(Book.class.getClassLoader());
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
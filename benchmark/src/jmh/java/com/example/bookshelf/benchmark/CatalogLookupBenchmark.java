@@ -0,0 +1,49 @@
+package com.example.bookshelf.benchmark;
+
+import com.example.bookshelf.Book;
+import com.example.bookshelf.BookCatalog;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+
+/*
+Finding a book by id, the way the catalog answers it, next to the
+HashMap<Integer, Book> index it replaced
+ */
+@State(Scope.Thread)
+public class CatalogLookupBenchmark {
+
+    @Param({"1000", "100000"})
+    public int books;
+
+    private HashMap<Integer, Book> byId;
+    private BookCatalog catalog;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        byId = new HashMap<>();
+        catalog = new BookCatalog(books);
+        for (Book book : SampleBooks.books(books)) {
+            byId.put(book.getId(), book);
+            catalog.add(book);
+        }
+    }
+
+    @Benchmark
+    public int hashMap() {
+        next = next % books + 1;
+        return byId.get(next).getDuration();
+    }
+
+    @Benchmark
+    public int catalog() {
+        next = next % books + 1;
+        return catalog.getDuration(catalog.indexOf(next));
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.bookshelf.benchmark;
+
+import com.example.bookshelf.Book;
+import com.example.bookshelf.BookIndex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/*
+How a misspelled search scales with the size of the local catalog, next
+to the exact prefix search it falls back from. Titles and authors are
+made up from a handful of syllables, so words share far more trigrams
+than real ones do and candidate pruning has the most work to do.
+ */
+@State(Scope.Thread)
+public class FuzzySearchBenchmark {
+
+    private static final String[] SYLLABLES = {"ka", "lo", "mi", "ren", "tos", "va", "del", "sha", "pri", "on",
+            "gu", "the", "bra", "wen", "is", "mor", "cal", "fi", "nu", "ast"};
+
+    @Param({"1000", "10000", "100000"})
+    public int books;
+
+    private BookIndex index;
+    private String[] misspelled, exact;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(7);
+        String[] vocabulary = new String[Math.max(1000, books / 2)];
+        for (int i = 0; i < vocabulary.length; i++)
+            vocabulary[i] = word(random);
+
+        index = new BookIndex(books);
+        misspelled = new String[64];
+        exact = new String[64];
+        for (int id = 0; id < books; id++) {
+            String title = vocabulary[random.nextInt(vocabulary.length)] + " "
+                    + vocabulary[random.nextInt(vocabulary.length)];
+            String author = vocabulary[random.nextInt(vocabulary.length)];
+            index.add(new Book(id, title, author, "https://kamorris.com/lab/abp/covers/" + id + ".jpeg", 3600));
+
+            // Queries spread evenly through the catalog
+            int query = (int) ((long) id * misspelled.length / books);
+            if (misspelled[query] == null) {
+                String first = title.substring(0, title.indexOf(' '));
+                misspelled[query] = swapLetters(first) + " " + author.substring(0, author.length() - 1);
+                exact[query] = first + " " + author.substring(0, author.length() - 1);
+            }
+        }
+    }
+
+    @Benchmark
+    public ArrayList<Book> fuzzySearch() {
+        next = (next + 1) % misspelled.length;
+        return index.fuzzySearch(misspelled[next], 50);
+    }
+
+    @Benchmark
+    public ArrayList<Book> prefixSearch() {
+        next = (next + 1) % exact.length;
+        return index.search(exact[next], 50);
+    }
+
+    private static String word(Random random) {
+        StringBuilder word = new StringBuilder();
+        int count = 2 + random.nextInt(3);
+        for (int i = 0; i < count; i++)
+            word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+        return word.toString();
+    }
+
+    private static String swapLetters(String word) {
+        char[] letters = word.toCharArray();
+        char second = letters[1];
+        letters[1] = letters[2];
+        letters[2] = second;
+        return new String(letters);
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.bookshelf.benchmark;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import edu.temple.audiobookplayer.PositionJournal;
+import edu.temple.audiobookplayer.ProgressBroadcaster;
+import edu.temple.audiobookplayer.ProgressMessageListener;
+import edu.temple.audiobookplayer.ProgressTicker;
+
+/*
+One progress tick of AudiobookService: the ticker calls back, the
+position is offered to the journal (which only writes every few seconds)
+and one snapshot goes to every listener. Here that is the handler set
+with setProgressHandler(), which is sent a pooled Message, and a few
+other listeners like a notification or widget would add.
+
+The tick body mirrors AudiobookService.notifyProgress(), which is private
+to the service. MediaPlayer isn't available here, so the position is a counter.
+ */
+@State(Scope.Thread)
+public class ProgressPathBenchmark {
+
+    private static final int PROGRESS_MESSAGE = 1;
+    private static final long JOURNAL_INTERVAL = 5000;
+
+    private File journalFile;
+    private PositionJournal journal;
+    private ScheduledExecutorService scheduler;
+    private ProgressTicker ticker;
+    private final ProgressBroadcaster broadcaster = new ProgressBroadcaster();
+    private long now;
+
+    @Param({"1", "4"})
+    public int listeners;
+
+    private int position;
+    private final int bookId = 7;
+    private final Uri bookUri = null;
+    private int shownTime, shownBookId;
+
+    private final Handler handler = new Handler() {
+        @Override
+        public void handleMessage(Message message) {
+            // What the activity does with a progress message, minus the SeekBar
+            if (message.what == PROGRESS_MESSAGE) {
+                shownTime = message.arg2;
+                shownBookId = message.arg1;
+            }
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        journalFile = File.createTempFile("positions", ".journal");
+        journal = new PositionJournal(journalFile, JOURNAL_INTERVAL);
+        journal.load();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        broadcaster.add(new ProgressMessageListener(PROGRESS_MESSAGE, new ProgressMessageListener.Sender() {
+            @Override
+            public void send(int what, int arg1, int arg2, Object obj) {
+                Message.obtain(handler, what, arg1, arg2, obj).sendToTarget();
+            }
+        }), 1000);
+        for (int i = 1; i < listeners; i++) {
+            broadcaster.add(new ProgressBroadcaster.Listener() {
+                @Override
+                public void onProgress(ProgressBroadcaster.Snapshot snapshot) {
+                    shownTime = snapshot.position;
+                }
+            }, 1000 * i);
+        }
+        ticker = new ProgressTicker(scheduler, new ProgressTicker.Listener() {
+            @Override
+            public void onTick() {
+                notifyProgress();
+            }
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        scheduler.shutdownNow();
+        journal.close();
+        journalFile.delete();
+    }
+
+    /*
+    A tick while playing, the common case: the journal skips the write
+     */
+    @Benchmark
+    public int tick() {
+        ticker.run();
+        return shownTime;
+    }
+
+    /*
+    Pausing or seeking, where the position is always written
+     */
+    @Benchmark
+    public void forcedCheckpoint() throws IOException {
+        journal.record(bookId, ++position, true);
+        if (journal.needsCompaction())
+            journal.compact();
+    }
+
+    private void notifyProgress() {
+        position++;
+        try {
+            journal.record(bookId, position, false);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        // A second of playback between ticks
+        now += 1000;
+        broadcaster.publish(bookId, bookUri, position, 36000, now);
+    }
+}
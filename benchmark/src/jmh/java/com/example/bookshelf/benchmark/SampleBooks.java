@@ -0,0 +1,42 @@
+package com.example.bookshelf.benchmark;
+
+import com.example.bookshelf.Book;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/*
+Books and search responses shaped like the ones booksearch.php returns:
+titles are unique, authors and the cover directory repeat
+ */
+class SampleBooks {
+
+    static Book book(int i) {
+        return new Book(i + 1, "The Collected Stories Volume " + i, "Author Number " + (i % 2000),
+                "https://kamorris.com/lab/abp/covers/" + (i + 1) + ".jpeg", 3600 + i % 7200);
+    }
+
+    static ArrayList<Book> books(int count) {
+        ArrayList<Book> books = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            books.add(book(i));
+        return books;
+    }
+
+    static byte[] searchResponse(int count) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < count; i++) {
+            Book book = book(i);
+            if (i > 0)
+                json.append(',');
+            json.append("{\"").append(Book.JSON_ID).append("\":\"").append(book.getId())
+                    .append("\",\"").append(Book.JSON_TITLE).append("\":\"").append(book.getTitle())
+                    .append("\",\"").append(Book.JSON_AUTHOR).append("\":\"").append(book.getAuthor())
+                    .append("\",\"").append(Book.JSON_COVER_URL).append("\":\"")
+                    .append(book.getCoverUrl().replace("/", "\\/"))
+                    .append("\",\"").append(Book.JSON_DURATION).append("\":\"").append(book.getDuration())
+                    .append("\",\"published\":\"2000\"}");
+        }
+        return json.append(']').toString().getBytes(Charset.forName("UTF-8"));
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.bookshelf.benchmark;
+
+import com.example.bookshelf.Book;
+import com.example.bookshelf.BookJsonParser;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/*
+Turning a search response into books with the streaming parser the app
+uses, next to the JSONArray parsing it replaced
+ */
+@State(Scope.Thread)
+public class SearchParseBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int count;
+
+    private byte[] response;
+
+    @Setup
+    public void setUp() {
+        response = SampleBooks.searchResponse(count);
+    }
+
+    @Benchmark
+    public ArrayList<Book> streamingParser() throws Exception {
+        return BookJsonParser.parse(response);
+    }
+
+    @Benchmark
+    public ArrayList<Book> jsonArray() throws Exception {
+        JSONArray array = new JSONArray(new String(response, Charset.forName("UTF-8")));
+        ArrayList<Book> books = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject object = array.getJSONObject(i);
+            books.add(new Book(object.getInt(Book.JSON_ID),
+                    object.getString(Book.JSON_TITLE),
+                    object.getString(Book.JSON_AUTHOR),
+                    object.getString(Book.JSON_COVER_URL),
+                    object.getInt(Book.JSON_DURATION)));
+        }
+        return books;
+    }
+}
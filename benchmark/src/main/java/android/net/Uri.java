@@ -0,0 +1,8 @@
+package android.net;
+
+/*
+JVM stand-in for the framework class, so ProgressBroadcaster compiles as
+it is. The benchmarks only ever pass null, as for a book that is streamed.
+ */
+public abstract class Uri {
+}
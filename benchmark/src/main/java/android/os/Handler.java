@@ -0,0 +1,19 @@
+package android.os;
+
+/*
+JVM stand-in for android.os.Handler. There is no Looper here, so a sent
+message is handled straight away and then recycled, which is what the
+Looper does once it reaches the message. The hop between threads is
+not part of what the benchmarks measure.
+ */
+public class Handler {
+
+    public void handleMessage(Message msg) {
+    }
+
+    public final boolean sendMessage(Message msg) {
+        handleMessage(msg);
+        msg.recycle();
+        return true;
+    }
+}
@@ -0,0 +1,63 @@
+package android.os;
+
+/*
+JVM stand-in for android.os.Message with the same recycling pool,
+so a benchmark sees the same allocation behaviour as the service does
+ */
+public final class Message {
+
+    private static final int MAX_POOL_SIZE = 50;
+    private static final Object poolLock = new Object();
+    private static Message pool;
+    private static int poolSize;
+
+    public int what, arg1, arg2;
+    public Object obj;
+    Handler target;
+    private Message next;
+
+    public Message() {
+    }
+
+    public static Message obtain() {
+        synchronized (poolLock) {
+            if (pool != null) {
+                Message message = pool;
+                pool = message.next;
+                message.next = null;
+                poolSize--;
+                return message;
+            }
+        }
+        return new Message();
+    }
+
+    public static Message obtain(Handler handler, int what, int arg1, int arg2, Object obj) {
+        Message message = obtain();
+        message.target = handler;
+        message.what = what;
+        message.arg1 = arg1;
+        message.arg2 = arg2;
+        message.obj = obj;
+        return message;
+    }
+
+    public void sendToTarget() {
+        target.sendMessage(this);
+    }
+
+    public void recycle() {
+        what = 0;
+        arg1 = 0;
+        arg2 = 0;
+        obj = null;
+        target = null;
+        synchronized (poolLock) {
+            if (poolSize < MAX_POOL_SIZE) {
+                next = pool;
+                pool = this;
+                poolSize++;
+            }
+        }
+    }
+}
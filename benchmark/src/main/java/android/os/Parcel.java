@@ -0,0 +1,203 @@
+package android.os;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+JVM stand-in for android.os.Parcel with the same wire layout: ints are
+4 bytes, strings are a length followed by UTF-16 characters and a
+terminator padded to 4 bytes, and a Parcelable written on its own is
+preceded by its class name. The real one does this in native code, so
+absolute times differ from a device, but the amount of work per book is
+the same and that is what the benchmarks compare.
+ */
+public final class Parcel {
+
+    private static final int POOL_SIZE = 6;
+    private static final Parcel[] pool = new Parcel[POOL_SIZE];
+
+    // Creators are looked up once per class, as the framework does
+    private static final HashMap<String, Parcelable.Creator<?>> creators = new HashMap<>();
+
+    private byte[] data = new byte[256];
+    private int size, position;
+
+    private Parcel() {
+    }
+
+    public static Parcel obtain() {
+        synchronized (pool) {
+            for (int i = 0; i < POOL_SIZE; i++) {
+                Parcel parcel = pool[i];
+                if (parcel != null) {
+                    pool[i] = null;
+                    return parcel;
+                }
+            }
+        }
+        return new Parcel();
+    }
+
+    public void recycle() {
+        size = 0;
+        position = 0;
+        synchronized (pool) {
+            for (int i = 0; i < POOL_SIZE; i++) {
+                if (pool[i] == null) {
+                    pool[i] = this;
+                    return;
+                }
+            }
+        }
+    }
+
+    public int dataSize() {
+        return size;
+    }
+
+    public int dataPosition() {
+        return position;
+    }
+
+    public void setDataPosition(int position) {
+        this.position = position;
+    }
+
+    public byte[] marshall() {
+        byte[] bytes = new byte[size];
+        System.arraycopy(data, 0, bytes, 0, size);
+        return bytes;
+    }
+
+    public void unmarshall(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, data, 0, length);
+        size = length;
+        position = 0;
+    }
+
+    public void writeInt(int value) {
+        ensureCapacity(position + 4);
+        data[position] = (byte) value;
+        data[position + 1] = (byte) (value >> 8);
+        data[position + 2] = (byte) (value >> 16);
+        data[position + 3] = (byte) (value >> 24);
+        advance(4);
+    }
+
+    public int readInt() {
+        if (position + 4 > size)
+            return 0;
+        int value = (data[position] & 0xFF) | (data[position + 1] & 0xFF) << 8
+                | (data[position + 2] & 0xFF) << 16 | (data[position + 3] & 0xFF) << 24;
+        position += 4;
+        return value;
+    }
+
+    public void writeString(String value) {
+        if (value == null) {
+            writeInt(-1);
+            return;
+        }
+        int length = value.length();
+        writeInt(length);
+        int bytes = (2 * (length + 1) + 3) & ~3;
+        ensureCapacity(position + bytes);
+        int p = position;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            data[p++] = (byte) c;
+            data[p++] = (byte) (c >> 8);
+        }
+        // Terminator and padding
+        for (int end = position + bytes; p < end; p++)
+            data[p] = 0;
+        advance(bytes);
+    }
+
+    public String readString() {
+        int length = readInt();
+        if (length < 0)
+            return null;
+        int bytes = (2 * (length + 1) + 3) & ~3;
+        if (position + bytes > size)
+            return null;
+        char[] chars = new char[length];
+        for (int i = 0, p = position; i < length; i++, p += 2)
+            chars[i] = (char) ((data[p] & 0xFF) | (data[p + 1] & 0xFF) << 8);
+        position += bytes;
+        return new String(chars);
+    }
+
+    public void writeParcelable(Parcelable p, int flags) {
+        if (p == null) {
+            writeString(null);
+            return;
+        }
+        writeString(p.getClass().getName());
+        p.writeToParcel(this, flags);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends Parcelable> T readParcelable(ClassLoader loader) {
+        String name = readString();
+        if (name == null)
+            return null;
+        return (T) creator(name, loader).createFromParcel(this);
+    }
+
+    /*
+    How a Bundle writes an ArrayList of Parcelables: a count, then
+    each item with its class name
+     */
+    public void writeParcelableList(ArrayList<? extends Parcelable> list, int flags) {
+        if (list == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(list.size());
+        for (Parcelable p : list)
+            writeParcelable(p, flags);
+    }
+
+    public <T extends Parcelable> ArrayList<T> readParcelableList(ClassLoader loader) {
+        int count = readInt();
+        if (count < 0)
+            return null;
+        ArrayList<T> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            list.add(this.<T>readParcelable(loader));
+        return list;
+    }
+
+    private static Parcelable.Creator<?> creator(String name, ClassLoader loader) {
+        synchronized (creators) {
+            Parcelable.Creator<?> creator = creators.get(name);
+            if (creator == null) {
+                try {
+                    Field field = Class.forName(name, false, loader).getField("CREATOR");
+                    creator = (Parcelable.Creator<?>) field.get(null);
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException("No CREATOR for " + name, e);
+                }
+                creators.put(name, creator);
+            }
+            return creator;
+        }
+    }
+
+    private void advance(int bytes) {
+        position += bytes;
+        if (position > size)
+            size = position;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > data.length) {
+            byte[] bigger = new byte[Math.max(capacity, data.length * 2)];
+            System.arraycopy(data, 0, bigger, 0, size);
+            data = bigger;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package android.os;
+
+/*
+JVM stand-in for the framework interface, so Book compiles as it is
+ */
+public interface Parcelable {
+
+    int describeContents();
+
+    void writeToParcel(Parcel dest, int flags);
+
+    interface Creator<T> {
+        T createFromParcel(Parcel source);
+
+        T[] newArray(int size);
+    }
+}